@@ -0,0 +1,300 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.io;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a blocked gzip (BGZF) stream. A BGZF file is a series of 
+ * independent gzip members of at most 64KB, each recording its own size in a
+ * "BC" extra field, so blocks can be read off the compressed stream without
+ * inflating them and inflated on a thread pool. A bounded number of blocks is
+ * kept in flight and they are returned strictly in file order, so the 
+ * decompressed stream is identical to a sequential gunzip.
+ *
+ * @author Sean Maxwell
+ */
+public class BgzfInputStream extends InputStream {
+    /**
+     * Largest block permitted by the format.
+     */
+    static final int MAX_BLOCK_SIZE = 65536;
+    
+    /**
+     * Length of the fixed gzip member header, up to and including XLEN.
+     */
+    static final int HEADER_LENGTH = 12;
+    
+    private final DataInputStream in;
+    private final ExecutorService pool;
+    private final Deque<Future<byte[]>> pending;
+    private final int depth;
+    private final byte[] header;
+    private byte[] block;
+    private int position;
+    private boolean eof;
+    
+    /**
+     * Inflates one block and verifies it against its trailer.
+     */
+    private static class Block implements Callable<byte[]> {
+        private final byte[] data;
+        
+        Block(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            int n = data.length;
+            int crc = (data[n-8]&0xff) | (data[n-7]&0xff)<<8 | (data[n-6]&0xff)<<16 | (data[n-5]&0xff)<<24;
+            int size = (data[n-4]&0xff) | (data[n-3]&0xff)<<8 | (data[n-2]&0xff)<<16 | (data[n-1]&0xff)<<24;
+            if(size < 0 || size > MAX_BLOCK_SIZE) {
+                throw new IOException("Malformed BGZF block size "+size);
+            }
+            
+            byte[] out = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data, 0, n-8);
+                int inflated = 0;
+                while(inflated < size && !inflater.finished()) {
+                    int k = inflater.inflate(out, inflated, size-inflated);
+                    if(k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += k;
+                }
+                if(inflated != size) {
+                    throw new IOException("Truncated BGZF block");
+                }
+            }
+            catch(DataFormatException e) {
+                throw new IOException("Corrupt BGZF block: "+e.getMessage(),e);
+            }
+            finally {
+                inflater.end();
+            }
+            
+            CRC32 check = new CRC32();
+            check.update(out, 0, size);
+            if((int)check.getValue() != crc) {
+                throw new IOException("BGZF block failed CRC check");
+            }
+            return out;
+        }
+    }
+    
+    /**
+     * Constructor wraps a compressed stream positioned at the start of the
+     * first block.
+     * 
+     * @param compressed BGZF compressed input
+     * @param threads Number of threads to inflate blocks with. One or fewer 
+     * inflates blocks on the reading thread.
+     */
+    public BgzfInputStream(InputStream compressed, int threads) {
+        in = new DataInputStream(compressed);
+        header = new byte[HEADER_LENGTH];
+        pending = new ArrayDeque<>();
+        block = new byte[0];
+        position = 0;
+        eof = false;
+        
+        if(threads > 1) {
+            depth = threads * 4;
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bgzf-inflater");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        else {
+            depth = 1;
+            pool = null;
+        }
+    }
+    
+    /**
+     * Find the total size of a block from the "BC" subfield of its extra 
+     * field.
+     * 
+     * @param extra Extra field of the member header
+     * 
+     * @return The block size, or -1 if the field is not present.
+     */
+    static int blockSize(byte[] extra) {
+        int i = 0;
+        while(i+4 <= extra.length) {
+            int length = (extra[i+2]&0xff) | (extra[i+3]&0xff)<<8;
+            if(extra[i] == 'B' && extra[i+1] == 'C' && length == 2 && i+6 <= extra.length) {
+                return ((extra[i+4]&0xff) | (extra[i+5]&0xff)<<8) + 1;
+            }
+            i += 4 + length;
+        }
+        return -1;
+    }
+    
+    /**
+     * Read the next compressed block from the underlying stream.
+     * 
+     * @return Deflated data followed by the CRC32 and ISIZE trailer, or null
+     * at the end of the stream.
+     */
+    private byte[] readBlock() throws IOException {
+        int n = 0;
+        while(n < HEADER_LENGTH) {
+            int k = in.read(header, n, HEADER_LENGTH-n);
+            if(k < 0) {
+                if(n == 0) {
+                    return null;
+                }
+                throw new EOFException("Truncated BGZF block header");
+            }
+            n += k;
+        }
+        if((header[0]&0xff) != 0x1f || (header[1]&0xff) != 0x8b || header[2] != 8 || (header[3]&0x04) == 0) {
+            throw new IOException("Malformed BGZF block header");
+        }
+        
+        int xlen = (header[10]&0xff) | (header[11]&0xff)<<8;
+        byte[] extra = new byte[xlen];
+        in.readFully(extra);
+        int size = blockSize(extra);
+        if(size < HEADER_LENGTH+xlen+8) {
+            throw new IOException("Malformed BGZF block header");
+        }
+        
+        byte[] data = new byte[size-HEADER_LENGTH-xlen];
+        in.readFully(data);
+        return data;
+    }
+    
+    /**
+     * Queue blocks for inflation until the pipeline is full, then take the 
+     * oldest finished block.
+     * 
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        while(position == block.length) {
+            while(!eof && pending.size() < depth) {
+                byte[] data = readBlock();
+                if(data == null) {
+                    eof = true;
+                }
+                else if(pool != null) {
+                    pending.add(pool.submit(new Block(data)));
+                }
+                else {
+                    try {
+                        block = new Block(data).call();
+                        position = 0;
+                    }
+                    catch(IOException e) {
+                        throw e;
+                    }
+                    catch(Exception e) {
+                        throw new IOException(e.getMessage(),e);
+                    }
+                    if(block.length > 0) {
+                        return true;
+                    }
+                }
+            }
+            if(pending.isEmpty()) {
+                return false;
+            }
+            
+            try {
+                block = pending.poll().get();
+                position = 0;
+            }
+            catch(ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException)cause : new IOException(cause.getMessage(),cause);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decompressing");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(position == block.length && !fill()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(position == block.length && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, block.length-position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+    
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+    
+    /**
+     * Stop the inflater threads and close the underlying stream.
+     * 
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    @Override
+    public void close() throws IOException {
+        if(pool != null) {
+            pool.shutdownNow();
+        }
+        pending.clear();
+        in.close();
+    }
+}
@@ -0,0 +1,361 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream to blocked gzip (BGZF). The stream is cut into blocks 
+ * of at most {@link #BLOCK_DATA_SIZE} bytes and each block is deflated into 
+ * an independent gzip member on a thread pool. A bounded number of blocks is
+ * kept in flight and they are written strictly in order, followed by the 
+ * empty end-of-file block. The result can be read by any gzip reader, and 
+ * is inflated on multiple threads by {@link BgzfInputStream}.<br><br>
+ * 
+ * The stream is also a {@link WritableByteChannel}, so that buffers can be 
+ * copied straight into the current block.
+ *
+ * @author Sean Maxwell
+ */
+public class BgzfOutputStream extends OutputStream implements WritableByteChannel {
+    /**
+     * Largest number of uncompressed bytes in a block. Incompressible data 
+     * stored in a block of this size still fits in the largest block 
+     * permitted by the format.
+     */
+    public static final int BLOCK_DATA_SIZE = 65280;
+    
+    /**
+     * Length of the member header, including the "BC" extra field.
+     */
+    private static final int BLOCK_HEADER_LENGTH = BgzfInputStream.HEADER_LENGTH + 6;
+    
+    /**
+     * Length of the CRC32 and ISIZE trailer.
+     */
+    private static final int BLOCK_TRAILER_LENGTH = 8;
+    
+    /**
+     * The empty block that marks the end of a BGZF file.
+     */
+    private static final byte[] EOF_BLOCK = {
+        0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0,
+        0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+    
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService pool;
+    private final boolean ownsPool;
+    private final Deque<Future<byte[]>> pending;
+    private final int depth;
+    private byte[] block;
+    private int position;
+    private boolean closed;
+    
+    /**
+     * Deflates one block into a complete gzip member.
+     */
+    private static class Block implements Callable<byte[]> {
+        private final byte[] data;
+        private final int length;
+        private final int level;
+        
+        Block(byte[] data, int length, int level) {
+            this.data = data;
+            this.length = length;
+            this.level = level;
+        }
+        
+        /**
+         * Deflate the data into a member buffer, returning the compressed 
+         * length or -1 if it does not fit.
+         */
+        private int deflate(byte[] member, int compressionLevel) {
+            Deflater deflater = new Deflater(compressionLevel, true);
+            try {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                int limit = member.length - BLOCK_TRAILER_LENGTH;
+                int n = BLOCK_HEADER_LENGTH;
+                while(!deflater.finished() && n < limit) {
+                    n += deflater.deflate(member, n, limit-n);
+                }
+                return deflater.finished() ? n - BLOCK_HEADER_LENGTH : -1;
+            }
+            finally {
+                deflater.end();
+            }
+        }
+        
+        @Override
+        public byte[] call() throws Exception {
+            byte[] member = new byte[BgzfInputStream.MAX_BLOCK_SIZE];
+            int compressed = deflate(member, level);
+            if(compressed == -1) {
+                compressed = deflate(member, Deflater.NO_COMPRESSION);
+            }
+            int size = BLOCK_HEADER_LENGTH + compressed + BLOCK_TRAILER_LENGTH;
+            
+            /* gzip header with FEXTRA set and the "BC" block size field */
+            System.arraycopy(EOF_BLOCK, 0, member, 0, 16);
+            member[16] = (byte)(size-1);
+            member[17] = (byte)((size-1) >> 8);
+            
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            int p = BLOCK_HEADER_LENGTH + compressed;
+            putInt(member, p, (int)crc.getValue());
+            putInt(member, p+4, length);
+            
+            byte[] result = new byte[size];
+            System.arraycopy(member, 0, result, 0, size);
+            return result;
+        }
+        
+        private static void putInt(byte[] b, int p, int v) {
+            b[p] = (byte)v;
+            b[p+1] = (byte)(v >> 8);
+            b[p+2] = (byte)(v >> 16);
+            b[p+3] = (byte)(v >> 24);
+        }
+    }
+    
+    /**
+     * Constructor wraps an output stream, compressing with the default 
+     * level.
+     * 
+     * @param compressed Output of the compressed blocks
+     * @param threads Number of threads to deflate blocks with. One or fewer
+     * deflates blocks on the writing thread.
+     */
+    public BgzfOutputStream(OutputStream compressed, int threads) {
+        this(compressed, threads, Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    /**
+     * Constructor wraps an output stream.
+     * 
+     * @param compressed Output of the compressed blocks
+     * @param threads Number of threads to deflate blocks with. One or fewer
+     * deflates blocks on the writing thread.
+     * @param level Deflate compression level (0-9, or -1 for the default)
+     */
+    public BgzfOutputStream(OutputStream compressed, int threads, int level) {
+        out = compressed;
+        this.level = level;
+        pending = new ArrayDeque<>();
+        block = new byte[BLOCK_DATA_SIZE];
+        position = 0;
+        closed = false;
+        
+        if(threads > 1) {
+            depth = threads * 4;
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bgzf-deflater");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        else {
+            depth = 1;
+            pool = null;
+        }
+        ownsPool = true;
+    }
+    
+    /**
+     * Constructor wraps an output stream, deflating blocks on a pool shared 
+     * with other streams, such as those of the shards of one database. The 
+     * pool is not shut down when the stream is closed.
+     * 
+     * @param compressed Output of the compressed blocks
+     * @param pool Pool of threads to deflate blocks with
+     * @param depth Number of blocks of this stream kept in flight
+     * @param level Deflate compression level (0-9, or -1 for the default)
+     */
+    public BgzfOutputStream(OutputStream compressed, ExecutorService pool, int depth, int level) {
+        out = compressed;
+        this.level = level;
+        this.pool = pool;
+        this.depth = Math.max(1, depth);
+        ownsPool = false;
+        pending = new ArrayDeque<>();
+        block = new byte[BLOCK_DATA_SIZE];
+        position = 0;
+        closed = false;
+    }
+    
+    /**
+     * Write the oldest pending block once it is deflated.
+     */
+    private void writePending() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        }
+        catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException)cause : new IOException(cause.getMessage(),cause);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing");
+        }
+    }
+    
+    /**
+     * Deflate the current block, or queue it for deflation, and start a new 
+     * one.
+     */
+    private void endBlock() throws IOException {
+        if(position == 0) {
+            return;
+        }
+        Block deflate = new Block(block, position, level);
+        if(pool != null) {
+            pending.add(pool.submit(deflate));
+            while(pending.size() >= depth) {
+                writePending();
+            }
+            block = new byte[BLOCK_DATA_SIZE];
+        }
+        else {
+            try {
+                out.write(deflate.call());
+            }
+            catch(IOException e) {
+                throw e;
+            }
+            catch(Exception e) {
+                throw new IOException(e.getMessage(),e);
+            }
+        }
+        position = 0;
+    }
+    
+    private void ensureOpen() throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if(position == block.length) {
+            endBlock();
+        }
+        block[position++] = (byte)b;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while(len > 0) {
+            if(position == block.length) {
+                endBlock();
+            }
+            int n = Math.min(len, block.length-position);
+            System.arraycopy(b, off, block, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int written = src.remaining();
+        while(src.hasRemaining()) {
+            if(position == block.length) {
+                endBlock();
+            }
+            int n = Math.min(src.remaining(), block.length-position);
+            src.get(block, position, n);
+            position += n;
+        }
+        return written;
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+    
+    /**
+     * Compress and write every block written so far, ending the current 
+     * block early, and flush the underlying stream.
+     * 
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        endBlock();
+        while(!pending.isEmpty()) {
+            writePending();
+        }
+        out.flush();
+    }
+    
+    /**
+     * Write the remaining blocks and the end-of-file block, stop the 
+     * deflater threads (unless the pool is shared) and close the underlying
+     * stream.
+     * 
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        try {
+            flush();
+            out.write(EOF_BLOCK);
+        }
+        finally {
+            closed = true;
+            if(pool != null && ownsPool) {
+                pool.shutdownNow();
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+}
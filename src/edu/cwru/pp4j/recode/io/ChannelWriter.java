@@ -0,0 +1,194 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes single byte (ASCII) text to a file or channel. Characters are 
+ * encoded directly into a large direct buffer, which is written to the 
+ * channel when it fills, so no intermediate Strings are created and no 
+ * charset encoder is involved. FASTA files are ASCII, so this writes them at
+ * close to disk speed. Characters outside ASCII are written as '?'.<br><br>
+ * 
+ * Like other Writers, instances must not be shared between threads.
+ * 
+ * @author Sean Maxwell
+ */
+public class ChannelWriter extends Writer {
+    /**
+     * Default size of the buffer in bytes.
+     */
+    public static final int BUFFER_SIZE = 1 << 23;
+    
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    
+    /**
+     * Constructor creates (or truncates) the file.
+     * @param path Path of the file
+     * @throws IOException if the file cannot be created.
+     */
+    public ChannelWriter(String path) throws IOException {
+        this(path, BUFFER_SIZE);
+    }
+    
+    /**
+     * Constructor creates (or truncates) the file.
+     * @param path Path of the file
+     * @param size Size of the buffer in bytes
+     * @throws IOException if the file cannot be created.
+     */
+    public ChannelWriter(String path, int size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+        }
+        catch(IOException e) {
+            file.close();
+            throw e;
+        }
+        channel = file.getChannel();
+        buffer = ByteBuffer.allocateDirect(size);
+    }
+    
+    /**
+     * Constructor writes to a channel, such as a {@link BgzfOutputStream}.
+     * @param channel Destination of the encoded bytes, closed with the writer
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    public ChannelWriter(WritableByteChannel channel) throws IOException {
+        this(channel, BUFFER_SIZE);
+    }
+    
+    /**
+     * Constructor writes to a channel, such as a {@link BgzfOutputStream}.
+     * @param channel Destination of the encoded bytes, closed with the writer
+     * @param size Size of the buffer in bytes
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    public ChannelWriter(WritableByteChannel channel, int size) throws IOException {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(size);
+    }
+    
+    /**
+     * Encode a character as a single byte.
+     */
+    private static byte encode(int c) {
+        return c < 0x80 ? (byte)c : (byte)'?';
+    }
+    
+    /**
+     * Write the buffer to the file and empty it.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    @Override
+    public void write(int c) throws IOException {
+        if(!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put(encode(c));
+    }
+    
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while(len > 0) {
+            if(!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(len, buffer.remaining());
+            for(int i=0;i<n;i++) {
+                buffer.put(encode(cbuf[off+i]));
+            }
+            off += n;
+            len -= n;
+        }
+    }
+    
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        append(str, off, off+len);
+    }
+    
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        return csq == null ? append("null", 0, 4) : append(csq, 0, csq.length());
+    }
+    
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        if(csq == null) {
+            return append("null", start, end);
+        }
+        while(start < end) {
+            if(!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(end-start, buffer.remaining());
+            for(int i=0;i<n;i++) {
+                buffer.put(encode(csq.charAt(start+i)));
+            }
+            start += n;
+        }
+        return this;
+    }
+    
+    /**
+     * Write the buffered bytes to the file. The bytes are handed to the 
+     * operating system, but not forced to the device.
+     * @throws IOException if the bytes cannot be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        if(channel.isOpen()) {
+            drain();
+        }
+    }
+    
+    /**
+     * Write the buffered bytes and close the file or channel.
+     * @throws IOException if the bytes cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if(!channel.isOpen()) {
+            return;
+        }
+        try {
+            drain();
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
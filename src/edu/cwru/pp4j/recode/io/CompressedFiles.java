@@ -0,0 +1,205 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens input files that may be gzip compressed. The format is detected from
+ * the content of the file rather than its name, so plain files are read 
+ * as-is, ordinary gzip files are inflated on the reading thread, and blocked
+ * gzip (BGZF) files are inflated on multiple threads with a 
+ * {@link BgzfInputStream}.
+ *
+ * @author Sean Maxwell
+ */
+public class CompressedFiles {
+    /**
+     * Conventional file name extension of gzip files.
+     */
+    public static final String EXTENSION = ".gz";
+    
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Enumeration of the supported file formats.
+     */
+    public enum Format {
+        PLAIN,
+        GZIP,
+        BGZF
+    }
+    
+    /**
+     * Identify the format of the stream from its first bytes. The stream must 
+     * support mark/reset and is left at its original position.
+     */
+    private static Format detect(InputStream in) throws IOException {
+        byte[] header = new byte[BgzfInputStream.HEADER_LENGTH];
+        in.mark(BgzfInputStream.HEADER_LENGTH + BUFFER_SIZE);
+        try {
+            int n = 0, k;
+            while(n < header.length && (k=in.read(header, n, header.length-n)) > 0) {
+                n += k;
+            }
+            if(n < 2 || (header[0]&0xff) != 0x1f || (header[1]&0xff) != 0x8b) {
+                return Format.PLAIN;
+            }
+            if(n < header.length || header[2] != 8 || (header[3]&0xff) != 0x04) {
+                return Format.GZIP;
+            }
+            
+            /* Only FEXTRA is set, look for the block size subfield */
+            int xlen = (header[10]&0xff) | (header[11]&0xff)<<8;
+            byte[] extra = new byte[xlen];
+            n = 0;
+            while(n < xlen && (k=in.read(extra, n, xlen-n)) > 0) {
+                n += k;
+            }
+            return n == xlen && BgzfInputStream.blockSize(extra) != -1 ? Format.BGZF : Format.GZIP;
+        }
+        finally {
+            in.reset();
+        }
+    }
+    
+    /**
+     * Identify the format of a file from its content.
+     * 
+     * @param path Path of the file
+     * 
+     * @return The format of the file
+     * 
+     * @throws IOException if the file cannot be read.
+     */
+    public static Format format(String path) throws IOException {
+        try(InputStream in = new BufferedInputStream(new FileInputStream(path))) {
+            return detect(in);
+        }
+    }
+    
+    /**
+     * Test if a file is gzip compressed, in either ordinary or blocked form.
+     * 
+     * @param path Path of the file
+     * 
+     * @return true if the file must be inflated to be read.
+     * 
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isCompressed(String path) throws IOException {
+        return format(path) != Format.PLAIN;
+    }
+    
+    /**
+     * Open a file for reading, inflating it if it is compressed, using one
+     * thread per available processor for BGZF files.
+     * 
+     * @param path Path of the file
+     * 
+     * @return Stream of the uncompressed content of the file
+     * 
+     * @throws IOException if the file cannot be opened.
+     */
+    public static InputStream open(String path) throws IOException {
+        return open(path, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Open a file for reading, inflating it if it is compressed.
+     * 
+     * @param path Path of the file
+     * @param threads Number of threads used to inflate BGZF files
+     * 
+     * @return Stream of the uncompressed content of the file
+     * 
+     * @throws IOException if the file cannot be opened.
+     */
+    public static InputStream open(String path, int threads) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE);
+        try {
+            switch(detect(in)) {
+                case BGZF:
+                    return new BgzfInputStream(in, threads);
+                case GZIP:
+                    return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+                default:
+                    return in;
+            }
+        }
+        catch(IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Open a text file for reading line by line, inflating it if it is 
+     * compressed.
+     * 
+     * @param path Path of the file
+     * 
+     * @return Reader of the uncompressed content of the file
+     * 
+     * @throws IOException if the file cannot be opened.
+     */
+    public static BufferedReader newReader(String path) throws IOException {
+        return new BufferedReader(new InputStreamReader(open(path)), BUFFER_SIZE);
+    }
+    
+    /**
+     * Write the uncompressed content of a file to a new location. Plain files
+     * are copied unchanged.
+     * 
+     * @param source Path of the file to read
+     * @param destination Path of the file to write
+     * 
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    public static void decompress(String source, String destination) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try(InputStream in = open(source); OutputStream out = new FileOutputStream(destination)) {
+            int n;
+            while((n=in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+    
+    /**
+     * Remove the gzip extension from a file name, if it has one.
+     * 
+     * @param name File name
+     * 
+     * @return The name without a trailing ".gz"
+     */
+    public static String stripExtension(String name) {
+        return name.endsWith(EXTENSION) ? name.substring(0, name.length()-EXTENSION.length()) : name;
+    }
+}
@@ -0,0 +1,181 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, memory-mapped view of a file. A single MappedByteBuffer cannot
+ * address more than 2GB, so the file is mapped as a series of fixed size
+ * segments and reads that straddle a segment boundary are stitched together.
+ * Pages are loaded by the operating system on demand, so opening even a very
+ * large file is fast and uses almost no heap.
+ *
+ * @author Sean Maxwell
+ */
+public class MappedFile implements AutoCloseable {
+    /**
+     * Size of each mapped segment (1GB).
+     */
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    
+    /**
+     * Constructor maps the file at the argument path into memory.
+     * 
+     * @param path Path to the file to map
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public MappedFile(String path) throws Exception {
+        file = new RandomAccessFile(path,"r");
+        FileChannel channel = file.getChannel();
+        size = channel.size();
+        
+        int n = (int)((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+        segments = new MappedByteBuffer[n];
+        for(int i=0;i<n;i++) {
+            long position = (long)i << SEGMENT_BITS;
+            long length = Math.min(SEGMENT_SIZE, size-position);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+    }
+    
+    /**
+     * Report the size of the mapped file.
+     * 
+     * @return File size in bytes
+     */
+    public long size() {
+        return size;
+    }
+    
+    /**
+     * Read a single byte from the file.
+     * 
+     * @param position Absolute position in the file
+     * 
+     * @return The byte at the position
+     */
+    public byte get(long position) {
+        return segments[(int)(position >>> SEGMENT_BITS)].get((int)(position & SEGMENT_MASK));
+    }
+    
+    /**
+     * Read a big-endian short from the file.
+     * 
+     * @param position Absolute position in the file of the first byte
+     * 
+     * @return The short at the position
+     */
+    public short getShort(long position) {
+        return (short)(((get(position) & 0xff) << 8) | (get(position+1) & 0xff));
+    }
+    
+    /**
+     * Read a big-endian int from the file.
+     * 
+     * @param position Absolute position in the file of the first byte
+     * 
+     * @return The int at the position
+     */
+    public int getInt(long position) {
+        int segment = (int)(position >>> SEGMENT_BITS);
+        int start = (int)(position & SEGMENT_MASK);
+        if(start + 4 <= segments[segment].limit()) {
+            return segments[segment].getInt(start);
+        }
+        
+        /* The int straddles two segments */
+        return ((get(position) & 0xff) << 24) | 
+               ((get(position+1) & 0xff) << 16) |
+               ((get(position+2) & 0xff) << 8) |
+               (get(position+3) & 0xff);
+    }
+    
+    /**
+     * Read a big-endian long from the file.
+     * 
+     * @param position Absolute position in the file of the first byte
+     * 
+     * @return The long at the position
+     */
+    public long getLong(long position) {
+        return ((long)getInt(position) << 32) | (getInt(position+4) & 0xffffffffL);
+    }
+    
+    /**
+     * Read a big-endian double from the file.
+     * 
+     * @param position Absolute position in the file of the first byte
+     * 
+     * @return The double at the position
+     */
+    public double getDouble(long position) {
+        return Double.longBitsToDouble(getLong(position));
+    }
+    
+    /**
+     * Copy a range of bytes from the file into an array.
+     * 
+     * @param position Absolute position in the file of the first byte to copy
+     * @param dst Destination array
+     * @param offset Offset in destination array to start copying to
+     * @param length Number of bytes to copy
+     */
+    public void get(long position, byte[] dst, int offset, int length) {
+        while(length > 0) {
+            int segment = (int)(position >>> SEGMENT_BITS);
+            int start = (int)(position & SEGMENT_MASK);
+            int n = Math.min(length, segments[segment].limit()-start);
+            
+            /* Use a duplicate so that concurrent readers do not share the 
+             * position of the underlying buffer */
+            ByteBuffer view = segments[segment].duplicate();
+            view.position(start);
+            view.get(dst, offset, n);
+            
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+    
+    /**
+     * Unmapping is left to the garbage collector, but the file handle is
+     * released immediately.
+     * 
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Low level file access shared by the protein, modification site and spectrum
+ * packages, such as memory-mapped reads of files too large to load on the 
+ * heap, transparent reading of gzip compressed input, and fast writing of 
+ * plain or blocked gzip output.
+ */
+package edu.cwru.pp4j.recode.io;
@@ -36,6 +36,18 @@ public interface ModificationSiteAnnotator {
      * @throws Exception if the request cannot be fulfilled.
      */
     public ModificationSitesAnnotated annotate(String accession, ModificationSites querySites) throws Exception;
+    
+    /**
+     * Separate a query set of modification sites into "known" and "unknown"
+     * based on those that exist in this annotator.
+     * @param accessionId Identifier of the protein of interest in the 
+     * {@link edu.cwru.pp4j.recode.proteins.AccessionDictionary} of the 
+     * annotator
+     * @param querySites Sites to separate
+     * @return Sites separated into known and unknown
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public ModificationSitesAnnotated annotate(int accessionId, ModificationSites querySites) throws Exception;
         
     /**
      * Test if a modification site annotator is empty (a null annotator).
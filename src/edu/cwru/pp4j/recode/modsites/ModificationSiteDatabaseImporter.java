@@ -21,15 +21,17 @@
 package edu.cwru.pp4j.recode.modsites;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.CallableStatement;
 
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+
 /**
  * Imports a tab-delimited file of cross references into an H2 database. The
  * source file must contain two columns with Uniprot protein accession in first
  * column and modification site in second column. Empty lines are allowed.
+ * The source file may be gzip compressed.
  * 
  * @author Sean Maxwell
  */
@@ -66,7 +68,7 @@ public class ModificationSiteDatabaseImporter {
             CallableStatement insert = connection.prepareCall("INSERT INTO records VALUES(?,?);");
             
             String line = null;
-            try(BufferedReader br = new BufferedReader(new FileReader(source))) {
+            try(BufferedReader br = CompressedFiles.newReader(source)) {
 
                 /* Read header line */
                 br.readLine();
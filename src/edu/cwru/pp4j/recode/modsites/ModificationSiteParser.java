@@ -30,6 +30,11 @@ import edu.cwru.pp4j.recode.proteins.Peptide;
  * @author Sean Maxwell
  */
 public class ModificationSiteParser {
+    /**
+     * Residues that can be phosphorylated.
+     */
+    public static final String PHOSPHORYLATION_RESIDUES = "STY";
+    
     /**
      * Parse all candidate modification sites from a peptide.
      * 
@@ -40,16 +45,18 @@ public class ModificationSiteParser {
     public static ModificationSites parsePhosphorylationSites(Peptide peptide) throws Exception {
         String[] aminoAcids = {"S","T","Y"};
         ModificationSites modifications = new ModificationSites();
-        String sequence = peptide.sequence();
+        CharSequence sequence = peptide.residues();
         int start = peptide.start();
-        int thisAminoAcid = 0;
         
-        /* Find all potential phosphorylation sites along peptide */
+        /* Find all potential phosphorylation sites along peptide, reading the
+         * residues in place */
         for(String aminoAcid : aminoAcids) {
-            int lastAminoAcid = -1;
-            
-            /* While there are still [ in the peptide that we have not parsed yet */
-            while((thisAminoAcid = sequence.indexOf(aminoAcid,lastAminoAcid+1)) != -1) {
+            char residue = aminoAcid.charAt(0);
+            for(int thisAminoAcid=0;thisAminoAcid<sequence.length();thisAminoAcid++) {
+                if(sequence.charAt(thisAminoAcid) != residue) {
+                    continue;
+                }
+                
                 /* Add to list of String indices so that sites can easily be
                  * manipulated */
                 modifications.addIndex(thisAminoAcid);
@@ -63,15 +70,13 @@ public class ModificationSiteParser {
                 ModificationSite modification = new ModificationSite();
                 modification.setPosition(position).setResidue(aminoAcid);
                 modifications.addSite(modification);
-
-                lastAminoAcid = thisAminoAcid;
             }
         }
 
         return modifications;
     }
     
-    public static int nRecodes(String sequence) {
+    public static int nRecodes(CharSequence sequence) {
         int n = 0;
         for(int i=0;i<sequence.length();i++) {
             if(sequence.charAt(i) == 'B' || sequence.charAt(i) == 'U' || sequence.charAt(i) == 'Z') {
@@ -40,6 +40,18 @@ public class NullSiteAnnotator implements ModificationSiteAnnotator {
         return new ModificationSitesAnnotated();
     }
     
+    /**
+     * Return an empty set of annotations.
+     * @param accessionId Identifier of the protein accession
+     * @param querySites Candidate modification sites
+     * @return Empty set
+     * @throws Exception if the request cannot be fulfilled. 
+     */
+    @Override
+    public ModificationSitesAnnotated annotate(int accessionId, ModificationSites querySites) throws Exception {
+        return new ModificationSitesAnnotated();
+    }
+    
     /**
      * Always returns true because this object never contains data.
      * @return true always.
@@ -20,16 +20,26 @@
  */
 package edu.cwru.pp4j.recode.modsites;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import edu.cwru.pp4j.recode.proteins.AccessionDictionary;
+
 /**
  * A class to annotate protein modification sites. Requires a database of
  * phosphorylation sites to have been imported by a 
  * ModificationSiteDatabaseImporter which is the source of modification 
- * sites for this object.
+ * sites for this object. The sites of the most recently annotated protein 
+ * are cached, so the database is queried once per protein rather than once
+ * per site.
  * 
  * @author Sean Maxwell
  */
 public class PhosphoSiteAnnotator implements ModificationSiteAnnotator {
     private final ModificationSiteDatabase modificationSites;
+    private final AccessionDictionary dictionary;
+    private int cachedId = -1;
+    private Set<String> cachedSites;
     
     /**
      * Constructor initializes a connection to the modification database
@@ -38,6 +48,19 @@ public class PhosphoSiteAnnotator implements ModificationSiteAnnotator {
      * @throws Exception if the request cannot be fulfilled.
      */
     public PhosphoSiteAnnotator(String path) throws Exception {
+        this(path, new AccessionDictionary());
+    }
+    
+    /**
+     * Constructor initializes a connection to the modification database
+     * at the specified path, resolving accession identifiers with a 
+     * dictionary shared with the protein database.
+     * @param path Path to modification database
+     * @param dictionary Dictionary that assigns the accession identifiers
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public PhosphoSiteAnnotator(String path, AccessionDictionary dictionary) throws Exception {
+        this.dictionary = dictionary;
         modificationSites = new ModificationSiteDatabase();
         modificationSites.connect(path);
     }
@@ -52,11 +75,34 @@ public class PhosphoSiteAnnotator implements ModificationSiteAnnotator {
      */
     @Override
     public ModificationSitesAnnotated annotate(String accession, ModificationSites querySites) throws Exception {
+        return annotate(dictionary.id(accession), querySites);
+    }
+    
+    /**
+     * Separates a set of query sites into know and unknown sites.
+     * @param accessionId Identifier of the Uniprot protein accession
+     * @param querySites Modification sites to separate
+     * @return Sites separated into known (exist in database) and unknown (do
+     * not exist in database).
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    @Override
+    public ModificationSitesAnnotated annotate(int accessionId, ModificationSites querySites) throws Exception {
         ModificationSitesAnnotated annotated = new ModificationSitesAnnotated();
+        if(querySites.size() == 0) {
+            return annotated;
+        }
+        
+        /* Fetch all sites of the protein when it changes */
+        if(accessionId != cachedId) {
+            cachedSites = new HashSet<>(modificationSites.list(dictionary.accession(accessionId)));
+            cachedId = accessionId;
+        }
+        
         for(int i=0;i<querySites.size();i++) {
             ModificationSite site = querySites.getSites().get(i);
             Integer index = querySites.getIndices().get(i);
-            if(modificationSites.exists(accession, site.toString())) {
+            if(cachedSites.contains(site.toString())) {
                 annotated.addKnown(site,index);
             }
             else {
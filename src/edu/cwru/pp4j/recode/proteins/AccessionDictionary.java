@@ -0,0 +1,114 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns a dense integer identifier to each distinct protein accession. 
+ * Accessions are the join key between protein databases, modification site
+ * databases and search results, so interning them once lets the rest of the
+ * code compare, hash and index proteins by int instead of by String. 
+ * Identifiers start at zero and increase by one for each new accession, so 
+ * they can be used directly as array indices.<br><br>
+ * 
+ * A dictionary is scoped to one piece of work, such as a recode run or the 
+ * parse of one mzIdentML file, and is passed to each of the database, cache
+ * and annotator objects involved so that an identifier means the same 
+ * protein in all of them. It is discarded with the work, so accessions do 
+ * not accumulate in a long running process. All methods are safe to call 
+ * from multiple threads.
+ *
+ * @author Sean Maxwell
+ */
+public class AccessionDictionary {
+    private final Map<String,Integer> ids;
+    private String[] accessions;
+    private int n;
+    
+    /**
+     * Constructor creates an empty dictionary.
+     */
+    public AccessionDictionary() {
+        ids = new HashMap<>();
+        accessions = new String[1024];
+        n = 0;
+    }
+    
+    /**
+     * Retrieve the identifier of an accession, assigning the next free 
+     * identifier if the accession has not been seen before.
+     * 
+     * @param accession Protein accession
+     * 
+     * @return Identifier of the accession
+     */
+    public synchronized int id(String accession) {
+        Integer id = ids.get(accession);
+        if(id == null) {
+            if(n == accessions.length) {
+                accessions = Arrays.copyOf(accessions, n*2);
+            }
+            id = n;
+            accessions[n++] = accession;
+            ids.put(accession, id);
+        }
+        return id;
+    }
+    
+    /**
+     * Retrieve the identifier of an accession without assigning one.
+     * 
+     * @param accession Protein accession
+     * 
+     * @return Identifier of the accession, or -1 if it has not been seen.
+     */
+    public synchronized int find(String accession) {
+        Integer id = ids.get(accession);
+        return id == null ? -1 : id;
+    }
+    
+    /**
+     * Retrieve the accession assigned an identifier.
+     * 
+     * @param id Identifier previously returned by {@link #id(java.lang.String)}
+     * 
+     * @return Protein accession
+     */
+    public synchronized String accession(int id) {
+        if(id < 0 || id >= n) {
+            throw new IndexOutOfBoundsException("Unknown accession identifier "+id);
+        }
+        return accessions[id];
+    }
+    
+    /**
+     * Report how many accessions have been assigned identifiers. Every 
+     * identifier is smaller than this value.
+     * 
+     * @return Number of accessions in the dictionary.
+     */
+    public synchronized int size() {
+        return n;
+    }
+}
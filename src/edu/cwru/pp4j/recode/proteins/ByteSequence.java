@@ -0,0 +1,74 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+/**
+ * A read-only CharSequence view of a range of single byte (ASCII) residue 
+ * codes. Views are cheap to create because no residues are copied, and each
+ * residue occupies one byte instead of the two used by a String.
+ * 
+ * @author Sean Maxwell
+ */
+public class ByteSequence implements CharSequence {
+    private final byte[] residues;
+    private final int offset;
+    private final int length;
+    
+    /**
+     * Constructor creates a view of a range of an array.
+     * @param b Array of residue codes
+     * @param o Offset of first residue in the array
+     * @param l Number of residues in view
+     */
+    public ByteSequence(byte[] b, int o, int l) {
+        residues = b;
+        offset = o;
+        length = l;
+    }
+    
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char)(residues[offset+index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new ByteSequence(residues, offset+start, end-start);
+    }
+    
+    /**
+     * Copy the residues of the view into a new String.
+     * @return Residues as a String
+     */
+    @Override
+    public String toString() {
+        char[] c = new char[length];
+        for(int i=0;i<length;i++) {
+            c[i] = (char)(residues[offset+i] & 0xff);
+        }
+        return new String(c);
+    }
+}
@@ -0,0 +1,345 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A cleavage rule regular expression compiled to residue lookup tables. The
+ * rules used by proteases are alternations of short, fixed length sequences 
+ * of residue classes (e.g. "(WKP)|(MRP)|[KR][^P]"), so a rule can be expanded
+ * to its list of alternatives and each alternative stored as one bit per 
+ * position in a table indexed by residue. Windows are then tested with a 
+ * shift-and pass over the residues, and candidate sites found with a table 
+ * lookup per residue, without building substrings or running the regex 
+ * engine.<br><br>
+ * 
+ * The set of characters accepted by each residue class is computed by the
+ * regex engine itself for every character from 0 to 255, so the tables agree 
+ * with the original expression exactly. Expressions using other syntax 
+ * (quantifiers, anchors, escapes, ...) are not compiled, and a sequence 
+ * containing characters above 255 cannot be decided from the tables; in both
+ * cases the caller falls back to the regular expression.
+ *
+ * @author Sean Maxwell
+ */
+final class CleavagePattern {
+    /**
+     * Returned when a sequence contains characters the tables do not cover.
+     */
+    static final int UNDECIDED = -2;
+    
+    /**
+     * Character used to pad windows that extend past the end of a sequence.
+     */
+    static final char PAD = '#';
+    
+    private static final int MAX_ALTERNATIVE_LENGTH = 32;
+    private static final int MAX_POSITIONS = 64;
+    
+    private final int[] lengths;
+    private final int[][] masks;
+    private final long[] table;
+    private final long starts;
+    private final long finals;
+    
+    /**
+     * Build the lookup tables from the expanded alternatives.
+     */
+    private CleavagePattern(List<List<BitSet>> alternatives) {
+        lengths = new int[alternatives.size()];
+        masks = new int[alternatives.size()][256];
+        table = new long[256];
+        long s = 0, f = 0;
+        int bit = 0;
+        
+        for(int a=0;a<alternatives.size();a++) {
+            List<BitSet> classes = alternatives.get(a);
+            lengths[a] = classes.size();
+            s |= 1L << bit;
+            for(int p=0;p<classes.size();p++) {
+                BitSet accepted = classes.get(p);
+                for(int c=accepted.nextSetBit(0);c>=0;c=accepted.nextSetBit(c+1)) {
+                    masks[a][c] |= 1 << p;
+                    table[c] |= 1L << (bit+p);
+                }
+            }
+            bit += classes.size();
+            f |= 1L << (bit-1);
+        }
+        starts = s;
+        finals = f;
+    }
+    
+    /**
+     * Compile a cleavage rule.
+     * 
+     * @param regex Regular expression of the rule
+     * 
+     * @return The compiled rule, or null if the expression uses syntax that
+     * cannot be compiled to tables.
+     */
+    static CleavagePattern compile(String regex) {
+        Parser parser = new Parser(regex);
+        List<List<BitSet>> alternatives = parser.alternation();
+        if(alternatives == null || parser.position != regex.length()) {
+            return null;
+        }
+        
+        int positions = 0;
+        for(List<BitSet> alternative : alternatives) {
+            if(alternative.isEmpty() || alternative.size() > MAX_ALTERNATIVE_LENGTH) {
+                return null;
+            }
+            positions += alternative.size();
+        }
+        if(positions > MAX_POSITIONS) {
+            return null;
+        }
+        return new CleavagePattern(alternatives);
+    }
+    
+    /**
+     * Test if any alternative matches the sequence starting at a position.
+     * 
+     * @param seq Sequence to test
+     * @param i Position of the first residue of the match
+     * 
+     * @return 1 for a match, 0 for no match or {@link #UNDECIDED}.
+     */
+    private int matchesAt(CharSequence seq, int i) {
+        int n = seq.length();
+        for(int a=0;a<lengths.length;a++) {
+            int p = 0;
+            while(p < lengths[a] && i+p < n) {
+                char c = seq.charAt(i+p);
+                if(c > 0xff) {
+                    return UNDECIDED;
+                }
+                if((masks[a][c] & (1 << p)) == 0) {
+                    break;
+                }
+                p++;
+            }
+            if(p == lengths[a]) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Find the next position at which the rule matches, equivalent to 
+     * Matcher.find(from) followed by Matcher.start().
+     * 
+     * @param seq Sequence to search
+     * @param from Position to start searching from
+     * 
+     * @return Start of the next match, -1 if there is none, or 
+     * {@link #UNDECIDED}.
+     */
+    int find(CharSequence seq, int from) {
+        int n = seq.length();
+        for(int i=from;i<n;i++) {
+            char c = seq.charAt(i);
+            if(c > 0xff) {
+                return UNDECIDED;
+            }
+            
+            /* Skip residues that cannot begin any alternative */
+            if((table[c] & starts) == 0) {
+                continue;
+            }
+            int r = matchesAt(seq, i);
+            if(r != 0) {
+                return r == 1 ? i : UNDECIDED;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Test if the rule matches anywhere within a window of a sequence, 
+     * equivalent to Matcher.find() on the window. Positions of the window
+     * outside the sequence read as {@link #PAD}.
+     * 
+     * @param seq Sequence containing the window
+     * @param from Position of the first residue of the window
+     * @param to Position of the last residue of the window
+     * 
+     * @return 1 for a match, 0 for no match or {@link #UNDECIDED}.
+     */
+    int matchesWindow(CharSequence seq, int from, int to) {
+        int n = seq.length();
+        long d = 0;
+        for(int q=from;q<=to;q++) {
+            char c = q < 0 || q >= n ? PAD : seq.charAt(q);
+            if(c > 0xff) {
+                return UNDECIDED;
+            }
+            d = ((d << 1) | starts) & table[c];
+            if((d & finals) != 0) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Recursive descent parser that expands an expression to the list of 
+     * residue class sequences it matches.
+     */
+    private static class Parser {
+        private final String regex;
+        private final Map<String,BitSet> classes;
+        private int position;
+        
+        Parser(String regex) {
+            this.regex = regex;
+            this.classes = new HashMap<>();
+            this.position = 0;
+        }
+        
+        /**
+         * alternation := sequence ('|' sequence)*
+         */
+        List<List<BitSet>> alternation() {
+            List<List<BitSet>> alternatives = sequence();
+            while(alternatives != null && position < regex.length() && regex.charAt(position) == '|') {
+                position++;
+                List<List<BitSet>> next = sequence();
+                if(next == null) {
+                    return null;
+                }
+                alternatives.addAll(next);
+            }
+            return alternatives;
+        }
+        
+        /**
+         * sequence := atom*, expanded as the cross product of its atoms.
+         */
+        List<List<BitSet>> sequence() {
+            List<List<BitSet>> expanded = new ArrayList<>();
+            expanded.add(new ArrayList<BitSet>());
+            
+            while(position < regex.length() && regex.charAt(position) != '|' && regex.charAt(position) != ')') {
+                List<List<BitSet>> atom = atom();
+                if(atom == null) {
+                    return null;
+                }
+                List<List<BitSet>> product = new ArrayList<>();
+                for(List<BitSet> prefix : expanded) {
+                    for(List<BitSet> suffix : atom) {
+                        List<BitSet> joined = new ArrayList<>(prefix);
+                        joined.addAll(suffix);
+                        product.add(joined);
+                    }
+                }
+                if(product.size() > MAX_POSITIONS) {
+                    return null;
+                }
+                expanded = product;
+            }
+            return expanded;
+        }
+        
+        /**
+         * atom := '(' alternation ')' | '[' class ']' | '.' | literal
+         */
+        List<List<BitSet>> atom() {
+            char c = regex.charAt(position);
+            int end;
+            
+            if(c == '(') {
+                position++;
+                if(position < regex.length() && regex.charAt(position) == '?') {
+                    return null;
+                }
+                List<List<BitSet>> group = alternation();
+                if(group == null || position >= regex.length() || regex.charAt(position) != ')') {
+                    return null;
+                }
+                position++;
+                return group;
+            }
+            else if(c == '[') {
+                end = regex.indexOf(']', position+1);
+                if(end == -1) {
+                    return null;
+                }
+                String body = regex.substring(position+1, end);
+                if(body.isEmpty() || body.equals("^") || body.contains("[") || body.contains("\\") || body.contains("&&")) {
+                    return null;
+                }
+                end++;
+            }
+            else if("\\*+?{}^$)|]".indexOf(c) != -1) {
+                return null;
+            }
+            else {
+                end = position+1;
+            }
+            
+            BitSet accepted = accepted(regex.substring(position, end));
+            if(accepted == null) {
+                return null;
+            }
+            position = end;
+            
+            List<BitSet> single = new ArrayList<>();
+            single.add(accepted);
+            List<List<BitSet>> atom = new ArrayList<>();
+            atom.add(single);
+            return atom;
+        }
+        
+        /**
+         * Compute the characters accepted by a single character expression by
+         * testing each of them against the expression.
+         */
+        BitSet accepted(String expression) {
+            BitSet accepted = classes.get(expression);
+            if(accepted == null) {
+                Pattern pattern;
+                try {
+                    pattern = Pattern.compile(expression);
+                }
+                catch(Exception e) {
+                    return null;
+                }
+                accepted = new BitSet(256);
+                for(char c=0;c<256;c++) {
+                    if(pattern.matcher(String.valueOf(c)).matches()) {
+                        accepted.set(c);
+                    }
+                }
+                classes.put(expression, accepted);
+            }
+            return accepted;
+        }
+    }
+}
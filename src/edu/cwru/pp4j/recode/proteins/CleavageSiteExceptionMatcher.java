@@ -26,7 +26,9 @@ import java.util.regex.Pattern;
  * Exposes methods to define an exception to a cleavage site and compare a site
  * to the definition. It uses a regular expression and a window size to
  * search within (specified as amino acids left, and amino acids right) for a
- * match to the regular expression.
+ * match to the regular expression. The expression is also compiled to a 
+ * {@link CleavagePattern} when possible, so that most sites are tested without
+ * building a window String.
  * <br><br>
  * <strong>EXAMPLE:</strong>
  * <br><br>
@@ -50,6 +52,7 @@ import java.util.regex.Pattern;
  */
 public class CleavageSiteExceptionMatcher {
     private final Pattern exception;
+    private final CleavagePattern compiled;
     private final int left;
     private final int right;
 
@@ -62,6 +65,7 @@ public class CleavageSiteExceptionMatcher {
      */
     public CleavageSiteExceptionMatcher(String pattern, int c_left, int c_right) {
         exception = Pattern.compile(pattern);
+        compiled  = CleavagePattern.compile(pattern);
         left      = c_left;
         right     = c_right;
     }
@@ -74,12 +78,20 @@ public class CleavageSiteExceptionMatcher {
      *
      * @return true if the site is an exception. false if it is not.
      */
-    public boolean matches(String sequence, int site) {
+    public boolean matches(CharSequence sequence, int site) {
         int adjusted_left;
         int adjusted_right;
         int pad_left;
         int pad_right;
         String pad_string = "####################";
+        
+        /* Test the window in place when the pattern was compiled */
+        if(this.compiled != null) {
+            int r = this.compiled.matchesWindow(sequence, site-this.left, site+this.right);
+            if(r != CleavagePattern.UNDECIDED) {
+                return r == 1;
+            }
+        }
 
         /* Safely set the left boundary of the site */
         if(site < this.left) {
@@ -103,7 +115,7 @@ public class CleavageSiteExceptionMatcher {
 
         /* Extract the cleaveage site window for confirmation check */
         String s = pad_string.substring(0,pad_left)+
-                   sequence.substring(adjusted_left,adjusted_right)+
+                   sequence.subSequence(adjusted_left,adjusted_right)+
                    pad_string.substring(0,pad_right);
         
         /* Test for match */
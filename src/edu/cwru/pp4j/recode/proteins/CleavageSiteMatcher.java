@@ -27,6 +27,8 @@ import java.util.regex.Pattern;
  * protein if a site matches. It uses a regular expression, a window size to
  * search within (specified as amino acids left, and amino acids right) and a
  * cleave offset to specify how far from the cleave site to cut the protein.
+ * The expression is also compiled to a {@link CleavagePattern} when possible,
+ * so that most sites are tested without building a window String.
  * <br><br>
  * <strong>EXAMPLE:</strong>
  * <br><br>
@@ -56,6 +58,7 @@ import java.util.regex.Pattern;
  */
 public class CleavageSiteMatcher {
     private final Pattern filter;
+    private final CleavagePattern compiled;
     private final int left;
     private final int right;
     private final int offset;
@@ -71,6 +74,7 @@ public class CleavageSiteMatcher {
      */
     public CleavageSiteMatcher(String pattern, int c_left, int c_right, int c_os) {
         filter = Pattern.compile(pattern);
+        compiled = CleavagePattern.compile(pattern);
         left   = c_left;
         right  = c_right;
         offset = c_os;
@@ -86,12 +90,20 @@ public class CleavageSiteMatcher {
      * @return -1 if the site does not match. It returns the offset
      * to cut at if the site does match.
      */
-    public int matches(String sequence, int site) {
+    public int matches(CharSequence sequence, int site) {
         int adjusted_left;
         int pad_left;
         int adjusted_right;
         int pad_right;
         String pad_string = "####################";
+        
+        /* Test the window in place when the pattern was compiled */
+        if(this.compiled != null) {
+            int r = this.compiled.matchesWindow(sequence, site-this.left, site+this.right);
+            if(r != CleavagePattern.UNDECIDED) {
+                return r == 1 ? this.offset : -1;
+            }
+        }
 
         /* Safely set the left boundary of the site, so that if a match occurs
          * so close to the begining of the sequence that we cannot extract the
@@ -119,7 +131,7 @@ public class CleavageSiteMatcher {
 
         /* Extract the cleaveage site window for confirmation check */
         String s = pad_string.substring(0,pad_left)+
-                   sequence.substring(adjusted_left,adjusted_right)+
+                   sequence.subSequence(adjusted_left,adjusted_right)+
                    pad_string.substring(0,pad_right);
 
         if(this.filter.matcher(s).find()) {
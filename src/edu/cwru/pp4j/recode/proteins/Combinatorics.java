@@ -20,6 +20,8 @@
  */
 package edu.cwru.pp4j.recode.proteins;
 
+import java.math.BigInteger;
+
 /**
  * Provides methods to generate all choose(n,k) sets of n objects taken k at a
  * time.
@@ -51,15 +53,29 @@ package edu.cwru.pp4j.recode.proteins;
  *     | | |   10 = (3,4,5)
  * </pre>
  *
- * In practice, there is not an actual array, and the pointer positions and 
- * stop positions are stored as integers in private member arrays of length
- * <strong>k</strong>. However, the explanation and example are more clear when
- * using an array to visualize what is meant by sliding the pointers.
+ * In practice, there is not an actual array. When there are at most 
+ * {@value #MAX_MASK_SYMBOLS} symbols, a combination is stored as a bitmask of
+ * the chosen symbols and the next combination is computed with a few word
+ * operations (Gosper's hack, applied to the symbols that are <em>not</em> 
+ * chosen so that combinations come out in the order above). Otherwise the 
+ * pointer positions and stop positions are stored as integers in private 
+ * member arrays of length <strong>k</strong>. Either way, no objects are 
+ * created after construction.<br><br>
+ *
+ * Each combination also has a rank, its number in the order above starting
+ * from 0 (e.g. (1,3,5) has rank 4). {@link #goTo(long)} moves directly to 
+ * the combination of any rank, so the combinations can be divided into 
+ * contiguous ranges of ranks and the ranges enumerated independently.
  *
  * @author Sean Maxwell
  *
  */
 public class Combinatorics {
+    /**
+     * The largest number of symbols for which combinations are enumerated
+     * as bitmasks.
+     */
+    public static final int MAX_MASK_SYMBOLS = 63;
 
     /*************************************************************************/
     /*                          PRIVATE MEMBERS                              */
@@ -77,12 +93,35 @@ public class Combinatorics {
      */
     private final int[] stops;
 
+    /**
+     * The number of symbols available, specified when calling the 
+     * Constructor.
+     */
+    private final int pn;
+
     /**
      * The number of symbols to choose at a time, specified when calling the
      * Constructor.
      */
     private final int pk;
 
+    /**
+     * The symbols that are not chosen, with symbol i at bit n-1-i, when
+     * enumerating bitmasks. Increasing complements give combinations in 
+     * lexicographic order.
+     */
+    private long complement;
+
+    /**
+     * Mask of the n low bits.
+     */
+    private final long all;
+
+    /**
+     * Indicates that the pointers do not yet reflect the current bitmask.
+     */
+    private boolean stale;
+
     /**
      * Internal error message
      */
@@ -93,56 +132,26 @@ public class Combinatorics {
      /*************************************************************************/
 
      /**
-      * Recursively tries to move the least significant pointer to the next 
-      * position. Recursion happens when a pointer has reached it's stop 
-      * position and the next most significant pointer must be moved instead.
-      *
-      * @param p pointer position in pointers[] to attempt to move.
+      * Moves the least significant pointer that has not reached its stop 
+      * position one place right, and homes every less significant pointer 
+      * next to it.
       *
       * @return boolean status of the call. A return value of true indicates 
       * a least one pointer was moved (bubbled) and a return value of false 
       * means that all pointers have reached their stop positions.
       */
-     private boolean bubblePointers(int p) {
-         /* If we are calling with an invalid pointer */
+     private boolean bubblePointers() {
+         int p = pk-1;
+         while(p >= 0 && this.pointers[p] == this.stops[p]) {
+             p--;
+         }
          if(p < 0) {
              return false;
          }
-
-         /* IF this pointer is at it's stop position */
-         if(this.pointers[p] == this.stops[p]) {
-             /* IF this is the most significant pointer, and it is at it's stop
-              * position, return false because there is nothing left to do.
-              */
-             if(p == 0) {
-                 return false;
-             }
-
-             /* ELSE there are still more significant pointers to move */
-             else {
-                 /* Try to recurse to the next most significant pointer.
-                  *
-                  * IF the recursion returns true, home this pointer to the next
-                  * most significant pointers new position. */
-                 if(this.bubblePointers(p-1)) {
-                     this.pointers[p] = this.pointers[p-1]+1;
-                     return true;
-                 }
-
-                 /* ELSE the recursion failed. Everything is at it's stop point,
-                  * Return false up the chain. */
-                 else {
-                     return false;
-                 }
-             }
-        }
-
-        /* ELSE this pointer still has room to move right, so shift it right
-         * one place. */
-        else {
-            this.pointers[p]++;
-        }
-
+         this.pointers[p]++;
+         for(p++;p<pk;p++) {
+             this.pointers[p] = this.pointers[p-1]+1;
+         }
          return true;
      }
 
@@ -164,6 +173,7 @@ public class Combinatorics {
             k = 0;
             n = 0;
         }
+        pn       = n;
         pk       = k;
         pointers = new int[k];
         stops    = new int[k];
@@ -174,7 +184,11 @@ public class Combinatorics {
             pointers[i] = i;
             stops[i]    = n-(k-i);
         }
-
+        
+        /* The first combination leaves the n-k last symbols unchosen */
+        all = n <= MAX_MASK_SYMBOLS ? (1L << n) - 1 : -1L;
+        complement = (1L << (n-k)) - 1;
+        stale = false;
     }
 
     /**
@@ -188,49 +202,165 @@ public class Combinatorics {
 
     /**
      * Calculates the number of possible combinations of <strong>n</strong>
-     * symbols taken <strong>k</strong> at a time using the multiplicative
-     * formula.
+     * symbols taken <strong>k</strong> at a time exactly.
      *
      * @param n Number of symbols available
      * @param k Number of symbols to choose at a time from set of size
      *          <strong>n</strong> symbols.
      *
-     * @return Number of possible combinations in long format
+     * @return Number of possible combinations in long format, or -1 if it 
+     * is too large.
+     *
+     * @see #choose(int, int)
      */
     public final long nChooseK(int n, int k) {
-        double t = 1;
-        long   i = 0;
-
-        for(i=0;i<k;i++) {
-            t = t*(n-i);
+        long c = choose(n, k);
+        if(c == -1L) {
+            this.error="Overflow in NChooseK. Too many possibilities.";
+        }
+        return c;
+    }
 
-            /* Check for overflow before division */
-            if(((long)(t+0.5) == java.lang.Long.MAX_VALUE)) {
-                this.error="Overflow in NChooseK. Too many possibilities.";
-                return -1L;
+    /**
+     * Calculates the number of possible combinations of <strong>n</strong>
+     * symbols taken <strong>k</strong> at a time using the multiplicative
+     * formula. Each partial product is itself a binomial coefficient, and is
+     * divided by the common factor of the next divisor before multiplying, 
+     * so the result is exact and overflow is detected only when the result 
+     * does not fit in a long.
+     *
+     * @param n Number of symbols available
+     * @param k Number of symbols to choose at a time
+     *
+     * @return Number of possible combinations, or -1 if it is too large.
+     */
+    public static long choose(int n, int k) {
+        if(k < 0 || k > n) {
+            return 0;
+        }
+        k = Math.min(k, n-k);
+        long c = 1;
+        try {
+            for(int i=0;i<k;i++) {
+                /* c*(n-i) is divisible by (i+1) */
+                long d = i+1;
+                long g = gcd(c, d);
+                c = Math.multiplyExact(c/g, (n-i)/(d/g));
             }
-            
-            t = t/(k-i);
+        }
+        catch(ArithmeticException e) {
+            return -1L;
+        }
+        return c;
+    }
+
+    /**
+     * Calculates the number of possible combinations of <strong>n</strong>
+     * symbols taken <strong>k</strong> at a time, however large.
+     *
+     * @param n Number of symbols available
+     * @param k Number of symbols to choose at a time
+     *
+     * @return Number of possible combinations
+     */
+    public static BigInteger chooseExact(int n, int k) {
+        if(k < 0 || k > n) {
+            return BigInteger.ZERO;
+        }
+        k = Math.min(k, n-k);
+        BigInteger c = BigInteger.ONE;
+        for(int i=0;i<k;i++) {
+            c = c.multiply(BigInteger.valueOf(n-i)).divide(BigInteger.valueOf(i+1));
+        }
+        return c;
+    }
 
+    /**
+     * Greatest common divisor of two positive numbers.
+     */
+    private static long gcd(long a, long b) {
+        while(b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
         }
-        return (long)(t+0.5);
+        return a;
+    }
+
+    /**
+     * Reports if combinations are enumerated as bitmasks, in which case 
+     * {@link #getMask()} can be used.
+     *
+     * @return true if there are at most {@value #MAX_MASK_SYMBOLS} symbols
+     */
+    public boolean hasMask() {
+        return pn <= MAX_MASK_SYMBOLS;
+    }
+
+    /**
+     * Returns the current combination as a bitmask in which bit i is set if
+     * symbol i is chosen. Only valid when {@link #hasMask()} is true.
+     *
+     * @return combination as bitmask
+     */
+    public long getMask() {
+        long chosen = this.all & ~this.complement;
+        return chosen == 0 ? 0 : Long.reverse(chosen) >>> (64 - pn);
+    }
+
+    /**
+     * Moves to the next combination, without creating any objects.
+     *
+     * @return true if there is a next combination, and false if all
+     * combinations have been enumerated.
+     */
+    public boolean next() {
+        if(pk == 0) {
+            return false;
+        }
+        if(!hasMask()) {
+            return this.bubblePointers();
+        }
+        
+        /* Gosper's hack: the next larger number with as many bits set. All
+         * symbols are chosen when the complement is empty */
+        long c = this.complement;
+        if(c == 0) {
+            return false;
+        }
+        long u = c & -c;
+        long v = c + u;
+        if((v & ~this.all) != 0) {
+            return false;
+        }
+        this.complement = v + (((v ^ c) / u) >>> 2);
+        this.stale = true;
+        return true;
     }
 
     /**
      * Returns the current combination from the object, without updating the
-     * internal state.
+     * internal state. The array is reused for every combination.
      *
      * @return combination as int array
      *
      * @see #getNext()
      */
     public int[] getCurrent() {
+        if(this.stale) {
+            int i = 0;
+            for(long m=getMask();m!=0;m&=m-1) {
+                this.pointers[i++] = Long.numberOfTrailingZeros(m);
+            }
+            this.stale = false;
+        }
         return this.pointers;
     }
 
     /**
      * Returns the next combination from the object, updating the objects
-     * internal state. To go to a specific combination use GoTo(long).
+     * internal state. To go to a specific combination use 
+     * {@link #goTo(long)}.
      *
      * @return combination as int array
      *
@@ -238,13 +368,72 @@ public class Combinatorics {
     public int[] getNext() {
         boolean status;
 
-        status = this.bubblePointers(pk-1);
+        status = this.next();
         if(status == false) {
             return new int[0];
         }
         else {
-           return this.pointers;
+           return this.getCurrent();
+        }
+    }
+
+    /**
+     * Reports the number of combinations of the object.
+     *
+     * @return Number of combinations, or -1 if it is too large for a long.
+     */
+    public long count() {
+        return pk == 0 ? 0 : choose(pn, pk);
+    }
+
+    /**
+     * Returns the rank of the current combination, without updating the 
+     * internal state.
+     *
+     * @return rank of the current combination, which is only meaningful if
+     * count() is not -1.
+     */
+    public long rank() {
+        int[] current = this.getCurrent();
+        long r = 0;
+        int x = 0;
+        for(int i=0;i<pk;i++) {
+            /* Count the combinations that choose a smaller symbol here */
+            for(;x<current[i];x++) {
+                r += choose(pn-x-1, pk-i-1);
+            }
+            x++;
+        }
+        return r;
+    }
+
+    /**
+     * Moves to the combination of the argument rank, so that the following
+     * calls to getNext() continue from it.
+     *
+     * @param rank Rank of the combination, from 0 to count()-1
+     */
+    public void goTo(long rank) {
+        int x = 0;
+        for(int i=0;i<pk;i++) {
+            /* Skip past the combinations that choose a smaller symbol here */
+            long c = choose(pn-x-1, pk-i-1);
+            while(c != -1 && rank >= c) {
+                rank -= c;
+                x++;
+                c = choose(pn-x-1, pk-i-1);
+            }
+            this.pointers[i] = x++;
+        }
+        
+        if(hasMask()) {
+            long chosen = 0;
+            for(int i=0;i<pk;i++) {
+                chosen |= 1L << (pn-1-this.pointers[i]);
+            }
+            this.complement = this.all & ~chosen;
+            this.stale = false;
         }
     }
     
-}
\ No newline at end of file
+}
@@ -41,6 +41,11 @@ public class Constants {
      */
     public static final double MASS_NITROGEN   = 14.003074;
    
+    /**
+     * Mass of Sulfur.
+     */
+    public static final double MASS_SULFUR     = 31.97207069;
+    
     /**
      * Mass of Phosphorous.
      */
@@ -78,6 +83,23 @@ public class Constants {
     
     public static final double MASS_PHOSPHORYL  = (3*MASS_OXYGEN)+MASS_PHOSPHORUS;
     
+    /**
+     * Mass of Phosphoric acid (H3PO4), the neutral loss of phosphorylated S
+     * and T.
+     */
+    public static final double MASS_PHOSPHORIC_ACID = (3*MASS_HYDROGEN)+MASS_PHOSPHATE;
+    
+    /**
+     * Mass added to a residue by phosphorylation (HPO3).
+     */
+    public static final double MASS_PHOSPHORYLATION = MASS_HYDROGEN+MASS_PHOSPHORYL;
+    
+    /**
+     * Mass difference between Carbon 13 and Carbon 12, which is the spacing
+     * of the isotope peaks of a peptide.
+     */
+    public static final double MASS_C13_SHIFT  = 1.0033548378;
+    
     /**
      * Mass of Carbon Monoxide (CO).
      */
@@ -0,0 +1,564 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The complete digestion of one protein sequence by a protease. Digestion is
+ * done in two phases:
+ * <ol>
+ * <li>The sequence is scanned once for cleavage sites and the fragments 
+ * produced by cleaving at every site are recorded as (start, end) positions. 
+ * No sequence data is copied.</li>
+ * <li>Peptides with <i>i</i> missed cleavages are the windows of 
+ * <i>i</i>+1 consecutive fragments, so they can be counted, enumerated or 
+ * looked up directly from the fragment positions.</li>
+ * </ol>
+ * 
+ * Fragments are grouped into the cleavage events that produced them (a 
+ * single site may cut the sequence more than once), which is the unit 
+ * returned by each call to {@link PeptideFactory#GetNext(int)}.<br><br>
+ * 
+ * Fragments are contiguous except when a protease cuts before a position it
+ * has already cut after. In that case the peptide spanning the fragments is
+ * built by concatenating them, as the peptides of the queue based factory 
+ * always were.<br><br>
+ * 
+ * The peptides can also be consumed as a {@link Stream}. The stream knows its
+ * exact size and splits along fragment boundaries, so a long protein can be 
+ * processed on a parallel stream:
+ * <pre>
+ * new Digest(protease, sequence).stream(2).parallel().filter(...)
+ * </pre>
+ *
+ * @author Sean Maxwell
+ */
+public class Digest {
+    private final CharSequence sequence;
+    private int[] starts;
+    private int[] ends;
+    private int[] breaks;
+    private int[] cumulative;
+    private int n;
+    private int[] events;
+    private int nEvents;
+    
+    /**
+     * Constructor digests the argument sequence with the argument protease.
+     * 
+     * @param protease Protease to cleave with
+     * @param seq Upper case protein amino acid sequence
+     */
+    public Digest(Protease protease, CharSequence seq) {
+        sequence = seq;
+        starts = new int[16];
+        ends = new int[16];
+        breaks = new int[16];
+        cumulative = new int[17];
+        events = new int[16];
+        n = 0;
+        nEvents = 0;
+        cleave(protease);
+    }
+    
+    /**
+     * Constructor rebuilds a digest from fragments and events computed 
+     * earlier (see {@link DigestCache}), without cleaving the sequence.
+     * 
+     * @param seq Upper case protein amino acid sequence
+     * @param fragmentStarts Start of each fragment
+     * @param fragmentEnds End (exclusive) of each fragment
+     * @param eventEnds Number of the first fragment following each event
+     */
+    Digest(CharSequence seq, int[] fragmentStarts, int[] fragmentEnds, int[] eventEnds) {
+        sequence = seq;
+        starts = new int[Math.max(16, fragmentStarts.length)];
+        ends = new int[starts.length];
+        breaks = new int[starts.length];
+        cumulative = new int[starts.length+1];
+        events = eventEnds.length > 0 ? eventEnds : new int[16];
+        n = 0;
+        nEvents = eventEnds.length;
+        for(int k=0;k<fragmentStarts.length;k++) {
+            addFragment(fragmentStarts[k], fragmentEnds[k]);
+        }
+    }
+    
+    /**
+     * Record a fragment.
+     */
+    private void addFragment(int start, int end) {
+        if(n == starts.length) {
+            starts = Arrays.copyOf(starts, n*2);
+            ends = Arrays.copyOf(ends, n*2);
+            breaks = Arrays.copyOf(breaks, n*2);
+            cumulative = Arrays.copyOf(cumulative, n*2+1);
+        }
+        starts[n] = start;
+        ends[n] = end;
+        
+        /* Count the junctions between fragments that are not contiguous */
+        breaks[n] = n == 0 ? 0 : breaks[n-1] + (ends[n-1] == start ? 0 : 1);
+        
+        /* Fragments are never empty, so the running length strictly increases */
+        cumulative[n+1] = cumulative[n] + end - start;
+        n++;
+    }
+    
+    /**
+     * Close the current cleavage event at the last recorded fragment.
+     */
+    private void addEvent() {
+        if(nEvents == events.length) {
+            events = Arrays.copyOf(events, nEvents*2);
+        }
+        events[nEvents++] = n;
+    }
+    
+    /**
+     * Find every cleavage site of the sequence and record the fragments. This
+     * applies the same rules, in the same order, as the original recursive 
+     * factory: a candidate site is skipped if it matches an exclusion or no
+     * site matcher, and otherwise the sequence is cut at each matched offset
+     * in turn.
+     */
+    private void cleave(Protease protease) {
+        int length = sequence.length();
+        int[] offsets = new int[Math.max(5, protease.matcherCount())];
+        int start = 0;
+        int search = 0;
+        
+        while(true) {
+            int site = protease.findCutSite(sequence, search);
+            
+            /* No more cut sites, the remainder is the final fragment */
+            if(site == -1) {
+                if(start < length) {
+                    addFragment(start, length);
+                }
+                addEvent();
+                break;
+            }
+            search = site+1;
+            
+            /* Skip candidate sites that match an exception to the rules */
+            boolean excluded = false;
+            for(int i=0;i<protease.excluderCount() && !excluded;i++) {
+                excluded = protease.isExclusion(i, sequence, site);
+            }
+            if(excluded) {
+                continue;
+            }
+            
+            /* Test each cut rule to determine where the site cleaves */
+            int cutSites = 0;
+            Arrays.fill(offsets, -1);
+            for(int i=0;i<protease.matcherCount();i++) {
+                offsets[i] = protease.isCleaveSite(i, sequence, site);
+                if(offsets[i] != -1) {
+                    cutSites++;
+                }
+            }
+            if(protease.matcherCount() > 0 && cutSites == 0) {
+                continue;
+            }
+            else if(protease.matcherCount() == 0) {
+                offsets[0] = protease.offset();
+            }
+            
+            /* Cut at each offset, skipping empty fragments */
+            int before = n;
+            for(int i=0;i<offsets.length;i++) {
+                if(offsets[i] != -1) {
+                    if(site+offsets[i] > start) {
+                        addFragment(start, site+offsets[i]);
+                    }
+                    start = site+offsets[i];
+                }
+            }
+            
+            if(n == before) {
+                System.err.printf("Strange no-cleave with sites for %s (%d:%d)\nThis is not necessarily an error, but you may want to manually verify that the last few peptides of the protein are being cleaved as expected\n",sequence,cutSites,site);
+                continue;
+            }
+            addEvent();
+        }
+    }
+    
+    /**
+     * Retrieve the digested sequence.
+     * @return Protein amino acid sequence
+     */
+    public CharSequence sequence() {
+        return sequence;
+    }
+    
+    /**
+     * Report how many fragments the sequence was cleaved into, which is the 
+     * number of peptides with no missed cleavages.
+     * @return Number of fragments
+     */
+    public int fragments() {
+        return n;
+    }
+    
+    /**
+     * Retrieve the position of the first residue of a fragment.
+     * @param k Fragment number
+     * @return Start position in the protein
+     */
+    public int fragmentStart(int k) {
+        return starts[k];
+    }
+    
+    /**
+     * Retrieve the position following the last residue of a fragment.
+     * @param k Fragment number
+     * @return End position (exclusive) in the protein
+     */
+    public int fragmentEnd(int k) {
+        return ends[k];
+    }
+    
+    /**
+     * Retrieve the length of the peptide spanning a range of fragments.
+     * @param first Number of the first fragment
+     * @param last Number of the last fragment
+     * @return Number of residues
+     */
+    public int length(int first, int last) {
+        return cumulative[last+1] - cumulative[first];
+    }
+    
+    /**
+     * Find the fewest missed cleavages a peptide ending in the argument 
+     * fragment needs to be at least the argument length. Peptides grow with
+     * every missed cleavage, so this is a binary search over the running
+     * length of the fragments.
+     * @param last Number of the last fragment
+     * @param minLength Minimum peptide length
+     * @return Number of missed cleavages, or last+1 if no peptide is long
+     * enough
+     */
+    int fewestMissed(int last, int minLength) {
+        if(minLength <= ends[last] - starts[last]) {
+            return 0;
+        }
+        
+        /* Latest first fragment with cumulative[first] <= target */
+        int first = Arrays.binarySearch(cumulative, 0, last+1, cumulative[last+1] - minLength);
+        first = first >= 0 ? first : -first-2;
+        return first < 0 ? last+1 : last-first;
+    }
+    
+    /**
+     * Find the most missed cleavages a peptide ending in the argument 
+     * fragment can have before it is longer than the argument length.
+     * @param last Number of the last fragment
+     * @param maxLength Maximum peptide length
+     * @return Number of missed cleavages, or -1 if even the fragment alone is
+     * too long
+     */
+    int mostMissed(int last, int maxLength) {
+        if(maxLength >= cumulative[last+1]) {
+            return last;
+        }
+        
+        /* Earliest first fragment with cumulative[first] >= target */
+        int first = Arrays.binarySearch(cumulative, 0, last+1, cumulative[last+1] - maxLength);
+        first = first >= 0 ? first : -first-1;
+        return last-first;
+    }
+    
+    /**
+     * Report how many cleavage events produced the fragments, including the
+     * final event that yields the remainder of the sequence (which may be 
+     * empty).
+     * @return Number of events
+     */
+    int events() {
+        return nEvents;
+    }
+    
+    /**
+     * Retrieve the number of the first fragment following an event.
+     * @param e Event number
+     * @return Fragment number
+     */
+    int eventEnd(int e) {
+        return events[e];
+    }
+    
+    /**
+     * Count the peptides with exactly the argument number of missed 
+     * cleavages, without generating them.
+     * @param missedCleavages Number of missed cleavages
+     * @return Number of peptides
+     */
+    public int countExactly(int missedCleavages) {
+        return missedCleavages < 0 ? 0 : Math.max(0, n-missedCleavages);
+    }
+    
+    /**
+     * Count the peptides with up to the argument number of missed cleavages,
+     * without generating them.
+     * @param maxMissedCleavages Maximum number of missed cleavages
+     * @return Number of peptides
+     */
+    public int count(int maxMissedCleavages) {
+        int total = 0;
+        for(int i=0;i<=maxMissedCleavages && i<n;i++) {
+            total += n-i;
+        }
+        return total;
+    }
+    
+    /**
+     * Count the peptides with up to the argument number of missed cleavages
+     * and a length within bounds, without generating them.
+     * @param maxMissedCleavages Maximum number of missed cleavages
+     * @param minLength Minimum peptide length
+     * @param maxLength Maximum peptide length
+     * @return Number of peptides
+     */
+    public long count(int maxMissedCleavages, int minLength, int maxLength) {
+        return count(0, n, 0, maxMissedCleavages, minLength, maxLength);
+    }
+    
+    /**
+     * Build the peptide spanning a range of fragments. The peptide has 
+     * last-first missed cleavages. Contiguous fragments give a 
+     * {@link PeptideView} of the sequence, so no residues are copied.
+     * @param first Number of the first fragment
+     * @param last Number of the last fragment
+     * @return The peptide
+     */
+    public Peptide peptide(int first, int last) {
+        if(breaks[first] == breaks[last]) {
+            return new PeptideView(sequence, starts[first], ends[last]);
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        for(int k=first;k<=last;k++) {
+            sb.append(sequence, starts[k], ends[k]);
+        }
+        return new PeptideSimple(sb.toString(), starts[first]);
+    }
+    
+    /**
+     * Generate all peptides with exactly the argument number of missed 
+     * cleavages, in the order of their last fragment.
+     * @param missedCleavages Number of missed cleavages
+     * @return The peptides
+     */
+    public List<Peptide> peptides(int missedCleavages) {
+        List<Peptide> peptides = new ArrayList<>(countExactly(missedCleavages));
+        for(int last=missedCleavages;last<n;last++) {
+            peptides.add(peptide(last-missedCleavages, last));
+        }
+        return peptides;
+    }
+    
+    /**
+     * Count the peptides whose last fragment is in a range and whose number 
+     * of missed cleavages is within bounds. The fragment j ends one peptide 
+     * for each number of missed cleavages from min to min(max, j).
+     */
+    static long count(int lo, int hi, int min, int max) {
+        long total = 0;
+        
+        /* Fragments that end fewer peptides than the maximum */
+        int a = Math.max(lo, min), b = Math.min(hi, max+1);
+        if(b > a) {
+            total += (long)(b-a) * (a+b-2*min+1) / 2;
+        }
+        
+        /* Fragments that end the full number of peptides */
+        int c = Math.max(lo, max+1);
+        if(hi > c) {
+            total += (long)(hi-c) * (max-min+1);
+        }
+        return total;
+    }
+    
+    /**
+     * Count the peptides whose last fragment is in a range and whose number 
+     * of missed cleavages and length are within bounds. Without length 
+     * bounds the count has a closed form, otherwise the range of missed 
+     * cleavages is looked up for each fragment.
+     */
+    long count(int lo, int hi, int min, int max, int minLength, int maxLength) {
+        if(minLength <= 0 && maxLength == Integer.MAX_VALUE) {
+            return count(lo, hi, min, max);
+        }
+        long total = 0;
+        for(int last=lo;last<hi;last++) {
+            int fewest = Math.max(min, fewestMissed(last, minLength));
+            int most = Math.min(max, mostMissed(last, maxLength));
+            total += Math.max(0, most - fewest + 1);
+        }
+        return total;
+    }
+    
+    /**
+     * Create a spliterator over the peptides with a number of missed 
+     * cleavages from min to max, in the order they are returned by 
+     * {@link PeptideFactory#GetNext(int)}.
+     * @param minMissedCleavages Minimum number of missed cleavages
+     * @param maxMissedCleavages Maximum number of missed cleavages
+     * @return The spliterator
+     */
+    public Spliterator<Peptide> spliterator(int minMissedCleavages, int maxMissedCleavages) {
+        return spliterator(minMissedCleavages, maxMissedCleavages, 0, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Create a spliterator over the peptides with a number of missed 
+     * cleavages from min to max and a length from minLength to maxLength. 
+     * Peptides outside the length bounds are skipped without being built.
+     * @param minMissedCleavages Minimum number of missed cleavages
+     * @param maxMissedCleavages Maximum number of missed cleavages
+     * @param minLength Minimum peptide length
+     * @param maxLength Maximum peptide length
+     * @return The spliterator
+     */
+    public Spliterator<Peptide> spliterator(int minMissedCleavages, int maxMissedCleavages, int minLength, int maxLength) {
+        return new PeptideSpliterator(0, n, minMissedCleavages, maxMissedCleavages, minLength, maxLength);
+    }
+    
+    /**
+     * Stream the peptides with up to the argument number of missed 
+     * cleavages.
+     * @param maxMissedCleavages Maximum number of missed cleavages
+     * @return Sequential stream of peptides
+     */
+    public Stream<Peptide> stream(int maxMissedCleavages) {
+        return StreamSupport.stream(spliterator(0, maxMissedCleavages), false);
+    }
+    
+    /**
+     * Spliterator over a range of fragments, emitting for each fragment the 
+     * peptides that end in it. Splitting divides the range of fragments in 
+     * two, so both halves know their exact size.
+     */
+    private class PeptideSpliterator implements Spliterator<Peptide> {
+        private final int min;
+        private final int max;
+        private final int minLength;
+        private final int maxLength;
+        private final int hi;
+        private int last;
+        private int missed;
+        private int fewest;
+        private int most;
+        
+        PeptideSpliterator(int lo, int hi, int min, int max, int minLength, int maxLength) {
+            this.min = min;
+            this.max = max;
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            this.hi = hi;
+            enter(lo);
+        }
+        
+        /**
+         * Move to the argument fragment and find the range of missed 
+         * cleavages of the peptides ending in it that satisfy the bounds.
+         */
+        private void enter(int fragment) {
+            last = fragment;
+            if(last >= hi) {
+                return;
+            }
+            fewest = minLength <= 0 ? min : Math.max(min, fewestMissed(last, minLength));
+            most = Math.min(max, maxLength == Integer.MAX_VALUE ? last : mostMissed(last, maxLength));
+            missed = fewest;
+        }
+        
+        /**
+         * Move to the next fragment that ends at least one peptide.
+         */
+        private void skip() {
+            while(last < hi && missed > most) {
+                enter(last+1);
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Peptide> action) {
+            skip();
+            if(last >= hi) {
+                return false;
+            }
+            action.accept(peptide(last-missed, last));
+            missed++;
+            return true;
+        }
+        
+        @Override
+        public void forEachRemaining(Consumer<? super Peptide> action) {
+            for(skip();last<hi;enter(last+1)) {
+                for(;missed<=most;missed++) {
+                    action.accept(peptide(last-missed, last));
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<Peptide> trySplit() {
+            skip();
+            int lo = missed == fewest ? last : last+1;
+            int mid = (lo + hi) >>> 1;
+            if(mid <= lo || lo >= hi) {
+                return null;
+            }
+            
+            /* The prefix keeps any partly consumed fragment */
+            PeptideSpliterator prefix = new PeptideSpliterator(last, mid, min, max, minLength, maxLength);
+            prefix.missed = missed;
+            enter(mid);
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            if(last >= hi) {
+                return 0;
+            }
+            
+            /* Peptides of the current fragment not yet emitted, then the rest */
+            long current = Math.max(0, most - missed + 1);
+            return current + count(last+1, hi, min, max, minLength, maxLength);
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.cwru.pp4j.recode.io.MappedFile;
+
+/**
+ * A binary file next to a protein database that stores the {@link Digest} of
+ * every protein, so that later runs with the same protease can skip cleaving
+ * entirely. Missed cleavages, length bounds and specificity are all applied
+ * when peptides are enumerated from a digest, so one cache serves every 
+ * setting of those parameters.<br><br>
+ * 
+ * A cache is named after the database and a key computed from the protease
+ * name, its full definition and the digest mode (e.g. 
+ * human.fasta.1a2b3c4d.digest), and records the size and modification time
+ * of the database it was built from, as the {@link FastaIndex} does, so 
+ * that stale caches are detected and rebuilt without reading the database.
+ * All values are big-endian:
+ * <pre>
+ * "PPDIGEST"  {VERSION:int}  {DATABASE SIZE:long}  {DATABASE MODIFIED:long}
+ * {KEY:int}
+ * per protein: {RESIDUES:int} {FRAGMENTS:int} {EVENTS:int} 
+ *              {STARTS:int[]} {ENDS:int[]} {EVENT ENDS:int[]}
+ * {PROTEINS:int}
+ * per protein: {ACCESSION LENGTH:int} {ACCESSION:UTF-8} {OFFSET:long}
+ * {OFFSET OF PROTEIN TABLE:long}
+ * </pre>
+ * 
+ * An existing cache is read through a memory map, and a digest is only 
+ * rebuilt from it when requested. Otherwise a new cache is written as 
+ * proteins are digested and only replaces the old one when 
+ * {@link #commit()} is called. Accessions that occur more than once in the
+ * database are never cached, because their digests cannot be told apart.
+ * Digests may be read and recorded from several threads at once.
+ * 
+ * @author Sean Maxwell
+ */
+public class DigestCache implements AutoCloseable {
+    /**
+     * File name extension of digest caches.
+     */
+    public static final String EXTENSION = ".digest";
+    
+    private static final byte[] MAGIC = "PPDIGEST".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 32;
+    
+    private final AccessionDictionary dictionary;
+    private final String path;
+    
+    /* Reading an existing cache */
+    private MappedFile file;
+    private long[] offsets;
+    
+    /* Writing a new cache */
+    private File temporary;
+    private DataOutputStream out;
+    private long position;
+    private Map<String,Long> written;
+    
+    private DigestCache(String path, AccessionDictionary dictionary) {
+        this.path = path;
+        this.dictionary = dictionary;
+    }
+    
+    /**
+     * Compute the key that distinguishes the caches of a database.
+     * 
+     * @param proteaseName Name of the protease
+     * @param protease Definition of the protease
+     * @param strict Whether the strict digest rules are used
+     * 
+     * @return The key
+     */
+    public static int key(String proteaseName, Protease protease, boolean strict) {
+        return (proteaseName+"\t"+strict+"\t"+protease.toString("")).hashCode();
+    }
+    
+    /**
+     * Compute the path of the cache for a database and protease.
+     * 
+     * @param databasePath Path to the protein database
+     * @param key Key computed by {@link #key(String, Protease, boolean)}
+     * 
+     * @return Path to the cache file
+     */
+    public static String cachePath(String databasePath, int key) {
+        return String.format("%s.%08x%s", databasePath, key, EXTENSION);
+    }
+    
+    /**
+     * Open the cache of a database for a protease. If a cache exists and 
+     * was built from the current database, it is mapped for reading. 
+     * Otherwise an empty cache is created that records the digests it is 
+     * given.
+     * 
+     * @param databasePath Path to the protein database
+     * @param proteaseName Name of the protease
+     * @param protease Definition of the protease
+     * @param strict Whether the strict digest rules are used
+     * @param dictionary Dictionary that assigns the accession identifiers 
+     * digests are requested and recorded by
+     * 
+     * @return The cache
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public static DigestCache open(String databasePath, String proteaseName, Protease protease, boolean strict, AccessionDictionary dictionary) throws Exception {
+        int key = key(proteaseName, protease, strict);
+        File database = new File(databasePath);
+        long size = database.length();
+        long modified = database.lastModified();
+        DigestCache cache = new DigestCache(cachePath(databasePath, key), dictionary);
+        if(!cache.load(size, modified, key)) {
+            cache.create(size, modified, key);
+        }
+        return cache;
+    }
+    
+    /**
+     * Map an existing cache and read its table of proteins.
+     * 
+     * @return false if there is no cache, or it does not match the database
+     * and key.
+     */
+    private boolean load(long databaseSize, long modified, int key) throws Exception {
+        if(!new File(path).exists()) {
+            return false;
+        }
+        
+        file = new MappedFile(path);
+        byte[] magic = new byte[MAGIC.length];
+        if(file.size() < HEADER_LENGTH + 12) {
+            return reject();
+        }
+        file.get(0, magic, 0, magic.length);
+        if(!Arrays.equals(magic, MAGIC) ||
+           file.getInt(8) != VERSION ||
+           file.getLong(12) != databaseSize ||
+           file.getLong(20) != modified ||
+           file.getInt(28) != key) {
+            return reject();
+        }
+        
+        /* Index the offset of each protein by accession identifier */
+        long table = file.getLong(file.size()-8);
+        int proteins = file.getInt(table);
+        offsets = new long[Math.max(16, dictionary.size())];
+        Arrays.fill(offsets, -1);
+        long p = table+4;
+        for(int i=0;i<proteins;i++) {
+            byte[] accession = new byte[file.getInt(p)];
+            file.get(p+4, accession, 0, accession.length);
+            p += 4 + accession.length;
+            
+            int id = dictionary.id(new String(accession, StandardCharsets.UTF_8));
+            if(id >= offsets.length) {
+                int size = offsets.length;
+                offsets = Arrays.copyOf(offsets, Math.max(id+1, size*2));
+                Arrays.fill(offsets, size, offsets.length, -1);
+            }
+            offsets[id] = file.getLong(p);
+            p += 8;
+        }
+        return true;
+    }
+    
+    /**
+     * Release a cache that does not match.
+     */
+    private boolean reject() throws Exception {
+        file.close();
+        file = null;
+        return false;
+    }
+    
+    /**
+     * Start writing a new cache to a temporary file.
+     */
+    private void create(long size, long modified, int key) throws Exception {
+        File target = new File(path);
+        temporary = File.createTempFile(target.getName(), ".tmp", target.getAbsoluteFile().getParentFile());
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(size);
+        out.writeLong(modified);
+        out.writeInt(key);
+        position = HEADER_LENGTH;
+        written = new HashMap<>();
+    }
+    
+    /**
+     * Retrieve the path of the cache file.
+     * @return Path to the cache file
+     */
+    public String getPath() {
+        return path;
+    }
+    
+    /**
+     * Report if the cache was loaded from file, in which case 
+     * {@link #get(int, CharSequence)} returns digests.
+     * @return true if the cache was loaded, false if it is being written
+     */
+    public boolean isLoaded() {
+        return file != null;
+    }
+    
+    /**
+     * Rebuild the digest of a protein from the cache.
+     * 
+     * @param accessionId Identifier of the protein accession
+     * @param sequence Sequence of the protein, which the digest refers to
+     * 
+     * @return The digest, or null if the protein is not cached.
+     */
+    public Digest get(int accessionId, CharSequence sequence) {
+        if(file == null || accessionId >= offsets.length || offsets[accessionId] == -1) {
+            return null;
+        }
+        
+        long p = offsets[accessionId];
+        if(file.getInt(p) != sequence.length()) {
+            return null;
+        }
+        int n = file.getInt(p+4);
+        int nEvents = file.getInt(p+8);
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        int[] events = new int[nEvents];
+        p += 12;
+        for(int k=0;k<n;k++,p+=4) {
+            starts[k] = file.getInt(p);
+        }
+        for(int k=0;k<n;k++,p+=4) {
+            ends[k] = file.getInt(p);
+        }
+        for(int e=0;e<nEvents;e++,p+=4) {
+            events[e] = file.getInt(p);
+        }
+        return new Digest(sequence, starts, ends, events);
+    }
+    
+    /**
+     * Record the digest of a protein in a cache that is being written. This
+     * has no effect on a cache that was loaded.
+     * 
+     * @param accessionId Identifier of the protein accession
+     * @param digest Digest of the protein
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public synchronized void put(int accessionId, Digest digest) throws Exception {
+        if(out == null) {
+            return;
+        }
+        
+        /* A repeated accession cannot be cached */
+        String accession = dictionary.accession(accessionId);
+        if(written.containsKey(accession)) {
+            written.put(accession, -1L);
+            return;
+        }
+        written.put(accession, position);
+        
+        int n = digest.fragments();
+        int nEvents = digest.events();
+        out.writeInt(digest.sequence().length());
+        out.writeInt(n);
+        out.writeInt(nEvents);
+        for(int k=0;k<n;k++) {
+            out.writeInt(digest.fragmentStart(k));
+        }
+        for(int k=0;k<n;k++) {
+            out.writeInt(digest.fragmentEnd(k));
+        }
+        for(int e=0;e<nEvents;e++) {
+            out.writeInt(digest.eventEnd(e));
+        }
+        position += 12 + 8L*n + 4L*nEvents;
+    }
+    
+    /**
+     * Finish writing the cache and replace any previous cache with it. This
+     * has no effect on a cache that was loaded.
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public synchronized void commit() throws Exception {
+        if(out == null) {
+            return;
+        }
+        
+        /* Append the table of proteins */
+        out.writeInt(written.size());
+        for(Map.Entry<String,Long> entry : written.entrySet()) {
+            byte[] accession = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(accession.length);
+            out.write(accession);
+            out.writeLong(entry.getValue());
+        }
+        out.writeLong(position);
+        out.close();
+        out = null;
+        
+        Files.move(temporary.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        temporary = null;
+    }
+    
+    /**
+     * Release the memory map of a loaded cache, or discard a cache that was
+     * being written and was not committed.
+     * 
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    @Override
+    public void close() throws IOException {
+        if(file != null) {
+            file.close();
+        }
+        if(out != null) {
+            out.close();
+            out = null;
+        }
+        if(temporary != null) {
+            temporary.delete();
+            temporary = null;
+        }
+    }
+}
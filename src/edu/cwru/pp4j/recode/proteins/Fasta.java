@@ -20,19 +20,42 @@
  */
 package edu.cwru.pp4j.recode.proteins;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.regex.Pattern;
+
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+import edu.cwru.pp4j.recode.io.MappedFile;
 
 /**
- * Encapsulates access to FASTA format files.
+ * Encapsulates access to FASTA format files. A database is either loaded 
+ * into memory in full, packed into a {@link SequenceArena}, or when opened 
+ * with {@link #open(String)}, served from a memory-mapped file using a 
+ * {@link FastaIndex} so that sequences are only decoded when they are 
+ * requested. In both cases accessions are kept in the order they appear in
+ * the file. Gzip compressed files are inflated while they are loaded, but
+ * cannot be memory-mapped. Proteins are keyed by their identifier in the 
+ * {@link AccessionDictionary} of the database, which may be shared with 
+ * other objects, and can be retrieved by identifier or by accession.
  *
  * @author Sean Maxwell
  */
-public class Fasta {
-    private Map<String,String> sequences;
+public class Fasta implements AutoCloseable {
+    private static final Pattern UNIPROT = Pattern.compile("[OPQ][0-9][A-Z0-9]{3}[0-9]|[A-NR-Z][0-9]([A-Z][A-Z0-9]{2}[0-9]){1,2}");
+    
+    private final AccessionDictionary dictionary;
+    private int[] ids = new int[1024];
+    private int[] entries = new int[0];
+    private int count;
+    private SequenceArena arena;
+    private FastaIndex index;
+    private MappedFile mapped;
     
     /**
      * Test a protein accession to determine if it is a valid Uniprot accession.
@@ -40,8 +63,8 @@ public class Fasta {
      * @return true if the accession is a valid Uniprot accession and false
      * otherwise.
      */
-    public final boolean isUniprot(String accession) {
-        return accession.matches("[OPQ][0-9][A-Z0-9]{3}[0-9]|[A-NR-Z][0-9]([A-Z][A-Z0-9]{2}[0-9]){1,2}");
+    public static boolean isUniprot(String accession) {
+        return UNIPROT.matcher(accession).matches();
     }
     
     /**
@@ -57,10 +80,11 @@ public class Fasta {
      * 
      * @return Accession number parsed from the line
      */
-    public final String parseAccession(String line) {
-        if(line.contains("|")) {
-            String[] parts = line.split("\\|");
-            return parts[1].trim();
+    public static String parseAccession(String line) {
+        int first = line.indexOf('|');
+        if(first != -1) {
+            int second = line.indexOf('|',first+1);
+            return line.substring(first+1, second == -1 ? line.length() : second).trim();
         }
         else {
             return line.trim();
@@ -79,53 +103,153 @@ public class Fasta {
      * @throws Exception if the request cannot be fulfilled. 
      */
     public Fasta(String path, boolean enforceUniprotAccession) throws Exception {
-        BufferedReader br = new BufferedReader(new FileReader(path));
-        String line;
-        String accessionLine = null;
-        StringBuilder sequence = new StringBuilder();
-        sequences = new HashMap<>();
-        
-        while((line=br.readLine()) != null) {
-            /* Be flexible, and ignore blank lines */
-            if(line.equals("")) continue;
-            
-            /* Start of new sequence */
-            if(line.startsWith(">")) {
-                if(accessionLine != null) {
-                    /* If not a Uniprot accession, terminate here */
-                    if(isUniprot(accessionLine) || !enforceUniprotAccession) {
-                        sequences.put(accessionLine,sequence.toString());
-                    }
-                    else {
-                        throw new Exception(String.format("Encountered non-Uniprot accession %s parsing database",accessionLine));
-                    }
-                }
-                accessionLine = parseAccession(line.substring(1));
-                sequence.delete(0, sequence.length());
+        this(path, enforceUniprotAccession, new AccessionDictionary());
+    }
+    
+    /**
+     * Constructor initializes a new database and populates it with the content
+     * of the file located at the argument path.
+     * 
+     * @param path location of a FASTA protein sequence file
+     * @param enforceUniprotAccession When set to true, the constructor will
+     * throw an Exception if the accession line does not contain a valid 
+     * Uniprot accession number.
+     * @param dictionary Dictionary that assigns the accession identifiers
+     * 
+     * @throws Exception if the request cannot be fulfilled. 
+     */
+    public Fasta(String path, boolean enforceUniprotAccession, AccessionDictionary dictionary) throws Exception {
+        this.dictionary = dictionary;
+        load(path, enforceUniprotAccession);
+    }
+    
+    /**
+     * Populate the database by reading the file one record at a time.
+     * 
+     * @param path location of a FASTA protein sequence file
+     * @param enforceUniprotAccession When set to true, throw an Exception if
+     * the accession line does not contain a valid Uniprot accession number.
+     * 
+     * @throws Exception if the request cannot be fulfilled. 
+     */
+    private void load(String path, boolean enforceUniprotAccession) throws Exception {
+        arena = new SequenceArena();
+        try(FastaReader reader = new FastaReader(path, enforceUniprotAccession)) {
+            FastaRecord record;
+            while((record=reader.read()) != null) {
+                put(record.getAccession(),arena.add(record.getSequence()));
             }
-            
-            /* Extension of amino acid sequence */
-            else {
-                sequence.append(line.toUpperCase());
+        }
+        arena.trim();
+    }
+    
+    /**
+     * Map an accession to an entry of the arena or index. A duplicate 
+     * accession replaces the entry of the earlier record but keeps its place
+     * in the file order.
+     * 
+     * @param accession Protein accession
+     * @param entry Entry number holding the sequence
+     */
+    private void put(String accession, int entry) {
+        int id = dictionary.id(accession);
+        if(id >= entries.length) {
+            int capacity = Math.max(id+1, Math.max(dictionary.size(), entries.length*2));
+            int old = entries.length;
+            entries = Arrays.copyOf(entries, capacity);
+            Arrays.fill(entries, old, capacity, -1);
+        }
+        if(entries[id] == -1) {
+            if(count == ids.length) {
+                ids = Arrays.copyOf(ids, count*2);
             }
-            
+            ids[count++] = id;
         }
+        entries[id] = entry;
+    }
+    
+    /**
+     * Scanner that packs the records of one chunk of a file into an arena.
+     */
+    private static class ArenaScanner extends FastaScanner {
+        private final SequenceArena part = new SequenceArena();
+        private final List<String> accessions = new ArrayList<>();
         
-        if(accessionLine != null) {
-            if(isUniprot(accessionLine) || !enforceUniprotAccession) {
-                sequences.put(accessionLine,sequence.toString());
+        ArenaScanner(boolean enforceUniprotAccession) {
+            super(enforceUniprotAccession);
+        }
+
+        @Override
+        void begin(String accession, long offset) {
+            accessions.add(accession);
+        }
+
+        @Override
+        void residue(byte b) {
+            try {
+                part.append(b);
             }
-            else {
-                throw new Exception(String.format("Encountered non-Uniprot accession %s parsing database",accessionLine));
+            catch(Exception e) {
+                throw new IllegalStateException(e.getMessage(),e);
             }
         }
+
+        @Override
+        void end(long position) {
+            part.commit();
+        }
+    }
+    
+    /**
+     * Constructor initializes a new database and populates it with the content
+     * of the file located at the argument path, parsing the file with multiple
+     * threads. The file is memory-mapped and split into chunks at record 
+     * boundaries, the chunks are parsed on a fork-join pool and the results
+     * are merged in file order, giving the same database as 
+     * {@link #Fasta(java.lang.String, boolean)}.
+     * 
+     * @param path location of a FASTA protein sequence file
+     * @param enforceUniprotAccession When set to true, the constructor will
+     * throw an Exception if the accession line does not contain a valid 
+     * Uniprot accession number.
+     * @param threads Number of threads to parse with. One or fewer parses the
+     * file on the calling thread with a {@link FastaReader}, as does a 
+     * compressed file.
+     * 
+     * @throws Exception if the request cannot be fulfilled. 
+     */
+    public Fasta(String path, final boolean enforceUniprotAccession, int threads) throws Exception {
+        dictionary = new AccessionDictionary();
+        if(threads <= 1 || CompressedFiles.isCompressed(path)) {
+            load(path, enforceUniprotAccession);
+            return;
+        }
+        
+        arena = new SequenceArena();
+        try(MappedFile file = new MappedFile(path)) {
+            List<FastaScanner> parts = FastaScanner.scanAll(file, threads, new FastaScanner.ScannerFactory() {
+                @Override
+                public FastaScanner create() {
+                    return new ArenaScanner(enforceUniprotAccession);
+                }
+            });
+            
+            /* Merge the chunks in file order */
+            for(FastaScanner scanner : parts) {
+                ArenaScanner part = (ArenaScanner)scanner;
+                int base = arena.size();
+                arena.addAll(part.part);
+                for(int i=0;i<part.accessions.size();i++) {
+                    put(part.accessions.get(i),base+i);
+                }
+            }
+        }
+        arena.trim();
         
         /* If database in empty, it was invalid */
-        if(sequences.isEmpty()) {
+        if(count == 0) {
             throw new Exception("The database contained no protein sequences");
         }
-        
-        br.close();
     }
     
     /**
@@ -140,29 +264,201 @@ public class Fasta {
         this(path,true);
     }
     
+    /**
+     * Constructor for an indexed database that reads sequences from a 
+     * memory-mapped file.
+     * 
+     * @param path location of a FASTA protein sequence file
+     * @param fastaIndex index of the sequences in the file
+     * @param dictionary Dictionary that assigns the accession identifiers
+     * 
+     * @throws Exception if the request cannot be fulfilled. 
+     */
+    private Fasta(String path, FastaIndex fastaIndex, AccessionDictionary dictionary) throws Exception {
+        this.dictionary = dictionary;
+        index = fastaIndex;
+        for(int i=0;i<index.entries();i++) {
+            put(index.accession(i),i);
+        }
+        mapped = new MappedFile(path);
+    }
+    
+    /**
+     * Open a database in indexed mode. The sidecar index written at import
+     * time is used when it is current, otherwise it is (re)built and saved
+     * first. Opening is near-instant for an existing index and sequences are
+     * decoded from the memory-mapped file on demand, so almost no heap is 
+     * used regardless of the size of the database. A compressed database
+     * cannot be mapped, so it is loaded in memory instead.
+     * 
+     * @param path location of a FASTA protein sequence file
+     * @param enforceUniprotAccession When set to true, throw an Exception if
+     * the index must be built and an accession line does not contain a valid 
+     * Uniprot accession number.
+     * 
+     * @return The database
+     * 
+     * @throws Exception if the request cannot be fulfilled. 
+     */
+    public static Fasta open(String path, boolean enforceUniprotAccession) throws Exception {
+        return open(path, enforceUniprotAccession, new AccessionDictionary());
+    }
+    
+    /**
+     * Open a database in indexed mode, assigning accession identifiers from
+     * a dictionary shared with other objects.
+     * 
+     * @param path location of a FASTA protein sequence file
+     * @param enforceUniprotAccession When set to true, throw an Exception if
+     * the index must be built and an accession line does not contain a valid 
+     * Uniprot accession number.
+     * @param dictionary Dictionary that assigns the accession identifiers
+     * 
+     * @return The database
+     * 
+     * @throws Exception if the request cannot be fulfilled. 
+     * 
+     * @see #open(java.lang.String, boolean) 
+     */
+    public static Fasta open(String path, boolean enforceUniprotAccession, AccessionDictionary dictionary) throws Exception {
+        if(CompressedFiles.isCompressed(path)) {
+            return new Fasta(path,enforceUniprotAccession,dictionary);
+        }
+        
+        FastaIndex fastaIndex = FastaIndex.load(path);
+        if(fastaIndex == null) {
+            fastaIndex = FastaIndex.build(path, enforceUniprotAccession, Runtime.getRuntime().availableProcessors());
+            fastaIndex.save(path);
+        }
+        return new Fasta(path,fastaIndex,dictionary);
+    }
+    
+    /**
+     * Open a database in indexed mode, enforcing Uniprot accessions.
+     * 
+     * @param path location of a FASTA protein sequence file
+     * 
+     * @return The database
+     * 
+     * @throws Exception if the request cannot be fulfilled. 
+     * 
+     * @see #open(java.lang.String, boolean) 
+     */
+    public static Fasta open(String path) throws Exception {
+        return open(path,true);
+    }
+    
+    /**
+     * Test if the database is served from a memory-mapped file.
+     * @return true for indexed mode, false if loaded in memory.
+     */
+    public boolean isIndexed() {
+        return index != null;
+    }
+    
+    /**
+     * Decode an indexed sequence from the mapped file, dropping line 
+     * terminators and white space and converting residues to upper case.
+     * 
+     * @param i Index entry number
+     * 
+     * @return Protein amino acid sequence.
+     */
+    private ByteSequence readSequence(int i) {
+        byte[] raw = new byte[index.length(i)];
+        int n = 0;
+        
+        /* Compact the residues in place */
+        mapped.get(index.offset(i), raw, 0, raw.length);
+        for(byte b : raw) {
+            if(b > ' ') {
+                raw[n++] = (byte)Character.toUpperCase((char)b);
+            }
+        }
+        return new ByteSequence(raw,0,n);
+    }
+    
+    /**
+     * Retrieve the residues of the protein corresponding to a protein 
+     * accession as a one byte per residue view. No String is created, so this
+     * is the preferred way to access sequences for digestion.
+     * @param accession Protein accession identify sequence of interest
+     * @return Protein amino acid sequence, or null if the accession does not
+     * exist.
+     */
+    public CharSequence getResidues(String accession) {
+        return getResidues(dictionary.find(accession));
+    }
+    
+    /**
+     * Retrieve the residues of the protein with an accession identifier as a
+     * one byte per residue view.
+     * @param id Identifier of the accession in the dictionary of the 
+     * database
+     * @return Protein amino acid sequence, or null if the protein is not in
+     * the database.
+     */
+    public CharSequence getResidues(int id) {
+        int entry = id >= 0 && id < entries.length ? entries[id] : -1;
+        if(entry == -1) {
+            return null;
+        }
+        return index != null ? readSequence(entry) : arena.get(entry);
+    }
+    
     /**
      * Retrieve the protein sequence corresponding to a protein accession.
      * @param accession Protein accession identify sequence of interest
      * @return Protein amino acid sequence.
      */
     public String getSequence(String accession) {
-        return sequences.get(accession);
+        CharSequence residues = getResidues(accession);
+        return residues == null ? null : residues.toString();
     }
     
     /**
-     * Retrieve the map of all accessions to sequences.
+     * Retrieve the map of all accessions to sequences. This decodes every 
+     * sequence into a new String, so prefer 
+     * {@link #getResidues(java.lang.String)}.
      * @return all accessions and sequences.
      */
     public Map<String,String> getSequences() {
-        return sequences;
+        Map<String,String> all = new LinkedHashMap<>();
+        for(String accession : getAccessions()) {
+            all.put(accession,getSequence(accession));
+        }
+        return all;
     }
     
     /**
-     * Retrieve all accessions from database.
+     * Retrieve all accessions from database in the order they appear in the 
+     * file.
      * @return all protein accessions.
      */
     public Set<String> getAccessions() {
-        return sequences.keySet();
+        Set<String> accessions = new LinkedHashSet<>();
+        for(int i=0;i<count;i++) {
+            accessions.add(dictionary.accession(ids[i]));
+        }
+        return accessions;
+    }
+    
+    /**
+     * Retrieve the identifiers of all accessions in the database in the order
+     * they appear in the file.
+     * @return Identifiers in the dictionary of the database
+     */
+    public int[] getAccessionIds() {
+        return Arrays.copyOf(ids, count);
+    }
+    
+    /**
+     * Retrieve the dictionary that assigns the accession identifiers of the
+     * database.
+     * @return The dictionary
+     */
+    public AccessionDictionary getDictionary() {
+        return dictionary;
     }
     
     /**
@@ -170,7 +466,19 @@ public class Fasta {
      * @return Number of sequences stored in object.
      */
     public int size() {
-        return sequences.size();
+        return count;
+    }
+    
+    /**
+     * Release the mapped file of an indexed database. Has no effect on a 
+     * database loaded in memory.
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    @Override
+    public void close() throws IOException {
+        if(mapped != null) {
+            mapped.close();
+        }
     }
     
 }
@@ -0,0 +1,353 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+import edu.cwru.pp4j.recode.io.MappedFile;
+
+/**
+ * A sidecar index for a FASTA file that records, for every protein, the byte
+ * offset and length of its sequence block within the file and the number of
+ * residues it contains. With the index available, a sequence can be read 
+ * directly from the file (or a memory map of it) without parsing or storing
+ * the rest of the database.<br><br>
+ * 
+ * The index is stored as a tab-delimited text file next to the FASTA file 
+ * (e.g. human.fasta.idx). The first line records the size and modification
+ * time of the FASTA file the index was built from so that stale indexes are
+ * detected and ignored:
+ * <pre>
+ * #FASTAIDX	{FILE SIZE}	{LAST MODIFIED}
+ * {ACCESSION}	{OFFSET}	{LENGTH}	{RESIDUES}
+ * </pre>
+ * 
+ * @author Sean Maxwell
+ */
+public class FastaIndex {
+    /**
+     * File name extension appended to the FASTA path to name the index.
+     */
+    public static final String EXTENSION = ".idx";
+    
+    private static final String MAGIC = "#FASTAIDX";
+    
+    private String[] accessions;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] residues;
+    private int n;
+    private final Map<String,Integer> positions;
+    
+    private FastaIndex() {
+        accessions = new String[1024];
+        offsets = new long[1024];
+        lengths = new int[1024];
+        residues = new int[1024];
+        n = 0;
+        positions = new LinkedHashMap<>();
+    }
+    
+    /**
+     * Append an entry to the index, growing the internal arrays as needed.
+     */
+    private void add(String accession, long offset, long length, int count) throws Exception {
+        if(length > Integer.MAX_VALUE) {
+            throw new Exception(String.format("Sequence of %s is too long to index",accession));
+        }
+        
+        if(n == accessions.length) {
+            int capacity = n*2;
+            accessions = Arrays.copyOf(accessions,capacity);
+            offsets = Arrays.copyOf(offsets,capacity);
+            lengths = Arrays.copyOf(lengths,capacity);
+            residues = Arrays.copyOf(residues,capacity);
+        }
+        accessions[n] = accession;
+        offsets[n] = offset;
+        lengths[n] = (int)length;
+        residues[n] = count;
+        
+        /* Match the loaded database, where a duplicate accession replaces the
+         * sequence of the earlier entry */
+        positions.put(accession,n);
+        n++;
+    }
+    
+    /**
+     * Compute the path of the index that accompanies a FASTA file.
+     * 
+     * @param fastaPath Path to FASTA file
+     * 
+     * @return Path to index file
+     */
+    public static String indexPath(String fastaPath) {
+        return fastaPath+EXTENSION;
+    }
+    
+    /**
+     * Scanner that records the location and residue count of each record.
+     */
+    private static class IndexScanner extends FastaScanner {
+        private final FastaIndex part = new FastaIndex();
+        private String accession;
+        private long offset;
+        private int count;
+        
+        IndexScanner(boolean enforceUniprotAccession) {
+            super(enforceUniprotAccession);
+        }
+
+        @Override
+        void begin(String a, long o) {
+            accession = a;
+            offset = o;
+            count = 0;
+        }
+
+        @Override
+        void residue(byte b) {
+            count++;
+        }
+
+        @Override
+        void end(long position) throws Exception {
+            part.add(accession,offset,position-offset,count);
+        }
+    }
+    
+    /**
+     * Scan a FASTA file and build an index of its sequences. The scan works on
+     * raw bytes of the memory-mapped file and does not keep any sequence data.
+     * Offsets into a compressed file are meaningless, so a gzip compressed
+     * file must be decompressed before it can be indexed.
+     * 
+     * @param fastaPath Path to FASTA file
+     * @param enforceUniprotAccession When set to true, an Exception is thrown
+     * if an accession line does not contain a valid Uniprot accession number.
+     * @param threads Number of threads to scan the file with
+     * 
+     * @return The index
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public static FastaIndex build(String fastaPath, final boolean enforceUniprotAccession, int threads) throws Exception {
+        FastaIndex index = new FastaIndex();
+        
+        if(CompressedFiles.isCompressed(fastaPath)) {
+            throw new Exception(String.format("Cannot index compressed database %s",fastaPath));
+        }
+        
+        try(MappedFile file = new MappedFile(fastaPath)) {
+            List<FastaScanner> parts = FastaScanner.scanAll(file, threads, new FastaScanner.ScannerFactory() {
+                @Override
+                public FastaScanner create() {
+                    return new IndexScanner(enforceUniprotAccession);
+                }
+            });
+            
+            /* Merge the chunks in file order */
+            for(FastaScanner scanner : parts) {
+                FastaIndex part = ((IndexScanner)scanner).part;
+                for(int i=0;i<part.n;i++) {
+                    index.add(part.accessions[i],part.offsets[i],part.lengths[i],part.residues[i]);
+                }
+            }
+        }
+        
+        /* If database in empty, it was invalid */
+        if(index.n == 0) {
+            throw new Exception("The database contained no protein sequences");
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Scan a FASTA file and build an index of its sequences on the calling
+     * thread.
+     * 
+     * @param fastaPath Path to FASTA file
+     * @param enforceUniprotAccession When set to true, an Exception is thrown
+     * if an accession line does not contain a valid Uniprot accession number.
+     * 
+     * @return The index
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public static FastaIndex build(String fastaPath, boolean enforceUniprotAccession) throws Exception {
+        return build(fastaPath, enforceUniprotAccession, 1);
+    }
+    
+    /**
+     * Write the index next to the FASTA file it describes.
+     * 
+     * @param fastaPath Path to the FASTA file that was indexed
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public void save(String fastaPath) throws Exception {
+        File fasta = new File(fastaPath);
+        try(BufferedWriter out = new BufferedWriter(new FileWriter(indexPath(fastaPath)))) {
+            out.write(String.format("%s\t%d\t%d\n",MAGIC,fasta.length(),fasta.lastModified()));
+            for(int i=0;i<n;i++) {
+                out.write(accessions[i]);
+                out.write('\t');
+                out.write(Long.toString(offsets[i]));
+                out.write('\t');
+                out.write(Integer.toString(lengths[i]));
+                out.write('\t');
+                out.write(Integer.toString(residues[i]));
+                out.write('\n');
+            }
+        }
+    }
+    
+    /**
+     * Load the index that accompanies a FASTA file.
+     * 
+     * @param fastaPath Path to the FASTA file
+     * 
+     * @return The index, or null if no index exists or the FASTA file has 
+     * changed since the index was built.
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public static FastaIndex load(String fastaPath) throws Exception {
+        File fasta = new File(fastaPath);
+        File file = new File(indexPath(fastaPath));
+        if(!file.exists()) {
+            return null;
+        }
+        
+        FastaIndex index = new FastaIndex();
+        try(BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line = br.readLine();
+            if(line == null) {
+                return null;
+            }
+            
+            /* Reject indexes built for a different version of the file */
+            String[] tokens = line.split("\t");
+            if(tokens.length != 3 || 
+               !tokens[0].equals(MAGIC) ||
+               Long.parseLong(tokens[1]) != fasta.length() ||
+               Long.parseLong(tokens[2]) != fasta.lastModified()) {
+                return null;
+            }
+            
+            while((line=br.readLine()) != null) {
+                tokens = line.split("\t");
+                index.add(tokens[0],
+                          Long.parseLong(tokens[1]),
+                          Long.parseLong(tokens[2]),
+                          Integer.parseInt(tokens[3]));
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Find the entry number of a protein accession.
+     * 
+     * @param accession Protein accession
+     * 
+     * @return Entry number, or -1 if the accession is not indexed.
+     */
+    public int find(String accession) {
+        Integer i = positions.get(accession);
+        return i == null ? -1 : i;
+    }
+    
+    /**
+     * Retrieve all distinct accessions in the order they appear in the file.
+     * 
+     * @return Indexed accessions
+     */
+    public Set<String> accessions() {
+        return positions.keySet();
+    }
+    
+    /**
+     * Retrieve the accession of an entry.
+     * @param i Entry number
+     * @return Protein accession
+     */
+    public String accession(int i) {
+        return accessions[i];
+    }
+    
+    /**
+     * Retrieve the byte offset of the sequence block of an entry.
+     * @param i Entry number
+     * @return Offset of the first byte after the accession line
+     */
+    public long offset(int i) {
+        return offsets[i];
+    }
+    
+    /**
+     * Retrieve the length in bytes of the sequence block of an entry, 
+     * including line terminators.
+     * @param i Entry number
+     * @return Length in bytes
+     */
+    public int length(int i) {
+        return lengths[i];
+    }
+    
+    /**
+     * Retrieve the number of residues in the sequence of an entry.
+     * @param i Entry number
+     * @return Number of residues
+     */
+    public int residues(int i) {
+        return residues[i];
+    }
+    
+    /**
+     * Report how many distinct accessions are indexed.
+     * @return Number of accessions
+     */
+    public int size() {
+        return positions.size();
+    }
+    
+    /**
+     * Report how many entries are indexed, including entries whose accession
+     * is repeated later in the file. Entry numbers range from zero to one less
+     * than this value.
+     * @return Number of entries
+     */
+    public int entries() {
+        return n;
+    }
+}
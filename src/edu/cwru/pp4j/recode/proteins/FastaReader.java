@@ -0,0 +1,174 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+
+/**
+ * Reads a FASTA file one record at a time. Only the record being read is held
+ * in memory, so memory use is bounded by the largest single protein rather 
+ * than by the size of the database. Records are returned in the order they
+ * appear in the file, using the same parsing rules as {@link Fasta}. Gzip 
+ * compressed files are inflated as they are read.
+ * <pre>
+ * try(FastaReader reader = new FastaReader(path, true)) {
+ *     FastaRecord record;
+ *     while((record=reader.read()) != null) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * 
+ * @author Sean Maxwell
+ */
+public class FastaReader implements Iterable<FastaRecord>, AutoCloseable {
+    private final BufferedReader br;
+    private final boolean enforceUniprot;
+    private final StringBuilder sequence;
+    private String accessionLine;
+    private long count;
+    
+    /**
+     * Constructor opens the file located at the argument path for reading.
+     * 
+     * @param path location of a FASTA protein sequence file
+     * @param enforceUniprotAccession When set to true, {@link #read()} will
+     * throw an Exception if the accession line does not contain a valid 
+     * Uniprot accession number.
+     * 
+     * @throws Exception if the request cannot be fulfilled. 
+     */
+    public FastaReader(String path, boolean enforceUniprotAccession) throws Exception {
+        br = CompressedFiles.newReader(path);
+        enforceUniprot = enforceUniprotAccession;
+        sequence = new StringBuilder();
+        accessionLine = null;
+        count = 0;
+    }
+    
+    /**
+     * Build a record from the accession and sequence accumulated so far.
+     */
+    private FastaRecord emit() throws Exception {
+        /* If not a Uniprot accession, terminate here */
+        if(enforceUniprot && !Fasta.isUniprot(accessionLine)) {
+            throw new Exception(String.format("Encountered non-Uniprot accession %s parsing database",accessionLine));
+        }
+        count++;
+        return new FastaRecord(accessionLine,sequence.toString());
+    }
+    
+    /**
+     * Read the next record from the file.
+     * 
+     * @return The next record, or null when the end of the file is reached.
+     * 
+     * @throws Exception if the file cannot be read, an accession is invalid, 
+     * or the file ends without having contained any sequences.
+     */
+    public FastaRecord read() throws Exception {
+        String line;
+        FastaRecord record = null;
+        
+        while(record == null && (line=br.readLine()) != null) {
+            /* Be flexible, and ignore blank lines */
+            if(line.equals("")) continue;
+            
+            /* Start of new sequence */
+            if(line.startsWith(">")) {
+                if(accessionLine != null) {
+                    record = emit();
+                }
+                accessionLine = Fasta.parseAccession(line.substring(1));
+                sequence.delete(0, sequence.length());
+            }
+            
+            /* Extension of amino acid sequence */
+            else {
+                sequence.append(line.toUpperCase());
+            }
+        }
+        
+        /* End of file reached with a sequence pending */
+        if(record == null && accessionLine != null) {
+            record = emit();
+            accessionLine = null;
+        }
+        
+        /* If database in empty, it was invalid */
+        if(record == null && count == 0) {
+            throw new Exception("The database contained no protein sequences");
+        }
+        
+        return record;
+    }
+    
+    /**
+     * Iterate over the remaining records of the file. Exceptions thrown while
+     * reading are rethrown as unchecked exceptions.
+     * 
+     * @return Iterator over records
+     */
+    @Override
+    public Iterator<FastaRecord> iterator() {
+        return new Iterator<FastaRecord>() {
+            private FastaRecord next = advance();
+            
+            private FastaRecord advance() {
+                try {
+                    return read();
+                }
+                catch(Exception e) {
+                    throw new IllegalStateException(e.getMessage(),e);
+                }
+            }
+            
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public FastaRecord next() {
+                if(next == null) {
+                    throw new NoSuchElementException();
+                }
+                FastaRecord r = next;
+                next = advance();
+                return r;
+            }
+        };
+    }
+    
+    /**
+     * Close the underlying file.
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    @Override
+    public void close() throws IOException {
+        br.close();
+    }
+}
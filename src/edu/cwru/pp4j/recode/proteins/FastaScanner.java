@@ -0,0 +1,254 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RecursiveAction;
+
+import edu.cwru.pp4j.recode.io.MappedFile;
+
+/**
+ * Byte level scanner for a range of a memory-mapped FASTA file. Subclasses 
+ * receive a call when a record begins, for every residue, and when the record
+ * ends. Because records begin at a '&gt;' at the start of a line, a file can 
+ * be split into independent chunks at record boundaries and the chunks scanned
+ * in parallel, which is what {@link #scanAll(MappedFile, int, ScannerFactory)}
+ * does on a fork-join pool.
+ * 
+ * @author Sean Maxwell
+ */
+abstract class FastaScanner {
+    private static final int BLOCK = 1<<20;
+    
+    /**
+     * Creates one scanner per chunk for parallel scans.
+     */
+    interface ScannerFactory {
+        FastaScanner create();
+    }
+    
+    private final boolean enforceUniprot;
+    
+    FastaScanner(boolean enforceUniprotAccession) {
+        enforceUniprot = enforceUniprotAccession;
+    }
+    
+    /**
+     * Called when a new record begins.
+     * @param accession Accession parsed from the accession line
+     * @param offset Position of the first byte after the accession line
+     */
+    abstract void begin(String accession, long offset) throws Exception;
+    
+    /**
+     * Called for each residue (non white space byte) of the current record.
+     * @param b Residue code as it appears in the file
+     */
+    abstract void residue(byte b);
+    
+    /**
+     * Called when the current record ends.
+     * @param position Position of the first byte after the record
+     */
+    abstract void end(long position) throws Exception;
+    
+    private void header(byte[] header, int length, long offset) throws Exception {
+        String accession = Fasta.parseAccession(new String(header,0,length,StandardCharsets.UTF_8));
+        if(enforceUniprot && !Fasta.isUniprot(accession)) {
+            throw new Exception(String.format("Encountered non-Uniprot accession %s parsing database",accession));
+        }
+        begin(accession,offset);
+    }
+    
+    /**
+     * Scan a range of the file. The range must begin at the start of a line.
+     * Anything before the first accession line is ignored.
+     * 
+     * @param file Mapped FASTA file
+     * @param from First byte of range
+     * @param to First byte after range
+     * 
+     * @throws Exception if an accession is invalid.
+     */
+    void scan(MappedFile file, long from, long to) throws Exception {
+        byte[] buffer = new byte[(int)Math.min(BLOCK, Math.max(to-from,1))];
+        byte[] header = new byte[256];
+        int headerLength = 0;
+        boolean inHeader = false;
+        boolean inRecord = false;
+        boolean lineStart = true;
+        long position = from;
+        
+        while(position < to) {
+            int read = (int)Math.min(buffer.length, to-position);
+            file.get(position, buffer, 0, read);
+            for(int i=0;i<read;i++,position++) {
+                byte b = buffer[i];
+                
+                /* Accumulate the accession line until it ends */
+                if(inHeader) {
+                    if(b == '\n') {
+                        header(header,headerLength,position+1);
+                        inHeader = false;
+                        inRecord = true;
+                        lineStart = true;
+                    }
+                    else {
+                        if(headerLength == header.length) {
+                            header = Arrays.copyOf(header,header.length*2);
+                        }
+                        header[headerLength++] = b;
+                    }
+                    continue;
+                }
+                
+                /* Start of new sequence */
+                if(lineStart && b == '>') {
+                    if(inRecord) {
+                        end(position);
+                    }
+                    inHeader = true;
+                    inRecord = false;
+                    headerLength = 0;
+                    continue;
+                }
+                
+                /* Extension of amino acid sequence */
+                lineStart = (b == '\n');
+                if(inRecord && b > ' ') {
+                    residue(b);
+                }
+            }
+        }
+        
+        /* An accession line at the end of the file with no trailing newline */
+        if(inHeader) {
+            header(header,headerLength,position);
+            inRecord = true;
+        }
+        if(inRecord) {
+            end(position);
+        }
+    }
+    
+    /**
+     * Find record boundaries that split the file into roughly equal chunks.
+     * 
+     * @param file Mapped FASTA file
+     * @param chunks Desired number of chunks
+     * 
+     * @return Chunk boundaries, the first being 0 and the last the file size.
+     */
+    static long[] split(MappedFile file, int chunks) {
+        List<Long> boundaries = new ArrayList<>();
+        long size = file.size();
+        boundaries.add(0L);
+        for(int k=1;k<chunks;k++) {
+            long position = Math.max(k*(size/chunks), boundaries.get(boundaries.size()-1)+1);
+            
+            /* Advance to the next '>' at the start of a line */
+            while(position < size && !(file.get(position) == '>' && file.get(position-1) == '\n')) {
+                position++;
+            }
+            if(position >= size) {
+                break;
+            }
+            boundaries.add(position);
+        }
+        boundaries.add(size);
+        
+        long[] r = new long[boundaries.size()];
+        for(int i=0;i<r.length;i++) {
+            r[i] = boundaries.get(i);
+        }
+        return r;
+    }
+    
+    /**
+     * Scan a whole file, splitting it into chunks that are scanned in parallel
+     * on a fork-join pool.
+     * 
+     * @param file Mapped FASTA file
+     * @param threads Number of threads to use
+     * @param factory Creates the scanner for each chunk
+     * 
+     * @return The scanner for each chunk, in file order.
+     * 
+     * @throws Exception if any chunk cannot be scanned.
+     */
+    static List<FastaScanner> scanAll(final MappedFile file, int threads, ScannerFactory factory) throws Exception {
+        final long[] boundaries = split(file, Math.max(1,threads)*4);
+        final List<FastaScanner> scanners = new ArrayList<>();
+        List<RecursiveAction> tasks = new ArrayList<>();
+        
+        for(int i=0;i<boundaries.length-1;i++) {
+            final FastaScanner scanner = factory.create();
+            final int chunk = i;
+            scanners.add(scanner);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    try {
+                        scanner.scan(file, boundaries[chunk], boundaries[chunk+1]);
+                    }
+                    catch(Exception e) {
+                        throw new IllegalStateException(e.getMessage(),e);
+                    }
+                }
+            });
+        }
+        
+        /* A single chunk is scanned on the calling thread */
+        if(tasks.size() == 1 || threads <= 1) {
+            for(int i=0;i<scanners.size();i++) {
+                scanners.get(i).scan(file, boundaries[i], boundaries[i+1]);
+            }
+            return scanners;
+        }
+        
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                }
+            }).get();
+        }
+        catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            while(cause instanceof IllegalStateException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw new Exception(cause.getMessage(),cause);
+        }
+        finally {
+            pool.shutdown();
+        }
+        return scanners;
+    }
+}
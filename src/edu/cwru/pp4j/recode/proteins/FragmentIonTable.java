@@ -0,0 +1,352 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the b and y fragment ion ladders of a batch of (recoded) peptides 
+ * to a columnar binary table. Ions are computed from prefix sums of the 
+ * residue masses into reused arrays and encoded straight into direct 
+ * buffers. Every ion containing a phosphorylated S or T (B or U) is written
+ * a second time with the neutral loss of H3PO4 (-98 Da); phosphorylated Y 
+ * (Z) rarely loses it and is not.<br><br>
+ * 
+ * Each column is written to its own temporary file while peptides are added
+ * and the columns are concatenated on {@link #close()}, so a column is one
+ * contiguous, aligned range of the table that can be memory-mapped (e.g. 
+ * with {@link edu.cwru.pp4j.recode.io.MappedFile}) and read as an array. 
+ * The table is big endian:
+ * <pre>
+ * int    magic          0x46524147 ("FRAG")
+ * int    version        1
+ * int    max charge
+ * int    columns        6
+ * long   p              number of peptides
+ * long   n              number of ions
+ * long   offset[6]      byte offset of each column below
+ * long   start[p+1]     number of the first ion of each peptide, and n
+ * double mz[n]          ion m/z
+ * short  ordinal[n]     number of residues in the fragment
+ * byte   type[n]        {@value #B_ION} for b ions, {@value #Y_ION} for y ions
+ * byte   charge[n]      ion charge
+ * byte   loss[n]        {@value #LOSS_NONE}, or {@value #LOSS_H3PO4} for a 
+ *                       loss of H3PO4
+ * </pre>
+ * The ions of a peptide are ordered by type, then ordinal, then charge, with
+ * each loss ion following the intact ion. Fragments containing a residue 
+ * missing from the {@link ResidueMasses} table have NaN m/z.
+ * 
+ * @author Sean Maxwell
+ */
+public class FragmentIonTable implements AutoCloseable {
+    public static final int MAGIC = 0x46524147;
+    public static final int VERSION = 1;
+    public static final byte B_ION = 0;
+    public static final byte Y_ION = 1;
+    public static final byte LOSS_NONE = 0;
+    public static final byte LOSS_H3PO4 = 1;
+    
+    private static final int HEADER = 80;
+    private static final int BUFFER_SIZE = 1<<20;
+    
+    /* Columns, in file order, and the bytes per entry of each */
+    private static final int START = 0;
+    private static final int MZ = 1;
+    private static final int ORDINAL = 2;
+    private static final int TYPE = 3;
+    private static final int CHARGE = 4;
+    private static final int LOSS = 5;
+    private static final int[] WIDTHS = {8, 8, 2, 1, 1, 1};
+    
+    private final String path;
+    private final ResidueMasses table;
+    private final int maxCharge;
+    private final File[] files;
+    private final FileChannel[] channels;
+    private final ByteBuffer[] buffers;
+    private double[] prefix;
+    private int[] losses;
+    private long peptides;
+    private long ions;
+    
+    /**
+     * Constructor creates an empty table.
+     * @param path Path of the table file
+     * @param table Residue masses, including fixed modifications
+     * @param maxCharge Largest fragment charge (fragments are written for 
+     * charges 1 to maxCharge)
+     * @throws IOException if the temporary column files cannot be created.
+     */
+    public FragmentIonTable(String path, ResidueMasses table, int maxCharge) throws IOException {
+        if(maxCharge < 1 || maxCharge > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid maximum fragment charge "+maxCharge);
+        }
+        this.path = path;
+        this.table = table;
+        this.maxCharge = maxCharge;
+        files = new File[WIDTHS.length];
+        channels = new FileChannel[WIDTHS.length];
+        buffers = new ByteBuffer[WIDTHS.length];
+        try {
+            for(int c=0;c<WIDTHS.length;c++) {
+                files[c] = new File(path+"."+c+".tmp");
+                channels[c] = new RandomAccessFile(files[c], "rw").getChannel();
+                channels[c].truncate(0);
+                buffers[c] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+        }
+        catch(IOException e) {
+            deleteColumns();
+            throw e;
+        }
+        prefix = new double[64];
+        losses = new int[64];
+        peptides = 0;
+        ions = 0;
+    }
+    
+    /**
+     * Make room in the buffer of a column for one more entry.
+     */
+    private ByteBuffer column(int c) throws IOException {
+        ByteBuffer buffer = buffers[c];
+        if(buffer.remaining() < WIDTHS[c]) {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                channels[c].write(buffer);
+            }
+            buffer.clear();
+        }
+        return buffer;
+    }
+    
+    /**
+     * Append the intact ion, and its H3PO4 loss if it has one, at each 
+     * charge.
+     */
+    private void ion(double mass, byte type, int ordinal, boolean loss) throws IOException {
+        for(int z=1;z<=maxCharge;z++) {
+            for(int l=0;l<=(loss ? 1 : 0);l++) {
+                double m = l == 0 ? mass : mass-Constants.MASS_PHOSPHORIC_ACID;
+                column(MZ).putDouble((m+z*Constants.MASS_PROTON)/z);
+                column(ORDINAL).putShort((short)ordinal);
+                column(TYPE).put(type);
+                column(CHARGE).put((byte)z);
+                column(LOSS).put(l == 0 ? LOSS_NONE : LOSS_H3PO4);
+                ions++;
+            }
+        }
+    }
+    
+    /**
+     * Append the fragment ions of a peptide.
+     * @param residues Amino acid sequence of the peptide, with phosphorylated
+     * S/T/Y recoded as B/U/Z
+     * @throws IOException if the table cannot be written.
+     */
+    public void add(CharSequence residues) throws IOException {
+        int length = residues.length();
+        if(length > Short.MAX_VALUE) {
+            throw new IOException(String.format("Peptide of length %d is too long",length));
+        }
+        if(prefix.length < length+1) {
+            prefix = new double[Math.max(length+1, prefix.length*2)];
+            losses = new int[prefix.length];
+        }
+        
+        /* Prefix sums of the residue masses and of the residues that can
+         * lose H3PO4 */
+        prefix[0] = 0;
+        losses[0] = 0;
+        for(int i=0;i<length;i++) {
+            char c = residues.charAt(i);
+            prefix[i+1] = prefix[i]+table.mass(c);
+            losses[i+1] = losses[i]+(c == 'B' || c == 'U' ? 1 : 0);
+        }
+        
+        column(START).putLong(ions);
+        for(int j=1;j<length;j++) {
+            ion(prefix[j], B_ION, j, losses[j] > 0);
+        }
+        for(int j=1;j<length;j++) {
+            ion(prefix[length]-prefix[length-j]+Constants.MASS_WATER, Y_ION, j, losses[length]-losses[length-j] > 0);
+        }
+        peptides++;
+    }
+    
+    /**
+     * Append the fragment ions of a range of an array of peptides.
+     * @param peptides Amino acid sequences of the peptides
+     * @param from First peptide to append
+     * @param to Position following the last peptide to append
+     * @throws IOException if the table cannot be written.
+     */
+    public void add(CharSequence[] peptides, int from, int to) throws IOException {
+        for(int i=from;i<to;i++) {
+            add(peptides[i]);
+        }
+    }
+    
+    /**
+     * @return The number of peptides appended so far.
+     */
+    public long peptides() {
+        return peptides;
+    }
+    
+    /**
+     * @return The number of ions appended so far.
+     */
+    public long ions() {
+        return ions;
+    }
+    
+    /**
+     * Write the header and concatenate the columns into the table, then 
+     * delete the temporary column files. If the table cannot be written, it
+     * is deleted rather than left incomplete.
+     * @throws IOException if the table cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if(channels[START] == null) {
+            return;
+        }
+        boolean written = false;
+        try {
+            column(START).putLong(ions);
+            long[] offsets = new long[WIDTHS.length];
+            long offset = HEADER;
+            for(int c=0;c<WIDTHS.length;c++) {
+                ByteBuffer buffer = buffers[c];
+                buffer.flip();
+                while(buffer.hasRemaining()) {
+                    channels[c].write(buffer);
+                }
+                offsets[c] = offset;
+                offset += channels[c].size();
+            }
+            
+            try(FileChannel out = new RandomAccessFile(path, "rw").getChannel()) {
+                out.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(VERSION).putInt(maxCharge).putInt(WIDTHS.length);
+                header.putLong(peptides).putLong(ions);
+                for(long o : offsets) {
+                    header.putLong(o);
+                }
+                header.flip();
+                while(header.hasRemaining()) {
+                    out.write(header);
+                }
+                for(int c=0;c<WIDTHS.length;c++) {
+                    long size = channels[c].size();
+                    long position = 0;
+                    while(position < size) {
+                        position += channels[c].transferTo(position, size-position, out.position(offsets[c]+position));
+                    }
+                }
+            }
+            written = true;
+        }
+        finally {
+            deleteColumns();
+            if(!written) {
+                new File(path).delete();
+            }
+        }
+    }
+    
+    /**
+     * Delete the temporary column files and the table, without writing it,
+     * e.g. when reading the peptides fails. The table cannot be written 
+     * afterwards.
+     */
+    public void discard() {
+        try {
+            deleteColumns();
+        }
+        catch(IOException e) {
+            /* The column files are deleted regardless */
+        }
+        new File(path).delete();
+    }
+    
+    /**
+     * Close and delete the temporary column files.
+     */
+    private void deleteColumns() throws IOException {
+        IOException failure = null;
+        for(int c=0;c<WIDTHS.length;c++) {
+            try {
+                if(channels[c] != null) {
+                    channels[c].close();
+                }
+            }
+            catch(IOException e) {
+                failure = failure == null ? e : failure;
+            }
+            channels[c] = null;
+            if(files[c] != null) {
+                files[c].delete();
+            }
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+    
+    /**
+     * Write the fragment ion table of every peptide of a (recoded) FASTA 
+     * file, in file order.
+     * @param fastaPath Path to the FASTA file of peptides
+     * @param tablePath Path of the table file
+     * @param table Residue masses, including fixed modifications
+     * @param maxCharge Largest fragment charge
+     * @return The number of peptides written
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public static long write(String fastaPath, String tablePath, ResidueMasses table, int maxCharge) throws Exception {
+        try(FastaReader reader = new FastaReader(fastaPath, false)) {
+            FragmentIonTable ions = new FragmentIonTable(tablePath, table, maxCharge);
+            try {
+                FastaRecord record;
+                while((record=reader.read()) != null) {
+                    ions.add(record.getSequence());
+                }
+            }
+            catch(Exception e) {
+                ions.discard();
+                throw e;
+            }
+            
+            /* The columns are only joined into the table once every peptide
+             * has been read */
+            ions.close();
+            return ions.peptides();
+        }
+    }
+}
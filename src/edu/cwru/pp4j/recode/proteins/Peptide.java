@@ -54,6 +54,15 @@ public interface Peptide {
      */
     public String sequence();
     
+    /**
+     * The amino acid sequence of the peptide, which may be a view of the 
+     * parent protein rather than a copy. Prefer this to {@link #sequence()}
+     * when the residues are only read.
+     * 
+     * @return Amino acid residues of the peptide.
+     */
+    public CharSequence residues();
+    
     /**
      * The monoisotopic mass of the peptide.
      * 
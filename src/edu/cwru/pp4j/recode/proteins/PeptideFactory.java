@@ -20,11 +20,10 @@
  */
 package edu.cwru.pp4j.recode.proteins;
 
-import java.util.regex.Matcher;
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Encapsulates the necessary information and algorithms to iteratively create
@@ -42,34 +41,31 @@ import java.util.concurrent.LinkedBlockingQueue;
  * <li> Cleavages are likely to happen but not guaranteed (termed as a "missed cleavage").</li>
  * </ol>
  * 
- * For the first item, we search along a protein sequence until we find the next
- * cut site and then return an array containing the peptides that were created 
- * by cleaving at that site. Subsequent searched start from the last site 
- * and move toward the end of the protein.<br><br>
+ * For the first item, start() scans the whole protein sequence for cut 
+ * sites once and records the fragments created by cleaving at each site as
+ * a {@link Digest}. Each call to GetNext() then returns the peptides for the
+ * fragments of the next cleavage event.<br><br>
  * 
  * For the second item, the number of missed cleavages sets a sort of 
  * sliding window on what peptides can be generated. If the user specifies 
- * N missed cleavages, the implementation allocates N+1 queues to hold peptide
- * sequences. The order in which peptides are added and removed from the queues
- * simulates a sliding window that encapsulates the generation of peptides with
- * missed cleavages.<br><br>
+ * N missed cleavages, each fragment is returned followed by the peptides 
+ * spanning it and up to N fragments preceding it. Peptides are built 
+ * directly from the fragment positions, so no intermediate strings are 
+ * created and there is no recursion. When minimum and maximum peptide lengths
+ * are set, the window is narrowed to the peptides within the bounds before
+ * any of them are built, which keeps "Non-specific" digests practical.<br><br>
  * 
  * Pseudocode:
  * <pre>
- * queues[] &lt;- queues up to number of missed cleavages + 1
+ * fragments[] &lt;- (start,end) of every fragment from all cleave events
  * 
- * <strong>while</strong> there are cleave sites remaining
- *      peptides[] &lt;- peptides from next cleave event 
- *      <strong>for</strong> i=0 to number of peptides - 1
- *          <strong>for</strong> j=0 to number of missed cleavages
- *              queues[j].add(peptides[i]);
- *          <strong>endfor</strong>
- *          <strong>for</strong> j=0 to the number of full queues -1
- *              output queues[j] as string
- *              queues[j].remove()
+ * <strong>for each</strong> cleave event
+ *      <strong>for</strong> each fragment j of the event
+ *          <strong>for</strong> i=0 to min(j, number of missed cleavages)
+ *              output sequence from fragments[j-i].start to fragments[j].end
  *          <strong>endfor</strong>
  *      <strong>endfor</strong>
- * <strong>endwhile</strong>
+ * <strong>endfor</strong>
  * </pre>
  * 
  * Example:
@@ -78,21 +74,15 @@ import java.util.concurrent.LinkedBlockingQueue;
  * Peptide: AKTRL
  * Missed Cleavages: 2
  * 
- * queues = [[],[],[]]
+ * fragments = ["AK","TR","L"]
  * First Call to GetNext()
- *      peptides = ["AK"]
- *      queues = [["AK"],["AK"]]
  *      output : "AK"
  * 
  * Second Call to GetNext()
- *      peptides = ["TR"]
- *      queues = [["TR"],["AK","TR"]]
  *      output : "TR"
  *      output : "AKTR"
  * 
  * Third Call to GetNext()
- *      peptides = ["L"]
- *      queues = [["L"],["TR","L"],["AK","TR","L"]]
  *      output : "L"
  *      output : "TRL"
  *      output : "AKTRL"
@@ -101,22 +91,25 @@ import java.util.concurrent.LinkedBlockingQueue;
  * @author Sean Maxwell
  */
 public class PeptideFactory {
-    private final HashMap<String,Protease> proteases;
-    private Matcher m;
-    private String  seq = "";
+    private ProteaseRegistry proteases;
+    private CharSequence seq = "";
     private String  pro = "";
-    private int     start = 0;
     private String  message = "OK";
-    private LinkedBlockingQueue[] peptides;
+    private Digest  digest;
+    private int     event    = 0;
     private long    found    = 0;
     private int     count    = 0;
     private int     nmiss    = 0;
-    private int     search   = 0;
+    private int     minLength = 0;
+    private int     maxLength = Integer.MAX_VALUE;
+    private Specificity specificity = Specificity.FULL;
+    private String  required = null;
+    private SubsequenceDigest subsequences;
     private Protease prot;
 
     /**
-     * Constructor creates a new peptide factory with a database of available
-     * proteases configured.
+     * Constructor creates a new peptide factory with the shared registry of
+     * available proteases, so no patterns are compiled.
      *
      * @param strict Indicates if the proteases should use Expasy rules verbatim
      * or use a more relaxed approach of cleaving predictably on single amino
@@ -124,72 +117,46 @@ public class PeptideFactory {
      *
      */
     public PeptideFactory(boolean strict) {
-        /* Create the lookup table of Protease deffinitions */
-        proteases = new HashMap<>();
-        proteases.put("AspN",           new Protease("D",0));
-        proteases.put("AspN/N->D",      new Protease("[DE]",0));
-        proteases.put("Chymotrypsin",   new Protease("[FYW]",1));
-        proteases.put("GluC",           new Protease("[E]",1));
-        proteases.put("LysC",           new Protease("K",1));
-        proteases.put("Pepsin, pH=1.3", new Protease("[FL]",0));
-        proteases.put("Pepsin, pH=2.0", new Protease("[FLWY]",0));
-        proteases.put("Trypsin",        new Protease("[RK]",1));
-        proteases.put("Non-specific",   new Protease(".",1));
-
-        /* If we are being strict, create site matchers and exclusions for 
-         * relevant proteases.
-         */
-        if(strict) {
-            /* Add site matchers */
-            ((Protease)proteases.get("Chymotrypsin"  )).addMatcher("([FY][^P])|(W[^MP])"   , 0, 1, 1);
-            
-            /* It is suggested in the Expasy documentation that the Glutamyl 
-             * endopeptidase is inhibited form cleaving when Proline(P) appears
-             * 2 postions before E, after E or 2 amino acids after E, and that
-             * Asp (D) immediately after E has a similar affect. However, in
-             * in testing this does not seem to be enforced on the PeptideCutter
-             * interface and cleavage happens predictably on all E
-            ((Protease)proteases.get("GluC"          )).addMatcher("[^P]..[E][^DP][^P]"    , 0, 1, 1);
-            */
-            
-            ((Protease)proteases.get("Pepsin, pH=1.3")).addMatcher("[^HKR][^P][^R][FL][^P]", 3, 1, 0);
-            ((Protease)proteases.get("Pepsin, pH=1.3")).addMatcher("[^HKR][^P][FL].[^P]"   , 2, 2, 1);
-            ((Protease)proteases.get("Pepsin, pH=2.0")).addMatcher("[^HKR][^P][^R][FLWY][^P]"  , 3, 1, 0);
-            ((Protease)proteases.get("Pepsin, pH=2.0")).addMatcher("[^HKR][^P][FLWY].[^P]"     , 2, 2, 1);
-            ((Protease)proteases.get("Trypsin"       )).addMatcher("(WKP)|(MRP)|[KR][^P]"    , 1, 1, 1);
-
-            /* Add site exclusions */
-            ((Protease)proteases.get("Trypsin"       )).addExclusion("([CD]KD)|(CK[HY])|(CRK)|(RR[HR])", 1, 1);
-        }
-        else {
-            /* Pepsin cuts both before and after the cut site, so add the secondary
-             * cut sites now */
-            ((Protease)proteases.get("Pepsin, pH=1.3")).addMatcher("[FL]" , 0, 0, 0);
-            ((Protease)proteases.get("Pepsin, pH=2.0")).addMatcher("[FLWY]"   , 0, 0, 0);
-            ((Protease)proteases.get("Pepsin, pH=1.3")).addMatcher("[FL]" , 0, 0, 1);
-            ((Protease)proteases.get("Pepsin, pH=2.0")).addMatcher("[FLWY]"   , 0, 0, 1);
-        }
-        
+        this(ProteaseRegistry.getInstance(strict));
+    }
+
+    /**
+     * Constructor creates a new peptide factory using the proteases of the
+     * argument registry. The registry is not modified; proteases added to
+     * the factory are added to a copy of it.
+     *
+     * @param registry Registry of available proteases
+     */
+    public PeptideFactory(ProteaseRegistry registry) {
+        proteases = registry;
     }
 
     /**
      * Stores the argument amino acid sequence in the factory for
-     * use when generating peptides.
+     * use when generating peptides. The sequence is used as is (e.g. a
+     * {@link ByteSequence} view of a loaded database is not copied) unless it
+     * contains lower case residues.
      *
-     * @param s The sequence string to associate with this object.
+     * @param s The sequence to associate with this object.
      *
      */
-    public void setSequence(String s) {
-        this.seq = s.toUpperCase();
+    public void setSequence(CharSequence s) {
+        for(int i=0;i<s.length();i++) {
+            if(Character.isLowerCase(s.charAt(i))) {
+                this.seq = s.toString().toUpperCase();
+                return;
+            }
+        }
+        this.seq = s;
     }
 
     /**
-     * Returns the sequence String stored in the factory.
+     * Returns the sequence stored in the factory.
      *
-     * @return The internal sequence String.
+     * @return The internal sequence.
      *
      */
-    public String getSequence() {
+    public CharSequence getSequence() {
         return this.seq;
     }
 
@@ -225,7 +192,7 @@ public class PeptideFactory {
      */
     public boolean addProtease(String name, String reg, int co) {
         try {
-            this.proteases.put(name, new Protease(reg, co));
+            this.proteases = this.proteases.with(name, new Protease(reg, co));
             return true;
         }
         catch(Exception e) {
@@ -241,7 +208,10 @@ public class PeptideFactory {
             return false;
         }
 
-        if(((Protease)proteases.get(name)).addMatcher(reg , left, right, co)) {
+        /* Shared proteases are copied before they are extended */
+        protease = new Protease(protease);
+        if(protease.addMatcher(reg , left, right, co)) {
+            this.proteases = this.proteases.with(name, protease);
             return true;
         }
         else {
@@ -256,7 +226,9 @@ public class PeptideFactory {
             return false;
         }
 
+        protease = new Protease(protease);
         if(protease.addExclusion(reg , left, right)) {
+            this.proteases = this.proteases.with(name, protease);
             return true;
         }
         else {
@@ -274,6 +246,14 @@ public class PeptideFactory {
         return this.pro;
     }
 
+    /**
+     * Returns the registry of proteases available to the factory.
+     * @return The registry, including any proteases added to the factory
+     */
+    public ProteaseRegistry getProteaseRegistry() {
+        return this.proteases;
+    }
+
     /**
      * Returns the configured Protease object for the factory.
      * @return The protease configured for the factory
@@ -300,6 +280,86 @@ public class PeptideFactory {
         return this.nmiss;
     }
 
+    /**
+     * Set the minimum length of the peptides to generate. Shorter peptides
+     * are skipped during enumeration, before they are built.
+     *
+     * @param length The minimum number of residues
+     */
+    public void setMinPeptideLength(int length) {
+        this.minLength = length;
+    }
+
+    /**
+     * Retrieve the current setting for minimum peptide length.
+     *
+     * @return The minimum number of residues
+     */
+    public int getMinPeptideLength() {
+        return this.minLength;
+    }
+
+    /**
+     * Set the maximum length of the peptides to generate. Longer peptides
+     * are skipped during enumeration, before they are built.
+     *
+     * @param length The maximum number of residues
+     */
+    public void setMaxPeptideLength(int length) {
+        this.maxLength = length;
+    }
+
+    /**
+     * Retrieve the current setting for maximum peptide length.
+     *
+     * @return The maximum number of residues
+     */
+    public int getMaxPeptideLength() {
+        return this.maxLength;
+    }
+
+    /**
+     * Set how many termini of the generated peptides must be cleavage sites.
+     * Semi-specific and non-specific peptides are enumerated directly from 
+     * residue positions within the length bounds, and non-specific peptides
+     * ignore the protease and the number of missed cleavages.
+     *
+     * @param specificity The specificity of the digest
+     */
+    public void setSpecificity(Specificity specificity) {
+        this.specificity = specificity;
+    }
+
+    /**
+     * Retrieve the current setting for specificity.
+     *
+     * @return The specificity of the digest
+     */
+    public Specificity getSpecificity() {
+        return this.specificity;
+    }
+
+    /**
+     * Restrict semi-specific and non-specific peptides to those containing at
+     * least one of the argument residues (e.g. "STY" for peptides that can be
+     * phosphorylated). Peptides without them are never generated.
+     *
+     * @param residues The required residues, or null to generate all peptides
+     */
+    public void setRequiredResidues(String residues) {
+        this.required = residues;
+    }
+
+    /**
+     * Retrieve the residues semi-specific and non-specific peptides must 
+     * contain.
+     *
+     * @return The required residues, or null if there are none
+     */
+    public String getRequiredResidues() {
+        return this.required;
+    }
+
     /**
      * Retrieve how many peptides have been found up to now. The value is
      * updated every time GetNext() is called.
@@ -321,7 +381,9 @@ public class PeptideFactory {
     }
 
     /**
-     * Initializes the factory to sequentially generate peptides.
+     * Initializes the factory to sequentially generate peptides. The whole 
+     * sequence is cleaved here, and the peptides are then generated from the
+     * resulting {@link Digest} by subsequent calls to GetNext().
      *
      * @return true for success and false when an error occurs.
      *
@@ -330,27 +392,42 @@ public class PeptideFactory {
      *
      */
     public boolean start() {
-        int i;
+        return this.start(null);
+    }
 
+    /**
+     * Initializes the factory to sequentially generate peptides from a 
+     * digest of the sequence computed earlier (e.g. by a {@link DigestCache}),
+     * so the sequence is not cleaved again.
+     *
+     * @param cached Digest of the configured sequence with the configured
+     * protease, or null to cleave the sequence.
+     *
+     * @return true for success and false when an error occurs.
+     *
+     * @see #start()
+     *
+     */
+    public boolean start(Digest cached) {
         try {
-            this.peptides = new LinkedBlockingQueue[this.nmiss+1];
-
-            /* Initialize the peptide stacks for missed cleavages */
-            for(i=0;i<this.nmiss+1;i++) {
-                peptides[i] = new LinkedBlockingQueue();
-            }
-
             /* initialize the internal reference to the requested protease */
             this.prot = (Protease)this.proteases.get(this.pro);
 
-            /* Set the matcher to the configured protease pattern matcher */
-            this.m  = this.prot.getMatcher(this.seq); //cutters.matcher(this.seq);
-
-            /* Set start position (the position to cut from) to 0 */
-            this.start  = 0;
+            /* Find all the cleavage sites of the sequence, unless any
+             * subsequence is a peptide */
+            if(this.specificity == Specificity.NONE) {
+                this.digest = null;
+                this.subsequences = SubsequenceDigest.nonSpecific(this.seq, this.minLength, this.maxLength, this.required);
+            }
+            else {
+                this.digest = cached != null ? cached : new Digest(this.prot, this.seq);
+                this.subsequences = this.specificity == Specificity.SEMI ?
+                    SubsequenceDigest.semiSpecific(this.digest, this.nmiss, this.minLength, this.maxLength, this.required) : null;
+            }
+            
+            this.event  = 0;
             this.found  = 0;
             this.count  = 0;
-            this.search = 0;
             return true;
         }
         catch(Exception e) {
@@ -358,81 +435,23 @@ public class PeptideFactory {
             return false;
         }
     }
-
-    /**
-     * Trim a Peptide array to the argument length.
-     *
-     * @param array Array to trim
-     * @param length New array length
-     *
-     * @return Trimmed array
-     */
-    private PeptideSimple[] TrimPeptideArray(PeptideSimple[] array, int length) {
-        PeptideSimple[] pa = new PeptideSimple[length];
-        int i;
-
-        for(i=0;i<length;i++) {
-            pa[i] = array[i];
-        }
-
-        return pa;
-    }
-
+    
     /**
-     * Generates an array of peptides from an amino acid sequence, a cleavage
-     * site position and an array of offsets from the site position at which to
-     * cleave the sequence.
-     *
-     * @param seq The full protein sequence
-     * @param offsets The offsets from the cut site to cleave at
-     * @param site The cut site
+     * Retrieve the digest of the sequence computed by start().
      * 
-     * @return The array of peptides
+     * @return The digest, or null if the factory has not been started or
+     * the digest is non-specific.
      */
-    private PeptideSimple[] CutPeptide(String seq, int[] offsets, int site) {
-        int j;
-        int k;
-        int n_offsets = 0;
-        PeptideSimple r[];
-
-        /* Get the number of offsets */
-        for(j=0;j<offsets.length;j++) {
-            if(offsets[j] != -1) {
-                n_offsets++;
-            }
-        }
-
-        /* Allocate return array */
-        r = new PeptideSimple[n_offsets];
-
-        /* Extract the peptides */
-        k = 0;
-        for(j=0;j<offsets.length;j++) {
-            if(offsets[j] != -1) {
-                /* If the pepetide would be empty because multiple cuts happened
-                 * in the same place, skip it because we don't want empty
-                 * strings to be returned in the array.
-                 */
-                if((site+offsets[j])-this.start > 0) {
-                    r[k] = new PeptideSimple(seq.substring(this.start,site+offsets[j]),
-                                       this.start);
-                    k++;
-                }
-
-                /* Move the start pointer to the next cut-from position */
-                this.start = site+offsets[j];
-            }
-        }
-
-        /* Trim any null elements off the end of the array. They appear there
-         * when empty strings were skipped in the loop.
-         */
-        return this.TrimPeptideArray(r,k);
-        
+    public Digest getDigest() {
+        return this.digest;
     }
 
     /**
-     * Returns the next set if peptides from the factory.
+     * Returns the next set if peptides from the factory. Each call returns 
+     * the peptides ending in the fragments produced by the next cleavage 
+     * event, each fragment followed by the peptides that extend it to the 
+     * left by 1 to N missed cleavages. Semi-specific and non-specific 
+     * peptides are instead returned for one end position per call.
      *
      * @param onlyPeptidesWithThisManyMissedCleavages Dictates that the factory
      * only return peptides with exactly this many missed cleavages.
@@ -444,172 +463,102 @@ public class PeptideFactory {
      *
      */
     public List<Peptide> GetNext(int onlyPeptidesWithThisManyMissedCleavages) {
-        PeptideSimple[] r;
-        String   pep;
-        Object[] peps;
-        List<Peptide> rpeps = new ArrayList<>();
+        List<Peptide> rpeps;
+        int first;
+        int last;
+        int fewest;
+        int most;
         int i;
-        int j;
-        int k;
-        int t;
-        int nres = 0;
-        int cut_sites;
-        int[] cut_pos = new int[5];
-        int res_count = 0;
-        int r_start;
         
-        /* If we reached the end of the sequence, return null */
-        if(this.start == -1) {
-            return null;
-        }
-
-        /* If our search parameter is beyond the end of the string */
-        if(this.search > this.seq.length()) {
-            return null;
-        }
-
-        /* Extract the next peptide */
-        if(this.m.find(this.search)) {
-            cut_sites = 0;
-
-            /* The maximum window for cut sites is 5 base pairs, so the cut
-             * position array is a static 5 elements and we reset it on every
-             * iteration of the loop. If we ever have to increase the window for
-             * a new protease we will want to increase this length.
-             */
-            cut_pos[0] = -1;
-            cut_pos[1] = -1;
-            cut_pos[2] = -1;
-            cut_pos[3] = -1;
-            cut_pos[4] = -1;
-
-            /* Check for exceptions to cut site */
-            for(i=0;i<this.prot.excluderCount();i++) {
-                /* If the candidate cut position is in a region that matches one
-                 * of the configured exceptions to the cut rules for the
-                 * protease, move the search pointer one position forward, and
-                 * continue searching using recursion.
-                 */
-                if(this.prot.isExclusion(i, seq, this.m.start())) {
-                    this.search = this.m.start()+1;
-                    return this.GetNext(onlyPeptidesWithThisManyMissedCleavages);
-                }
-            }
-
-            /* If the candidate cut site was not rejected by an exception, we
-             * need to test each cut rule for the protease to determine how many
-             * positions will cleave in the region */
-            for(i=0;i<this.prot.matcherCount();i++) {
-                cut_pos[i] = this.prot.isCleaveSite(i, seq, this.m.start());
-                if(cut_pos[i] != -1) {
-                    cut_sites++;
-                }
+        /* Semi-specific and non-specific peptides are grouped by end */
+        if(this.subsequences != null) {
+            if(this.event >= this.subsequences.groups()) {
+                return null;
             }
-
-            /* If all the cut rules failed to find a cleave site, move the
-             * search position one character forward and continue using
-             * recursion */
-            if(this.prot.matcherCount() > 0 && cut_sites == 0) {
-                this.search = this.m.start()+1;
-                return this.GetNext(onlyPeptidesWithThisManyMissedCleavages);
-            }
-
-            /* If there were no cut rules to use, because the protease cleaves
-             * predictably on a single amino acid, use the offset from the
-             * protease object for the cut position */
-            else if(this.prot.matcherCount() == 0) {
-                cut_pos[0] = this.prot.offset();
-                cut_sites = 1;
-            }
-
-            /* Cut the peptide on all cut sites. This uses, and updates the
-             * private member "start" so that at completion, it is positioned
-             * at the last cut site. */
-            r = this.CutPeptide(this.seq, cut_pos, this.m.start());
-
-            /* If a situation occured where no cuts were made */
-            if(r.length == 0) {
-                System.err.printf("Strange no-cleave with sites for %s (%d:%d)\nThis is not necessarily an error, but you may want to manually verify that the last few peptides of the protein are being cleaved as expected\n",this.seq,cut_sites,this.m.start());
-                this.search = this.m.start()+1;
-                return this.GetNext(onlyPeptidesWithThisManyMissedCleavages);
-            }
-
-            /* Update the search parameter so that searching continues just past
-             * the last candidate cleave site */
-            this.search = this.m.start()+1;
-
-            /* Update the found counter to include all the cleavages found for
-             * this candidate site */
-            this.found += r.length;
+            rpeps = this.subsequences.peptides(this.event, onlyPeptidesWithThisManyMissedCleavages);
+            this.count += rpeps.size();
+            this.event++;
+            this.found = this.event;
+            return rpeps;
         }
-
-        /* Otherwise, we reached the end of the sequence. Extract the final
-         * peptide if there is anything left */
-        else {
-            if(this.start < this.seq.length()) {
-                r = new PeptideSimple[1];
-                r[0] = new PeptideSimple(this.seq.substring(this.start, this.seq.length()),
-                             this.start);
-                this.found++;
-            }
-            else {
-                r = new PeptideSimple[0];
-            }
-            this.start = -1;
-            this.search = this.seq.length()-1;
+        
+        /* If we reached the end of the sequence, return null */
+        if(this.event >= this.digest.events()) {
+            return null;
         }
-
-        /* Loop over the returned peptides */
-        for(j=0;j<r.length;j++) {
-            
-            /* nres controls how many stacks we pop when generating peptides to
-             * return. nres is equal to the number of fully populated stacks,
-             * where a stack is fully populated when its size is equal to its
-             * index+1 */
-            nres=0;
-            for(i=0;i<this.nmiss+1;i++) {
-                this.peptides[i].add(r[j]);
-                if(this.peptides[i].size() == i+1) {
-                    nres++;
-                    //System.out.printf("%d is full: %s\n",nres,this.peptides[i].toString());
-                }
-            }
-            
-            /* Loop over the number of stacks that have been fully populated. A
-             * stack is fully populated when there are the same number of
-             * elements in the stack as the value of it's index in the array.
-             * This is equivalent to the number of missed cleavages represented
-             * by the stack */
-            for(i=0;i<nres;i++) {
-                pep = "";
-
-                /* Add each peptides on the stack to the temporary string */
-                peps = this.peptides[i].toArray();
-                r_start = ((PeptideSimple)peps[0]).start();
-                for(k=0;k<peps.length;k++) {
-                    pep += ((PeptideSimple)peps[k]).sequence();
-                }
-
-                /* Add the result to the return array */
+        rpeps = new ArrayList<>();
+        
+        /* Loop over the fragments of the next cleavage event, combining each 
+         * with up to N preceding fragments. Peptides only grow with each
+         * missed cleavage, so the length bounds narrow the range of missed
+         * cleavages to enumerate */
+        first = this.event == 0 ? 0 : this.digest.eventEnd(this.event-1);
+        last = this.digest.eventEnd(this.event);
+        for(int j=first;j<last;j++) {
+            fewest = this.minLength <= 0 ? 0 : this.digest.fewestMissed(j, this.minLength);
+            most = this.maxLength == Integer.MAX_VALUE ? j : this.digest.mostMissed(j, this.maxLength);
+            for(i=fewest;i<=this.nmiss && i<=most;i++) {
                 if(onlyPeptidesWithThisManyMissedCleavages == -1 ||
                    onlyPeptidesWithThisManyMissedCleavages == i) {
-                    //System.out.printf("%d Adding %s\n",nres,pep);
-                    rpeps.add(new PeptideSimple(pep,r_start));
-                    res_count++;
+                    rpeps.add(this.digest.peptide(j-i, j));
                     
                     /* Update the count of how many peptides were generated */
                     this.count++;
                 }
-                
-                /* Remove the oldest peptide from this queue */
-                this.peptides[i].remove();
             }
         }
+        
+        /* Update the found counter to include all the cleavages found for
+         * this event */
+        this.found = last;
+        this.event++;
 
         return rpeps;
 
     }
 
+    /**
+     * Digest the configured sequence with the configured protease and stream
+     * the resulting peptides, in the same order as they are returned by 
+     * GetNext(). The stream is independent of start() and GetNext(), and can
+     * be made parallel, in which case it is split along cleavage boundaries 
+     * (or end positions for semi-specific and non-specific peptides). Fully
+     * specific streams know their exact size.
+     *
+     * @param onlyPeptidesWithThisManyMissedCleavages Dictates that the stream
+     * only contain peptides with exactly this many missed cleavages, or -1 for
+     * all peptides up to the configured number of missed cleavages.
+     * 
+     * @return Sequential stream of peptides
+     */
+    public Stream<Peptide> stream(int onlyPeptidesWithThisManyMissedCleavages) {
+        if(this.specificity == Specificity.NONE) {
+            return StreamSupport.stream(SubsequenceDigest.nonSpecific(this.seq,this.minLength,this.maxLength,this.required).spliterator(onlyPeptidesWithThisManyMissedCleavages), false);
+        }
+        Digest d = new Digest(this.getProtease(), this.seq);
+        if(onlyPeptidesWithThisManyMissedCleavages > this.nmiss) {
+            return Stream.empty();
+        }
+        else if(this.specificity == Specificity.SEMI) {
+            return StreamSupport.stream(SubsequenceDigest.semiSpecific(d,this.nmiss,this.minLength,this.maxLength,this.required).spliterator(onlyPeptidesWithThisManyMissedCleavages), false);
+        }
+        else if(onlyPeptidesWithThisManyMissedCleavages == -1) {
+            return StreamSupport.stream(d.spliterator(0,this.nmiss,this.minLength,this.maxLength), false);
+        }
+        return StreamSupport.stream(d.spliterator(onlyPeptidesWithThisManyMissedCleavages,onlyPeptidesWithThisManyMissedCleavages,this.minLength,this.maxLength), false);
+    }
+    
+    /**
+     * Stream all peptides up to the configured number of missed cleavages.
+     * 
+     * @return Sequential stream of peptides
+     * 
+     * @see #stream(int) 
+     */
+    public Stream<Peptide> stream() {
+        return this.stream(-1);
+    }
+
     /**
      * Removes the N-terminus amino acid residue from a peptide. This is 
      * intended to be used for cleaving N-terminus methionine, but no explicit 
@@ -620,6 +569,9 @@ public class PeptideFactory {
      * argument peptide, and incrementing the start position by 1.
      */
     public static Peptide cleaveNTerm(Peptide p) {
+        if(p instanceof PeptideView) {
+            return ((PeptideView)p).cleaveNTerm();
+        }
         return new PeptideSimple(p.sequence().substring(1),p.start()+1);
     }
     
@@ -634,20 +586,33 @@ public class PeptideFactory {
      */
     public int howMany(int onlyPeptidesWithThisManyMissedCleavages) {
         boolean status;
-        List<Peptide> peptide;
-        int n = 0;
+        int n;
 
         status = this.start();
         if(status == false) {
             return 0;
         }
 
-        peptide = this.GetNext(onlyPeptidesWithThisManyMissedCleavages);
-        while(peptide != null) {
-            n += peptide.size();
-            peptide = this.GetNext(onlyPeptidesWithThisManyMissedCleavages);
+        /* Count from the fragments without generating the peptides */
+        if(this.subsequences != null) {
+            n = (int)this.subsequences.count(onlyPeptidesWithThisManyMissedCleavages);
+            this.found = this.subsequences.groups();
+            this.event = this.subsequences.groups();
+            return n;
         }
-
+        else if(onlyPeptidesWithThisManyMissedCleavages == -1) {
+            n = (int)this.digest.count(this.nmiss, this.minLength, this.maxLength);
+        }
+        else if(onlyPeptidesWithThisManyMissedCleavages <= this.nmiss) {
+            n = (int)this.digest.count(0, this.digest.fragments(), onlyPeptidesWithThisManyMissedCleavages, onlyPeptidesWithThisManyMissedCleavages, this.minLength, this.maxLength);
+        }
+        else {
+            n = 0;
+        }
+        
+        /* Leave the factory exhausted, as if every peptide had been read */
+        this.found = this.digest.fragments();
+        this.event = this.digest.events();
         return n;
     }
 
@@ -59,7 +59,7 @@ public class PeptideSimple implements Peptide {
         start    = position;
         end      = position+s.length()-1;
         length   = s.length();
-        totalMass = 0.0;
+        totalMass = ResidueMasses.getStandard().mass(s);
     }
     
     /**
@@ -195,19 +195,20 @@ public class PeptideSimple implements Peptide {
     public String sequence() {
         return sequence;
     }
+    /**
+     * @return The amino acid sequence of the peptide.
+     */
+    @Override
+    public CharSequence residues() {
+        return sequence;
+    }
 
     /**
-     * @return The mass of the peptide.
+     * @return The monoisotopic mass of the peptide, or NaN if it contains a 
+     * residue without a standard mass.
      */
     @Override
     public double mass() {
-        /**
-         * @TODO implement the correct MI mass calculation in #init and return
-         * here.
-         * 
-         * return totalMass;
-         */
-        
-        throw new UnsupportedOperationException("Not supported.");
+        return totalMass;
     }
 }
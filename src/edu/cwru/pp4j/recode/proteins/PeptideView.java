@@ -0,0 +1,137 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+/**
+ * A peptide that is a view of a range of its parent protein sequence. No
+ * residues are copied when the view is created; they are read through the
+ * {@link CharSequence} methods directly from the protein, and a String is
+ * only built if {@link #sequence()} or {@link #toString()} is called.
+ * 
+ * @author Sean Maxwell
+ */
+public class PeptideView implements Peptide, CharSequence {
+    private final CharSequence protein;
+    private final int start;
+    private final int end;
+    
+    /**
+     * Constructor creates a view of a range of a protein sequence.
+     * @param protein Amino acid sequence of the parent protein
+     * @param start Position of the first residue of the peptide in the protein
+     * @param end Position following the last residue of the peptide in the
+     * protein
+     */
+    public PeptideView(CharSequence protein, int start, int end) {
+        if(start < 0 || end < start || end > protein.length()) {
+            throw new IndexOutOfBoundsException(String.format("Invalid peptide range %d-%d",start,end));
+        }
+        this.protein = protein;
+        this.start = start;
+        this.end = end;
+    }
+    
+    /**
+     * Create a view of the same protein with the N-terminus residue removed.
+     * @return The peptide without its first residue
+     */
+    public PeptideView cleaveNTerm() {
+        return new PeptideView(protein, start+1, end);
+    }
+    
+    /**
+     * @return The parent protein sequence.
+     */
+    public CharSequence protein() {
+        return protein;
+    }
+
+    /**
+     * @return The start position of the peptide in the full protein sequence. 
+     */
+    @Override
+    public int start() {
+        return start;
+    }
+
+    /**
+     * @return The end position of the peptide in the full protein sequence.
+     */
+    @Override
+    public int end() {
+        return end-1;
+    }
+
+    /**
+     * @return The length of the peptide in amino acids.
+     */
+    @Override
+    public int length() {
+        return end-start;
+    }
+
+    /**
+     * @return The amino acid sequence of the peptide as a new String.
+     */
+    @Override
+    public String sequence() {
+        return toString();
+    }
+    
+    /**
+     * @return This view.
+     */
+    @Override
+    public CharSequence residues() {
+        return this;
+    }
+
+    /**
+     * @return The monoisotopic mass of the peptide, or NaN if it contains a 
+     * residue without a standard mass. Use {@link ProteinMasses} to compute
+     * the masses of many peptides of a protein.
+     */
+    @Override
+    public double mass() {
+        return ResidueMasses.getStandard().mass(this);
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index < 0 || index >= end-start) {
+            throw new IndexOutOfBoundsException("index "+index);
+        }
+        return protein.charAt(start+index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if(from < 0 || to < from || to > end-start) {
+            throw new IndexOutOfBoundsException(String.format("range %d-%d",from,to));
+        }
+        return protein.subSequence(start+from, start+to);
+    }
+    
+    @Override
+    public String toString() {
+        return protein.subSequence(start, end).toString();
+    }
+}
@@ -37,6 +37,12 @@ public class Protease {
      * A regular expression defining at what sites the protease cleaves.
      */
     private final Pattern cutSitePattern;
+    
+    /**
+     * The cut site expression compiled to lookup tables, or null if it could 
+     * not be compiled.
+     */
+    private final CleavagePattern cutSiteCompiled;
 
     /**
      * An array of optional matchers that confirm if a potential cleave site is 
@@ -60,6 +66,9 @@ public class Protease {
     private int n_filters = 0;
     private int n_exceptions = 0;
     
+    /* Shared proteases can no longer have matchers or exclusions added */
+    private boolean frozen = false;
+    
 
     /**
      * Constructor creates a new instance of a Protease that cleaves at the
@@ -72,11 +81,38 @@ public class Protease {
      */
     public Protease(String c_amino, int c_offset) {
         cutSitePattern    = Pattern.compile(c_amino);
+        cutSiteCompiled   = CleavagePattern.compile(c_amino);
         siteMatchers    = new CleavageSiteMatcher[10];
         siteExcluders = new CleavageSiteExceptionMatcher[10];
         offset     = c_offset;
     }
 
+    /**
+     * Copy constructor creates a Protease with the same cut sites, matchers 
+     * and exclusions as the argument Protease, which can then be extended 
+     * without affecting the original. Compiled patterns are shared, not 
+     * recompiled.
+     *
+     * @param other The Protease to copy
+     */
+    public Protease(Protease other) {
+        cutSitePattern    = other.cutSitePattern;
+        cutSiteCompiled   = other.cutSiteCompiled;
+        siteMatchers    = other.siteMatchers.clone();
+        siteExcluders = other.siteExcluders.clone();
+        offset     = other.offset;
+        n_filters = other.n_filters;
+        n_exceptions = other.n_exceptions;
+    }
+    
+    /**
+     * Prevent further matchers and exclusions from being added, so the 
+     * Protease can be shared between threads.
+     */
+    void freeze() {
+        this.frozen = true;
+    }
+
     /**
      * Retrieve the offset for this Protease.
      *
@@ -120,10 +156,33 @@ public class Protease {
      * 
      * @return A matcher that will find potential cut sites in the sequence. 
      */
-    public Matcher getMatcher(String seq) {
+    public Matcher getMatcher(CharSequence seq) {
         return this.cutSitePattern.matcher(seq);
     }
     
+    /**
+     * Find the next potential cut site for this Protease in the argument 
+     * sequence. This gives the same result as 
+     * <code>getMatcher(seq).find(from)</code> followed by <code>start()</code>
+     * but uses the compiled cut site tables when available.
+     * 
+     * @param seq Amino acid sequence to cut
+     * @param from Position to start searching from
+     * 
+     * @return Position of the next potential cut site, or -1 if there are no
+     * more cut sites.
+     */
+    public int findCutSite(CharSequence seq, int from) {
+        if(this.cutSiteCompiled != null) {
+            int site = this.cutSiteCompiled.find(seq, from);
+            if(site != CleavagePattern.UNDECIDED) {
+                return site;
+            }
+        }
+        Matcher m = this.cutSitePattern.matcher(seq);
+        return m.find(from) ? m.start() : -1;
+    }
+    
     /**
      * Add a CleaveageSiteMatcher to the Protease. The CleavageSiteMatcher 
      * specifies a window to look at around the potential cut site, a regex to 
@@ -134,11 +193,12 @@ public class Protease {
      * @param left Number of amino acids left of the cut site to use in window
      * @param right Number of amino acid right of the cut site to use in window
      * @param c_offset The offset to cut at from cut site (0 before, 1 after)
-     * @return true if the matcher was added, and false if there was no space.
+     * @return true if the matcher was added, and false if there was no space
+     * or the Protease is shared.
      */
     public boolean addMatcher(String pattern, int left, int right, int c_offset) {
         /* Make sure it isn't full */
-        if(this.n_filters == 10) {
+        if(this.n_filters == 10 || this.frozen) {
             return false;
         }
 
@@ -161,10 +221,11 @@ public class Protease {
      * @param left Number of amino acids left to look from potential cut site
      * @param right Number of amino acids right to look from potential cut site
      * @return true if exception was added, and false if there was no space
+     * or the Protease is shared.
      */
     public boolean addExclusion(String pattern, int left, int right) {
         /* Make sure it isn't full */
-        if(this.n_exceptions == 10) {
+        if(this.n_exceptions == 10 || this.frozen) {
             return false;
         }
 
@@ -187,7 +248,7 @@ public class Protease {
      * @return true if the site is an exclusion, and false otherwise
      *
      */
-    public boolean isExclusion(int i, String seq, int site) {
+    public boolean isExclusion(int i, CharSequence seq, int site) {
         return this.siteExcluders[i].matches(seq, site);
     }
 
@@ -203,7 +264,7 @@ public class Protease {
      * before and 1 for after)
      *
      */
-    public int isCleaveSite(int i, String seq, int site) {
+    public int isCleaveSite(int i, CharSequence seq, int site) {
         return this.siteMatchers[i].matches(seq, site);
     }
 
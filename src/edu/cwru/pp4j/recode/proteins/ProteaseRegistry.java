@@ -0,0 +1,287 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An immutable set of named Proteases. Every Protease compiles its regular
+ * expressions when it is created, so the registries returned by 
+ * {@link #getInstance(boolean)} are built once per JVM and shared by all
+ * PeptideFactory instances. The Proteases of a registry cannot have matchers
+ * or exclusions added, and registries are never modified after they are 
+ * created, so they are safe to share between threads. Adding a Protease
+ * creates a new registry (see {@link #with(String, Protease)}).<br><br>
+ * 
+ * Definitions are read from {@value #DEFINITIONS} if it exists, in addition 
+ * to the built in Proteases. Each line of the file is tab delimited, and is
+ * one of:
+ * <pre>
+ * protease  name  pattern  offset
+ * matcher   name  pattern  left  right  offset  strict|relaxed|any
+ * exclusion name  pattern  left  right  strict|relaxed|any
+ * </pre>
+ * A protease line replaces any Protease of the same name, and matcher and 
+ * exclusion lines are only added to the registry for the digest mode they
+ * name. Blank lines and lines starting with # are ignored.
+ * 
+ * @author Sean Maxwell
+ */
+public final class ProteaseRegistry {
+    private static final Logger LOGGER = LogManager.getFormatterLogger(ProteaseRegistry.class.getName());
+    
+    /**
+     * Path of the optional protease definitions file.
+     */
+    public static final String DEFINITIONS = "./data/proteases.txt";
+    
+    private final Map<String,Protease> proteases;
+    
+    private ProteaseRegistry(Map<String,Protease> proteases) {
+        for(Protease protease : proteases.values()) {
+            protease.freeze();
+        }
+        this.proteases = Collections.unmodifiableMap(proteases);
+    }
+    
+    /* Registries are built on first use, once per JVM */
+    private static final class Strict {
+        static final ProteaseRegistry INSTANCE = create(true);
+    }
+    
+    private static final class Relaxed {
+        static final ProteaseRegistry INSTANCE = create(false);
+    }
+    
+    /**
+     * Retrieve the registry shared by all PeptideFactory instances.
+     * 
+     * @param strict Indicates if the proteases should use Expasy rules 
+     * verbatim or use a more relaxed approach of cleaving predictably on 
+     * single amino acid codes.
+     * 
+     * @return The shared registry
+     */
+    public static ProteaseRegistry getInstance(boolean strict) {
+        return strict ? Strict.INSTANCE : Relaxed.INSTANCE;
+    }
+    
+    /**
+     * Build the built in proteases, then add definitions from file if there
+     * are any. A file that cannot be read is reported and ignored.
+     */
+    private static ProteaseRegistry create(boolean strict) {
+        Map<String,Protease> proteases = defaults(strict);
+        if(new File(DEFINITIONS).exists()) {
+            try {
+                read(DEFINITIONS, strict, proteases);
+            }
+            catch(Exception e) {
+                LOGGER.warn("Ignoring protease definitions in %s : %s",DEFINITIONS,e.getMessage(),e);
+                proteases = defaults(strict);
+            }
+        }
+        return new ProteaseRegistry(proteases);
+    }
+    
+    /**
+     * Load a registry of the built in proteases and the proteases defined in
+     * the argument file.
+     * 
+     * @param path Path to the protease definitions file
+     * @param strict Indicates if the strict or relaxed rules of the file 
+     * should be used
+     * 
+     * @return The registry
+     * 
+     * @throws Exception if the file cannot be read or is malformed.
+     */
+    public static ProteaseRegistry load(String path, boolean strict) throws Exception {
+        Map<String,Protease> proteases = defaults(strict);
+        read(path, strict, proteases);
+        return new ProteaseRegistry(proteases);
+    }
+    
+    /**
+     * Create the lookup table of built in Protease definitions.
+     */
+    private static Map<String,Protease> defaults(boolean strict) {
+        Map<String,Protease> proteases = new LinkedHashMap<>();
+        proteases.put("AspN",           new Protease("D",0));
+        proteases.put("AspN/N->D",      new Protease("[DE]",0));
+        proteases.put("Chymotrypsin",   new Protease("[FYW]",1));
+        proteases.put("GluC",           new Protease("[E]",1));
+        proteases.put("LysC",           new Protease("K",1));
+        proteases.put("Pepsin, pH=1.3", new Protease("[FL]",0));
+        proteases.put("Pepsin, pH=2.0", new Protease("[FLWY]",0));
+        proteases.put("Trypsin",        new Protease("[RK]",1));
+        proteases.put("Non-specific",   new Protease(".",1));
+
+        /* If we are being strict, create site matchers and exclusions for 
+         * relevant proteases.
+         */
+        if(strict) {
+            /* Add site matchers */
+            proteases.get("Chymotrypsin"  ).addMatcher("([FY][^P])|(W[^MP])"   , 0, 1, 1);
+            
+            /* It is suggested in the Expasy documentation that the Glutamyl 
+             * endopeptidase is inhibited form cleaving when Proline(P) appears
+             * 2 postions before E, after E or 2 amino acids after E, and that
+             * Asp (D) immediately after E has a similar affect. However, in
+             * in testing this does not seem to be enforced on the PeptideCutter
+             * interface and cleavage happens predictably on all E
+            proteases.get("GluC"          ).addMatcher("[^P]..[E][^DP][^P]"    , 0, 1, 1);
+            */
+            
+            proteases.get("Pepsin, pH=1.3").addMatcher("[^HKR][^P][^R][FL][^P]", 3, 1, 0);
+            proteases.get("Pepsin, pH=1.3").addMatcher("[^HKR][^P][FL].[^P]"   , 2, 2, 1);
+            proteases.get("Pepsin, pH=2.0").addMatcher("[^HKR][^P][^R][FLWY][^P]"  , 3, 1, 0);
+            proteases.get("Pepsin, pH=2.0").addMatcher("[^HKR][^P][FLWY].[^P]"     , 2, 2, 1);
+            proteases.get("Trypsin"       ).addMatcher("(WKP)|(MRP)|[KR][^P]"    , 1, 1, 1);
+
+            /* Add site exclusions */
+            proteases.get("Trypsin"       ).addExclusion("([CD]KD)|(CK[HY])|(CRK)|(RR[HR])", 1, 1);
+        }
+        else {
+            /* Pepsin cuts both before and after the cut site, so add the secondary
+             * cut sites now */
+            proteases.get("Pepsin, pH=1.3").addMatcher("[FL]" , 0, 0, 0);
+            proteases.get("Pepsin, pH=2.0").addMatcher("[FLWY]"   , 0, 0, 0);
+            proteases.get("Pepsin, pH=1.3").addMatcher("[FL]" , 0, 0, 1);
+            proteases.get("Pepsin, pH=2.0").addMatcher("[FLWY]"   , 0, 0, 1);
+        }
+        return proteases;
+    }
+    
+    /**
+     * Read protease definitions into the argument table.
+     */
+    private static void read(String path, boolean strict, Map<String,Protease> proteases) throws Exception {
+        try(BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String line;
+            int number = 0;
+            while((line=br.readLine()) != null) {
+                number++;
+                if(line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                
+                String[] tokens = line.split("\t");
+                try {
+                    switch(tokens[0]) {
+                        case "protease":
+                            proteases.put(tokens[1], new Protease(tokens[2], Integer.parseInt(tokens[3])));
+                            break;
+                        case "matcher":
+                            if(appliesTo(tokens[6], strict) && 
+                               !edit(proteases, tokens[1]).addMatcher(tokens[2], Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4]), Integer.parseInt(tokens[5]))) {
+                                throw new Exception("Too many matchers for "+tokens[1]);
+                            }
+                            break;
+                        case "exclusion":
+                            if(appliesTo(tokens[5], strict) && 
+                               !edit(proteases, tokens[1]).addExclusion(tokens[2], Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4]))) {
+                                throw new Exception("Too many exclusions for "+tokens[1]);
+                            }
+                            break;
+                        default:
+                            throw new Exception("Unknown definition "+tokens[0]);
+                    }
+                }
+                catch(Exception e) {
+                    throw new Exception(String.format("Malformed protease definition at %s:%d (%s)",path,number,e.toString()));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Check the digest mode column of a definition.
+     */
+    private static boolean appliesTo(String mode, boolean strict) throws Exception {
+        switch(mode) {
+            case "strict":
+                return strict;
+            case "relaxed":
+                return !strict;
+            case "any":
+                return true;
+            default:
+                throw new Exception("Unknown digest mode "+mode);
+        }
+    }
+    
+    /**
+     * Retrieve a protease of the table being built.
+     */
+    private static Protease edit(Map<String,Protease> proteases, String name) throws Exception {
+        Protease protease = proteases.get(name);
+        if(protease == null) {
+            throw new Exception("Protease "+name+" is not defined");
+        }
+        return protease;
+    }
+    
+    /**
+     * Retrieve a protease by name.
+     * 
+     * @param name Name of the protease
+     * 
+     * @return The protease, or null if there is no protease with that name.
+     */
+    public Protease get(String name) {
+        return proteases.get(name);
+    }
+    
+    /**
+     * Retrieve the names of the proteases in the registry.
+     * 
+     * @return Unmodifiable set of names
+     */
+    public Set<String> names() {
+        return proteases.keySet();
+    }
+    
+    /**
+     * Create a registry with the proteases of this registry and the argument
+     * protease, which replaces any protease of the same name. This registry
+     * is not modified, and the argument protease can no longer be modified.
+     * 
+     * @param name Name of the protease
+     * @param protease The protease
+     * 
+     * @return The new registry
+     */
+    public ProteaseRegistry with(String name, Protease protease) {
+        Map<String,Protease> copy = new LinkedHashMap<>(proteases);
+        copy.put(name, protease);
+        return new ProteaseRegistry(copy);
+    }
+}
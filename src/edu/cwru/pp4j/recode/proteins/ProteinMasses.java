@@ -0,0 +1,134 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.util.Arrays;
+
+/**
+ * Prefix sums of the residue masses of a protein sequence, so that the mass 
+ * of any peptide of the protein is a single subtraction. Entry i of the 
+ * table is the mass of the first i residues. Residues missing from the 
+ * {@link ResidueMasses} table (e.g. X) are counted in a second prefix sum
+ * instead, so they only make the peptides that contain them NaN.<br><br>
+ * 
+ * Recoded peptides differ from their parent peptide only by one 
+ * phosphorylation per recoded site, so their masses are
+ * {@link #recodedMass(int, int, int)} without reading the residues again.
+ * The arrays are reused by {@link #setSequence(CharSequence)}, so a single 
+ * object can serve every protein of a database.
+ * 
+ * @author Sean Maxwell
+ */
+public class ProteinMasses {
+    private final ResidueMasses table;
+    private double[] prefix;
+    private int[] unknown;
+    private int length;
+    
+    /**
+     * Constructor creates an empty table.
+     * @param table Residue masses to sum
+     */
+    public ProteinMasses(ResidueMasses table) {
+        this.table = table;
+        prefix = new double[1024];
+        unknown = new int[1024];
+        length = 0;
+    }
+    
+    /**
+     * Constructor creates the table of a protein sequence.
+     * @param table Residue masses to sum
+     * @param sequence Amino acid sequence of the protein
+     */
+    public ProteinMasses(ResidueMasses table, CharSequence sequence) {
+        this(table);
+        setSequence(sequence);
+    }
+    
+    /**
+     * Replace the table with that of another protein sequence.
+     * @param sequence Amino acid sequence of the protein
+     */
+    public final void setSequence(CharSequence sequence) {
+        length = sequence.length();
+        if(prefix.length < length+1) {
+            int size = Math.max(length+1, prefix.length*2);
+            prefix = Arrays.copyOf(prefix, size);
+            unknown = Arrays.copyOf(unknown, size);
+        }
+        double sum = 0.0;
+        int missing = 0;
+        for(int i=0;i<length;i++) {
+            double mass = table.mass(sequence.charAt(i));
+            if(Double.isNaN(mass)) {
+                missing++;
+            }
+            else {
+                sum += mass;
+            }
+            prefix[i+1] = sum;
+            unknown[i+1] = missing;
+        }
+    }
+    
+    /**
+     * @return The length of the protein sequence.
+     */
+    public int length() {
+        return length;
+    }
+    
+    /**
+     * Compute the monoisotopic mass of a range of the protein.
+     * @param start Position of the first residue of the peptide
+     * @param end Position following the last residue of the peptide
+     * @return The peptide mass, or NaN if a residue is not in the table.
+     */
+    public double mass(int start, int end) {
+        if(unknown[end] != unknown[start]) {
+            return Double.NaN;
+        }
+        return prefix[end]-prefix[start]+Constants.MASS_WATER;
+    }
+    
+    /**
+     * Compute the monoisotopic mass of a peptide of the protein.
+     * @param peptide Peptide of the protein
+     * @return The peptide mass, or NaN if a residue is not in the table.
+     */
+    public double mass(Peptide peptide) {
+        return mass(peptide.start(), peptide.end()+1);
+    }
+    
+    /**
+     * Compute the monoisotopic mass of a range of the protein with a number
+     * of its S/T/Y residues recoded to B/U/Z.
+     * @param start Position of the first residue of the peptide
+     * @param end Position following the last residue of the peptide
+     * @param k Number of recoded sites
+     * @return The recoded peptide mass, or NaN if a residue is not in the 
+     * table.
+     */
+    public double recodedMass(int start, int end, int k) {
+        return mass(start, end)+k*Constants.MASS_PHOSPHORYLATION;
+    }
+}
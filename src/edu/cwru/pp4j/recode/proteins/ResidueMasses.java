@@ -0,0 +1,320 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A table of monoisotopic residue masses indexed by residue code. The masses
+ * are those of the residues in a peptide chain, so the mass of a peptide is
+ * the sum of its residue masses plus one water.<br><br>
+ * 
+ * The table returned by {@link #getStandard()} holds the 20 standard amino 
+ * acids, and the recode substitution codes B, U and Z as phosphorylated S, 
+ * T and Y. Modifications are applied with {@link #load(String)}, which reads
+ * a modifications file in either the tab delimited format of 
+ * data/default-mods.txt
+ * <pre>
+ * name  composition  residues  fix|opt  position  title
+ * </pre>
+ * or the comma delimited format of an MS-GF+ modifications file
+ * <pre>
+ * composition,residues,fix|opt,position,name
+ * </pre>
+ * Fixed modifications at any position are added to the masses of their 
+ * residues, and variable modifications are kept in 
+ * {@link #getVariableModifications()}. Fixed terminal modifications cannot
+ * be expressed per residue and are ignored. Compositions are either a formula 
+ * such as C2H3N1O1 or H-1, or a mass. Tables are never modified after they 
+ * are created, so they are safe to share between threads.
+ * 
+ * @author Sean Maxwell
+ */
+public final class ResidueMasses {
+    private static final ResidueMasses STANDARD = new ResidueMasses();
+    
+    /**
+     * A modification read from a modifications file.
+     */
+    public static final class Modification {
+        private final String name;
+        private final String residues;
+        private final String position;
+        private final double mass;
+        private final boolean fixed;
+        
+        Modification(String name, String residues, String position, double mass, boolean fixed) {
+            this.name = name;
+            this.residues = residues;
+            this.position = position;
+            this.mass = mass;
+            this.fixed = fixed;
+        }
+        
+        /**
+         * @return The name of the modification.
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * @return The residue codes the modification applies to.
+         */
+        public String getResidues() {
+            return residues;
+        }
+        
+        /**
+         * @return The position the modification applies to (e.g. Any or 
+         * N-term).
+         */
+        public String getPosition() {
+            return position;
+        }
+        
+        /**
+         * @return The mass added to a residue by the modification.
+         */
+        public double getMass() {
+            return mass;
+        }
+        
+        /**
+         * @return true if the modification is fixed, and false if variable.
+         */
+        public boolean isFixed() {
+            return fixed;
+        }
+    }
+    
+    private final double[] masses;
+    private final List<Modification> variable;
+    
+    /**
+     * Constructor creates the standard table.
+     */
+    private ResidueMasses() {
+        masses = new double[128];
+        Arrays.fill(masses, Double.NaN);
+        residue('G', 2, 3, 1, 1, 0);
+        residue('A', 3, 5, 1, 1, 0);
+        residue('S', 3, 5, 1, 2, 0);
+        residue('P', 5, 7, 1, 1, 0);
+        residue('V', 5, 9, 1, 1, 0);
+        residue('T', 4, 7, 1, 2, 0);
+        residue('C', 3, 5, 1, 1, 1);
+        residue('L', 6, 11, 1, 1, 0);
+        residue('I', 6, 11, 1, 1, 0);
+        residue('N', 4, 6, 2, 2, 0);
+        residue('D', 4, 5, 1, 3, 0);
+        residue('Q', 5, 8, 2, 2, 0);
+        residue('K', 6, 12, 2, 1, 0);
+        residue('E', 5, 7, 1, 3, 0);
+        residue('M', 5, 9, 1, 1, 1);
+        residue('H', 6, 7, 3, 1, 0);
+        residue('F', 9, 9, 1, 1, 0);
+        residue('R', 6, 12, 4, 1, 0);
+        residue('Y', 9, 9, 1, 2, 0);
+        residue('W', 11, 10, 2, 1, 0);
+        masses['B'] = masses['S']+Constants.MASS_PHOSPHORYLATION;
+        masses['U'] = masses['T']+Constants.MASS_PHOSPHORYLATION;
+        masses['Z'] = masses['Y']+Constants.MASS_PHOSPHORYLATION;
+        variable = Collections.emptyList();
+    }
+    
+    /**
+     * Constructor copies a table and applies modifications to it.
+     */
+    private ResidueMasses(ResidueMasses base, List<Modification> modifications) {
+        masses = base.masses.clone();
+        List<Modification> v = new ArrayList<>(base.variable);
+        for(Modification modification : modifications) {
+            if(modification.isFixed() && modification.getPosition().equalsIgnoreCase("Any")) {
+                for(char c : modification.getResidues().toCharArray()) {
+                    if(c < masses.length) {
+                        masses[c] += modification.getMass();
+                    }
+                }
+            }
+            else if(!modification.isFixed()) {
+                v.add(modification);
+            }
+        }
+        variable = Collections.unmodifiableList(v);
+    }
+    
+    /**
+     * Set the mass of a residue from its elemental composition.
+     */
+    private void residue(char c, int carbon, int hydrogen, int nitrogen, int oxygen, int sulfur) {
+        masses[c] = carbon*Constants.MASS_CARBON
+                  + hydrogen*Constants.MASS_HYDROGEN
+                  + nitrogen*Constants.MASS_NITROGEN
+                  + oxygen*Constants.MASS_OXYGEN
+                  + sulfur*Constants.MASS_SULFUR;
+    }
+    
+    /**
+     * Retrieve the table of unmodified residue masses.
+     * 
+     * @return The standard table
+     */
+    public static ResidueMasses getStandard() {
+        return STANDARD;
+    }
+    
+    /**
+     * Create a table of the standard residue masses with the modifications 
+     * of the argument file applied. Blank lines, lines starting with # and
+     * the NumMods line of MS-GF+ files are ignored.
+     * 
+     * @param path Path to the modifications file
+     * 
+     * @return The table
+     * 
+     * @throws Exception if the file cannot be read or is malformed.
+     */
+    public static ResidueMasses load(String path) throws Exception {
+        List<Modification> modifications = new ArrayList<>();
+        try(BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String line;
+            int n = 0;
+            while((line=br.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#") || line.startsWith("NumMods")) {
+                    continue;
+                }
+                
+                /* Reorder the tab delimited format as the MS-GF+ format */
+                String[] tokens;
+                if(line.contains("\t")) {
+                    String[] t = line.split("\t");
+                    if(t.length < 5) {
+                        throw new Exception(String.format("Malformed modification on line %d of %s",n,path));
+                    }
+                    tokens = new String[]{t[1],t[2],t[3],t[4],t[0]};
+                }
+                else {
+                    tokens = line.split(",");
+                    if(tokens.length < 5) {
+                        throw new Exception(String.format("Malformed modification on line %d of %s",n,path));
+                    }
+                }
+                modifications.add(new Modification(
+                        tokens[4].trim(),
+                        tokens[1].trim().equals("*") ? "ACDEFGHIKLMNPQRSTVWY" : tokens[1].trim(),
+                        tokens[3].trim(),
+                        compositionMass(tokens[0].trim()),
+                        tokens[2].trim().equalsIgnoreCase("fix")));
+            }
+        }
+        return new ResidueMasses(STANDARD, modifications);
+    }
+    
+    /**
+     * Compute the mass of an elemental composition such as C2H3N1O1 or H-1,
+     * or parse a mass.
+     * 
+     * @param composition Composition of C, H, N, O, S and P with optional 
+     * (possibly negative) counts, or a decimal mass
+     * 
+     * @return Mass of the composition
+     * 
+     * @throws Exception if the composition contains other elements.
+     */
+    public static double compositionMass(String composition) throws Exception {
+        try {
+            return Double.parseDouble(composition);
+        }
+        catch(NumberFormatException e) {
+            /* Not a mass, so parse as a formula */
+        }
+        
+        double mass = 0.0;
+        int i = 0;
+        while(i < composition.length()) {
+            double element;
+            switch(composition.charAt(i++)) {
+                case 'C': element = Constants.MASS_CARBON; break;
+                case 'H': element = Constants.MASS_HYDROGEN; break;
+                case 'N': element = Constants.MASS_NITROGEN; break;
+                case 'O': element = Constants.MASS_OXYGEN; break;
+                case 'S': element = Constants.MASS_SULFUR; break;
+                case 'P': element = Constants.MASS_PHOSPHORUS; break;
+                default:
+                    throw new Exception(String.format("Unsupported element in composition %s",composition));
+            }
+            int from = i;
+            if(i < composition.length() && composition.charAt(i) == '-') {
+                i++;
+            }
+            while(i < composition.length() && Character.isDigit(composition.charAt(i))) {
+                i++;
+            }
+            int count = i > from ? Integer.parseInt(composition.substring(from, i)) : 1;
+            mass += count*element;
+        }
+        return mass;
+    }
+    
+    /**
+     * Retrieve the mass of a residue.
+     * 
+     * @param c Residue code
+     * 
+     * @return The residue mass, or NaN if the residue is not in the table.
+     */
+    public double mass(char c) {
+        return c < masses.length ? masses[c] : Double.NaN;
+    }
+    
+    /**
+     * Compute the monoisotopic mass of a peptide as the sum of its residue 
+     * masses plus one water.
+     * 
+     * @param residues Amino acid sequence of the peptide
+     * 
+     * @return The peptide mass, or NaN if a residue is not in the table.
+     */
+    public double mass(CharSequence residues) {
+        double mass = Constants.MASS_WATER;
+        for(int i=0;i<residues.length();i++) {
+            mass += mass(residues.charAt(i));
+        }
+        return mass;
+    }
+    
+    /**
+     * Retrieve the variable modifications of the table.
+     * 
+     * @return Variable modifications, in the order they were read
+     */
+    public List<Modification> getVariableModifications() {
+        return variable;
+    }
+}
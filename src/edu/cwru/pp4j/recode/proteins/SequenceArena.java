@@ -0,0 +1,177 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.util.Arrays;
+
+/**
+ * Compact storage for the sequences of a protein database. All residues are
+ * packed into one contiguous array, one byte per residue, and an array of 
+ * offsets marks where each sequence begins. This avoids a String object (two
+ * bytes per residue plus headers) for every protein and keeps neighbouring
+ * sequences adjacent in memory for digestion. Sequences are handed out as 
+ * {@link ByteSequence} views without copying.
+ * 
+ * @author Sean Maxwell
+ */
+public class SequenceArena {
+    private byte[] residues;
+    private int[] offsets;
+    private int n;
+    
+    /**
+     * End of the sequence being built by {@link #append(byte)}.
+     */
+    private int pending;
+    
+    /**
+     * Constructor creates an empty arena.
+     */
+    public SequenceArena() {
+        residues = new byte[1<<16];
+        offsets = new int[1024];
+        offsets[0] = 0;
+        n = 0;
+        pending = 0;
+    }
+    
+    /**
+     * Append a sequence to the arena. Residues are converted to upper case.
+     * 
+     * @param sequence Amino acid sequence to store
+     * 
+     * @return The number assigned to the sequence
+     * 
+     * @throws Exception if the arena cannot hold the sequence.
+     */
+    public int add(CharSequence sequence) throws Exception {
+        int start = offsets[n];
+        reserve((long)start + sequence.length());
+        for(int i=0;i<sequence.length();i++) {
+            residues[start+i] = (byte)Character.toUpperCase(sequence.charAt(i));
+        }
+        pending = start + sequence.length();
+        return commit();
+    }
+    
+    /**
+     * Ensure the residue array can hold the argument number of residues.
+     */
+    private void reserve(long end) throws Exception {
+        if(end > Integer.MAX_VALUE - 8) {
+            throw new Exception("The database is too large to load into memory, use an indexed database instead");
+        }
+        if(end > residues.length) {
+            residues = Arrays.copyOf(residues, (int)Math.min(Integer.MAX_VALUE - 8, Math.max(end, 2L*residues.length)));
+        }
+    }
+    
+    /**
+     * Append a single residue to the sequence currently being built. The 
+     * sequence is completed by {@link #commit()}.
+     * 
+     * @param b Residue code, converted to upper case
+     * 
+     * @throws Exception if the arena cannot hold the residue.
+     */
+    void append(byte b) throws Exception {
+        if(pending+1 > residues.length) {
+            reserve(pending+1L);
+        }
+        residues[pending++] = (b >= 'a' && b <= 'z') ? (byte)(b-32) : b;
+    }
+    
+    /**
+     * Complete the sequence being built with {@link #append(byte)}.
+     * 
+     * @return The number assigned to the sequence
+     */
+    int commit() {
+        if(n+2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length*2);
+        }
+        offsets[n+1] = pending;
+        return n++;
+    }
+    
+    /**
+     * Append all sequences of another arena to this one.
+     * 
+     * @param other Arena to copy sequences from
+     * 
+     * @throws Exception if the arena cannot hold the sequences.
+     */
+    void addAll(SequenceArena other) throws Exception {
+        int base = offsets[n];
+        reserve((long)base + other.offsets[other.n]);
+        System.arraycopy(other.residues, 0, residues, base, other.offsets[other.n]);
+        if(n+other.n+1 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, n+other.n+1);
+        }
+        for(int i=1;i<=other.n;i++) {
+            offsets[n+i] = base+other.offsets[i];
+        }
+        n += other.n;
+        pending = offsets[n];
+    }
+    
+    /**
+     * Release unused capacity once all sequences have been added.
+     */
+    public void trim() {
+        residues = Arrays.copyOf(residues, offsets[n]);
+        offsets = Arrays.copyOf(offsets, n+1);
+    }
+    
+    /**
+     * Retrieve a sequence as a view of the arena.
+     * @param i Sequence number
+     * @return Amino acid sequence
+     */
+    public ByteSequence get(int i) {
+        return new ByteSequence(residues, offsets[i], offsets[i+1]-offsets[i]);
+    }
+    
+    /**
+     * Retrieve the length of a sequence.
+     * @param i Sequence number
+     * @return Number of residues
+     */
+    public int length(int i) {
+        return offsets[i+1]-offsets[i];
+    }
+    
+    /**
+     * Report how many sequences are stored.
+     * @return Number of sequences
+     */
+    public int size() {
+        return n;
+    }
+    
+    /**
+     * Report how many residues are stored.
+     * @return Number of residues
+     */
+    public long residues() {
+        return offsets[n];
+    }
+}
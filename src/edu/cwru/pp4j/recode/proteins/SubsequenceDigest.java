@@ -0,0 +1,301 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Enumerates the semi-specific or non-specific peptides of a protein 
+ * sequence directly from residue positions, rather than by gluing 
+ * fragments back together as the "Non-specific" protease does.<br><br>
+ * 
+ * A peptide is identified by the positions of its first residue and of the 
+ * residue following it. Positions that are cleavage sites or protein 
+ * termini are specific termini; a semi-specific peptide has at least one
+ * of them, and a non-specific peptide may have none. The missed cleavages of
+ * a peptide are the cleavage sites strictly inside it, where every position
+ * is a cleavage site for non-specific peptides.<br><br>
+ * 
+ * Peptides are grouped by their end position, and within a group are ordered
+ * from shortest to longest. Peptides only grow as their start moves left, so
+ * enumeration of a group stops at the first peptide that is too long or has
+ * too many missed cleavages, and peptides that are too short or lack a 
+ * required residue are never visited.
+ * 
+ * @author Sean Maxwell
+ */
+public class SubsequenceDigest {
+    private final CharSequence sequence;
+    private final int maxMissed;
+    private final int minLength;
+    private final int maxLength;
+    private final boolean[] terminus;
+    private final int[] previous;
+    private final int[] sites;
+    private final int[] lastRequired;
+    
+    private SubsequenceDigest(CharSequence seq, boolean[] terminus, int[] sites, int maxMissed, int minLength, int maxLength, String requiredResidues) {
+        this.sequence = seq;
+        this.terminus = terminus;
+        this.sites = sites;
+        this.maxMissed = maxMissed;
+        this.minLength = Math.max(1, minLength);
+        this.maxLength = maxLength;
+        
+        /* Find the nearest specific terminus at or before each position */
+        if(terminus != null) {
+            previous = new int[terminus.length];
+            for(int p=0,last=-1;p<terminus.length;p++) {
+                last = terminus[p] ? p : last;
+                previous[p] = last;
+            }
+        }
+        else {
+            previous = null;
+        }
+        
+        /* Find the last required residue before each position */
+        if(requiredResidues != null) {
+            lastRequired = new int[seq.length()+1];
+            lastRequired[0] = -1;
+            for(int p=0;p<seq.length();p++) {
+                lastRequired[p+1] = requiredResidues.indexOf(seq.charAt(p)) != -1 ? p : lastRequired[p];
+            }
+        }
+        else {
+            lastRequired = null;
+        }
+    }
+    
+    /**
+     * Enumerate every subsequence of the argument sequence within the length
+     * bounds.
+     * 
+     * @param seq Protein amino acid sequence
+     * @param minLength Minimum peptide length
+     * @param maxLength Maximum peptide length
+     * @param requiredResidues Residues of which a peptide must contain at 
+     * least one, or null to accept all peptides
+     * @return The enumeration
+     */
+    public static SubsequenceDigest nonSpecific(CharSequence seq, int minLength, int maxLength, String requiredResidues) {
+        return new SubsequenceDigest(seq, null, null, Integer.MAX_VALUE, minLength, maxLength, requiredResidues);
+    }
+    
+    /**
+     * Enumerate the peptides of a digest with at least one specific terminus.
+     * A protein N-terminal methionine is assumed to be cleavable, so the 
+     * position following it is a specific terminus (but not a cleavage site).
+     * 
+     * @param digest Digest of the protein sequence
+     * @param maxMissed Maximum number of missed cleavages
+     * @param minLength Minimum peptide length
+     * @param maxLength Maximum peptide length
+     * @param requiredResidues Residues of which a peptide must contain at 
+     * least one, or null to accept all peptides
+     * @return The enumeration
+     */
+    public static SubsequenceDigest semiSpecific(Digest digest, int maxMissed, int minLength, int maxLength, String requiredResidues) {
+        CharSequence seq = digest.sequence();
+        int length = seq.length();
+        
+        /* Every fragment start and end is a cleavage site */
+        boolean[] site = new boolean[length+1];
+        for(int k=0;k<digest.fragments();k++) {
+            site[digest.fragmentStart(k)] = true;
+            site[digest.fragmentEnd(k)] = true;
+        }
+        
+        /* Count the cleavage sites before each position */
+        int[] sites = new int[length+2];
+        for(int p=0;p<=length;p++) {
+            sites[p+1] = sites[p] + (site[p] ? 1 : 0);
+        }
+        
+        boolean[] terminus = site;
+        terminus[0] = true;
+        terminus[length] = true;
+        if(length > 1 && seq.charAt(0) == 'M') {
+            terminus[1] = true;
+        }
+        return new SubsequenceDigest(seq, terminus, sites, maxMissed, minLength, maxLength, requiredResidues);
+    }
+    
+    /**
+     * Retrieve the sequence being digested.
+     * @return The sequence
+     */
+    public CharSequence sequence() {
+        return sequence;
+    }
+    
+    /**
+     * Report the number of groups of peptides, one for each position a 
+     * peptide can end at.
+     * @return Length of the sequence
+     */
+    public int groups() {
+        return sequence.length();
+    }
+    
+    /**
+     * Count the missed cleavages of a peptide.
+     */
+    private int missed(int start, int end) {
+        return sites == null ? end-start-1 : sites[end] - sites[start+1];
+    }
+    
+    /**
+     * Visit the peptides ending before the argument position, adding them to
+     * the argument list if it is not null.
+     * @return Number of peptides visited
+     */
+    private int visit(int end, int only, List<Peptide> out) {
+        int longest = Math.min(maxLength, end);
+        if(minLength > longest) {
+            return 0;
+        }
+        
+        /* Latest start giving a long enough peptide with a required residue */
+        int start = end - minLength;
+        if(lastRequired != null) {
+            start = Math.min(start, lastRequired[end]);
+        }
+        
+        /* Without a specific end, the start must be a specific terminus */
+        boolean anyStart = terminus == null || terminus[end];
+        if(!anyStart) {
+            start = start >= 0 ? previous[start] : -1;
+        }
+        
+        int n = 0;
+        int lowest = end - longest;
+        while(start >= lowest) {
+            int missed = missed(start, end);
+            if(missed > maxMissed || (only != -1 && missed > only)) {
+                break;
+            }
+            if(only == -1 || only == missed) {
+                if(out != null) {
+                    out.add(new PeptideView(sequence, start, end));
+                }
+                n++;
+            }
+            start = anyStart ? start-1 : (start > 0 ? previous[start-1] : -1);
+        }
+        return n;
+    }
+    
+    /**
+     * Generate the peptides of a group, from shortest to longest.
+     * @param group Group number, from 0 to groups()-1
+     * @param only Number of missed cleavages the peptides must have, or -1 
+     * for all peptides
+     * @return The peptides ending at the last residue of the group
+     */
+    public List<Peptide> peptides(int group, int only) {
+        List<Peptide> peptides = new ArrayList<>();
+        visit(group+1, only, peptides);
+        return peptides;
+    }
+    
+    /**
+     * Count the peptides without generating them.
+     * @param only Number of missed cleavages the peptides must have, or -1 
+     * for all peptides
+     * @return Number of peptides
+     */
+    public long count(int only) {
+        long total = 0;
+        for(int end=1;end<=sequence.length();end++) {
+            total += visit(end, only, null);
+        }
+        return total;
+    }
+    
+    /**
+     * Create a spliterator over the peptides in the order of their groups.
+     * @param only Number of missed cleavages the peptides must have, or -1 
+     * for all peptides
+     * @return The spliterator
+     */
+    public Spliterator<Peptide> spliterator(int only) {
+        return new GroupSpliterator(0, sequence.length(), only);
+    }
+    
+    /**
+     * Spliterator over a range of groups. Each group is generated when the
+     * previous one is exhausted, and splitting divides the range of groups 
+     * in two. Sizes are only estimated, since counting a range of groups 
+     * costs as much as enumerating it.
+     */
+    private class GroupSpliterator implements Spliterator<Peptide> {
+        private final int only;
+        private final int hi;
+        private int group;
+        private List<Peptide> buffer;
+        private int next;
+        
+        GroupSpliterator(int lo, int hi, int only) {
+            this.only = only;
+            this.hi = hi;
+            this.group = lo;
+        }
+        
+        @Override
+        public boolean tryAdvance(Consumer<? super Peptide> action) {
+            while(buffer == null || next == buffer.size()) {
+                if(group >= hi) {
+                    return false;
+                }
+                buffer = peptides(group++, only);
+                next = 0;
+            }
+            action.accept(buffer.get(next++));
+            return true;
+        }
+
+        @Override
+        public Spliterator<Peptide> trySplit() {
+            int mid = (group + hi) >>> 1;
+            if(mid <= group || buffer != null && next < buffer.size()) {
+                return null;
+            }
+            GroupSpliterator prefix = new GroupSpliterator(group, mid, only);
+            group = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            int pending = buffer == null ? 0 : buffer.size() - next;
+            return pending + (long)(hi - group) * Math.max(0, Math.min(maxLength, hi) - minLength + 1);
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+}
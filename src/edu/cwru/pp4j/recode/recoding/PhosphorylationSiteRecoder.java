@@ -20,16 +20,32 @@
  */
 package edu.cwru.pp4j.recode.recoding;
 
+import edu.cwru.pp4j.recode.io.BgzfOutputStream;
+import edu.cwru.pp4j.recode.io.ChannelWriter;
 import edu.cwru.pp4j.recode.proteins.Combinatorics;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import edu.cwru.pp4j.recode.proteins.AccessionDictionary;
 import edu.cwru.pp4j.recode.proteins.Fasta;
+import edu.cwru.pp4j.recode.proteins.FastaReader;
+import edu.cwru.pp4j.recode.proteins.FastaRecord;
 import edu.cwru.pp4j.recode.modsites.ModificationSite;
 import edu.cwru.pp4j.recode.modsites.ModificationSites;
 import edu.cwru.pp4j.recode.modsites.ModificationSiteAnnotator;
@@ -39,6 +55,9 @@ import edu.cwru.pp4j.recode.modsites.PhosphoSiteAnnotator;
 import edu.cwru.pp4j.recode.modsites.NullSiteAnnotator;
 import edu.cwru.pp4j.recode.proteins.PeptideFactory;
 import edu.cwru.pp4j.recode.proteins.Peptide;
+import edu.cwru.pp4j.recode.proteins.Specificity;
+import edu.cwru.pp4j.recode.proteins.Digest;
+import edu.cwru.pp4j.recode.proteins.DigestCache;
 
 /**
  * Recodes the known phosphorylation sites located on protein sequences to a 
@@ -56,7 +75,459 @@ import edu.cwru.pp4j.recode.proteins.Peptide;
  */
 public class PhosphorylationSiteRecoder {
     private static final Logger LOGGER = LogManager.getFormatterLogger(PhosphorylationSiteRecoder.class.getName());
+    private AccessionDictionary dictionary = new AccessionDictionary();
+    private PeptideFactory peptideFactory;
+    private RecodeConfig factoryConfig;
+    private DigestCache digests;
+    private char[] residues = new char[64];
+    private ExecutorService pool;
+    private int threads = 1;
+    private PrecursorFilter precursors;
+    
+    /**
+     * The annotator of a recoder that works on a batch thread.
+     */
+    private ModificationSiteAnnotator workerSites;
+    private volatile StagedRecoder staged;
+    private ExecutorService deflaters;
+    private String outputPath;
+    
+    /**
+     * The smallest number of combinations of a peptide that is recoded on 
+     * more than one thread.
+     */
+    private static final long PARALLEL_COMBINATIONS = 1 << 14;
+    
+    /**
+     * The smallest number of combinations recoded by one task.
+     */
+    private static final long PARALLEL_CHUNK = 1 << 12;
+    
+    /**
+     * The number of proteins recoded by one task in parallel mode.
+     */
+    private static final int PROTEIN_BATCH = 64;
+    
+    /**
+     * Interval between reports of the queue depths of a staged recode, in
+     * nanoseconds.
+     */
+    private static final long QUEUE_REPORT_INTERVAL = 10000000000L;
+    
+    /**
+     * The known sites of a peptide, and everything needed to write the 
+     * FASTA entry of any combination of them. Instances are not modified 
+     * after construction, so ranges of combinations can be written from 
+     * several threads at once as long as each has its own buffer.
+     */
+    private final class SiteCombinations {
+        private final String accession;
+        private final char[] template;
+        private final String[] labels;
+        private final int[] positions;
+        private final char[] original;
+        private final char[] recoded;
+        
+        SiteCombinations(String accession, CharSequence sequence, Integer[] siteIndices, ModificationSite[] sites) throws Exception {
+            this.accession = accession;
+            template = new char[sequence.length()];
+            for(int i=0;i<template.length;i++) {
+                template[i] = sequence.charAt(i);
+            }
+            labels = new String[sites.length];
+            positions = new int[sites.length];
+            original = new char[sites.length];
+            recoded = new char[sites.length];
+            for(int i=0;i<sites.length;i++) {
+                labels[i] = "_"+sites[i];
+                positions[i] = siteIndices[i];
+                original[i] = template[positions[i]];
+                recoded[i] = recodeAminoAcid(original[i]);
+            }
+        }
+        
+        /**
+         * Write the FASTA entries of the combinations of k sites with ranks
+         * from first (inclusive) to last (exclusive). The combinations are
+         * recoded in place in the argument buffer, and with bitmasks only the
+         * sites that differ from the previous combination are changed.
+         */
+        void write(int k, long first, long last, char[] buffer, Writer out) throws Exception {
+            int length = template.length;
+            System.arraycopy(template, 0, buffer, 0, length);
+            Combinatorics combinatorics = new Combinatorics(positions.length, k);
+            if(first > 0) {
+                combinatorics.goTo(first);
+            }
+            
+            if(combinatorics.hasMask()) {
+                long previous = 0;
+                for(long rank=first;rank<last;rank++) {
+                    if(rank > first && !combinatorics.next()) {
+                        break;
+                    }
+                    long mask = combinatorics.getMask();
+                    for(long changed=previous^mask;changed!=0;changed&=changed-1) {
+                        int site = Long.numberOfTrailingZeros(changed);
+                        buffer[positions[site]] = (mask & (1L << site)) != 0 ? recoded[site] : original[site];
+                    }
+                    previous = mask;
+
+                    /* Write a FASTA entry of >{ACCESSION}\n{SEQUENCE}\n */
+                    out.write('>');
+                    out.write(accession);
+                    for(long m=mask;m!=0;m&=m-1) {
+                        out.write(labels[Long.numberOfTrailingZeros(m)]);
+                    }
+                    out.write('\n');
+                    out.write(buffer, 0, length);
+                    out.write('\n');
+                    if(LOGGER.isTraceEnabled()) {
+                        LOGGER.trace("Recoded %s as %s",new String(template),new String(buffer, 0, length));
+                    }
+                }
+            }
+            else {
+                for(long rank=first;rank<last;rank++) {
+                    if(rank > first && !combinatorics.next()) {
+                        break;
+                    }
+                    int[] siteNumbers = combinatorics.getCurrent();
+                    out.write('>');
+                    out.write(accession);
+                    for(int i=0;i<siteNumbers.length;i++) {
+                        buffer[positions[siteNumbers[i]]] = recoded[siteNumbers[i]];
+                        out.write(labels[siteNumbers[i]]);
+                    }
+                    out.write('\n');
+                    out.write(buffer, 0, length);
+                    out.write('\n');
+                    for(int i=0;i<siteNumbers.length;i++) {
+                        buffer[positions[siteNumbers[i]]] = original[siteNumbers[i]];
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Write the FASTA entries of all combinations of k sites, recoding 
+         * contiguous ranges of ranks on the thread pool. Only a few ranges 
+         * are in flight at a time, and they are written in rank order.
+         */
+        void writeInParallel(final int k, long count, Writer out) throws Exception {
+            long chunk = Math.max(PARALLEL_CHUNK, count/(threads*4));
+            Deque<Future<CharArrayWriter>> pending = new ArrayDeque<>();
+            try {
+                for(long first=0;first<count;first+=chunk) {
+                    final long from = first;
+                    final long to = Math.min(count, first+chunk);
+                    pending.add(pool.submit(new Callable<CharArrayWriter>() {
+                        @Override
+                        public CharArrayWriter call() throws Exception {
+                            CharArrayWriter entries = new CharArrayWriter();
+                            write(k, from, to, new char[template.length], entries);
+                            return entries;
+                        }
+                    }));
+                    if(pending.size() >= threads*2) {
+                        pending.poll().get().writeTo(out);
+                    }
+                }
+                while(!pending.isEmpty()) {
+                    pending.poll().get().writeTo(out);
+                }
+            }
+            catch(ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+            }
+            finally {
+                /* After a failure, stop the ranges still in flight */
+                for(Future<CharArrayWriter> range : pending) {
+                    range.cancel(true);
+                }
+            }
+        }
+    }
         
+    /**
+     * Recodes batches of proteins on a pool of worker threads. Each worker 
+     * thread has its own recoder, and its own modification site annotator 
+     * because annotators cache the sites of the last protein. Each batch is 
+     * written to a buffer, and the buffers are written to the output in the
+     * order the proteins were added, so the output is identical to that of 
+     * the sequential recode. Only a few batches are in flight at a time, so 
+     * memory use does not depend on the size of the database.
+     */
+    private final class ProteinBatches {
+        private final RecodeConfig config;
+        private final ModificationSiteAnnotator knownSites;
+        private final Writer out;
+        private final int workers;
+        private final ExecutorService executor;
+        private final Deque<Future<CharArrayWriter>> pending = new ArrayDeque<>();
+        private final ThreadLocal<PhosphorylationSiteRecoder> recoders = new ThreadLocal<>();
+        private final List<ModificationSiteAnnotator> annotators = new ArrayList<>();
+        private int[] ids = new int[PROTEIN_BATCH];
+        private CharSequence[] sequences = new CharSequence[PROTEIN_BATCH];
+        private int n = 0;
+        
+        ProteinBatches(RecodeConfig config, ModificationSiteAnnotator knownSites, Writer out) {
+            this.config = config;
+            this.knownSites = knownSites;
+            this.out = out;
+            this.workers = config.getWorkers();
+            this.executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "protein-recoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        
+        /**
+         * Create the recoder of the calling worker thread, with its own 
+         * connection to the modification site database.
+         */
+        private PhosphorylationSiteRecoder recoder() throws Exception {
+            PhosphorylationSiteRecoder recoder = recoders.get();
+            if(recoder == null) {
+                recoder = worker();
+                recoder.workerSites = knownSites.isEmpty() ? knownSites : new PhosphoSiteAnnotator(config.getModSiteDatabase(), dictionary);
+                synchronized(annotators) {
+                    annotators.add(recoder.workerSites);
+                }
+                recoders.set(recoder);
+            }
+            return recoder;
+        }
+        
+        /**
+         * Add a protein to the current batch, submitting the batch when it is
+         * full.
+         */
+        void add(int accessionId, CharSequence sequence) throws Exception {
+            ids[n] = accessionId;
+            sequences[n] = sequence;
+            if(++n == PROTEIN_BATCH) {
+                submit();
+            }
+        }
+        
+        private void submit() throws Exception {
+            final int[] batchIds = ids;
+            final CharSequence[] batchSequences = sequences;
+            final int size = n;
+            ids = new int[PROTEIN_BATCH];
+            sequences = new CharSequence[PROTEIN_BATCH];
+            n = 0;
+            
+            pending.add(executor.submit(new Callable<CharArrayWriter>() {
+                @Override
+                public CharArrayWriter call() throws Exception {
+                    PhosphorylationSiteRecoder recoder = recoder();
+                    CharArrayWriter entries = new CharArrayWriter();
+                    for(int i=0;i<size;i++) {
+                        recoder.recodeProtein(config, batchIds[i], batchSequences[i], recoder.workerSites, entries);
+                    }
+                    return entries;
+                }
+            }));
+            while(pending.size() >= workers*4) {
+                write();
+            }
+        }
+        
+        /**
+         * Write the oldest batch once it is recoded.
+         */
+        private void write() throws Exception {
+            try {
+                pending.poll().get().writeTo(out);
+            }
+            catch(ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+            }
+        }
+        
+        /**
+         * Recode the last partial batch and write every pending batch.
+         */
+        void finish() throws Exception {
+            if(n > 0) {
+                submit();
+            }
+            while(!pending.isEmpty()) {
+                write();
+            }
+        }
+        
+        /**
+         * Stop the workers and close their annotators.
+         */
+        void close() throws Exception {
+            executor.shutdownNow();
+            for(ModificationSiteAnnotator annotator : annotators) {
+                if(annotator != knownSites) {
+                    annotator.finish();
+                }
+            }
+        }
+    }
+        
+    /**
+     * A protein on its way through the stages of a {@link StagedRecoder}. 
+     * Each stage fills in the fields that the next one needs.
+     */
+    private static final class ProteinWork {
+        final int accessionId;
+        CharSequence sequence;
+        List<Peptide> peptides;
+        List<ModificationSites> known;
+        
+        ProteinWork(int accessionId, CharSequence sequence) {
+            this.accessionId = accessionId;
+            this.sequence = sequence;
+        }
+    }
+    
+    /**
+     * Recodes proteins on a {@link Pipeline} of stages, each with its own 
+     * number of threads: digesting the sequences into peptides, annotating 
+     * the known sites of the peptides, and enumerating the combinations of 
+     * sites into FASTA entries. The calling thread reads the proteins and 
+     * the sink writes the entries in database order, so the output is the 
+     * same as recoding one protein at a time. The queue depths of the stages
+     * are logged periodically to show which stage limits throughput.
+     */
+    private final class StagedRecoder {
+        private final RecodeConfig config;
+        private final ModificationSiteAnnotator knownSites;
+        private final Pipeline pipeline;
+        private final List<ModificationSiteAnnotator> annotators = new ArrayList<>();
+        private long reported = System.nanoTime();
+        
+        StagedRecoder(final RecodeConfig config, final ModificationSiteAnnotator knownSites, final Writer out) throws Exception {
+            this.config = config;
+            this.knownSites = knownSites;
+            this.pipeline = new Pipeline(config.getQueueCapacity());
+            
+            /* Each thread digests with its own peptide factory */
+            pipeline.addStage("digest", config.getDigestThreads(), new Pipeline.StageFactory<ProteinWork,ProteinWork>() {
+                @Override
+                public Pipeline.Stage<ProteinWork,ProteinWork> create() {
+                    final PhosphorylationSiteRecoder recoder = worker();
+                    return new Pipeline.Stage<ProteinWork,ProteinWork>() {
+                        @Override
+                        public ProteinWork process(ProteinWork protein) throws Exception {
+                            PeptideFactory factory = recoder.digest(config, protein.accessionId, protein.sequence);
+                            protein.sequence = factory.getSequence();
+                            protein.peptides = new ArrayList<>();
+                            List<Peptide> peptides;
+                            while((peptides=factory.GetNext(-1)) != null) {
+                                protein.peptides.addAll(peptides);
+                            }
+                            return protein;
+                        }
+                    };
+                }
+            });
+            
+            /* Each thread queries its own connection to the site database */
+            pipeline.addStage("annotate", config.getAnnotateThreads(), new Pipeline.StageFactory<ProteinWork,ProteinWork>() {
+                @Override
+                public Pipeline.Stage<ProteinWork,ProteinWork> create() throws Exception {
+                    final ModificationSiteAnnotator sites = knownSites.isEmpty() ? knownSites : new PhosphoSiteAnnotator(config.getModSiteDatabase(), dictionary);
+                    synchronized(annotators) {
+                        annotators.add(sites);
+                    }
+                    return new Pipeline.Stage<ProteinWork,ProteinWork>() {
+                        @Override
+                        public ProteinWork process(ProteinWork protein) throws Exception {
+                            List<Peptide> accepted = new ArrayList<>();
+                            List<ModificationSites> known = new ArrayList<>();
+                            annotatePeptides(config, protein.accessionId, sites, protein.peptides, accepted, known);
+                            protein.peptides = accepted;
+                            protein.known = known;
+                            return protein;
+                        }
+                    };
+                }
+            });
+            
+            /* Each thread filters precursors with its own copy of the 
+             * filter */
+            pipeline.addStage("enumerate", config.getEnumerateThreads(), new Pipeline.StageFactory<ProteinWork,CharArrayWriter>() {
+                @Override
+                public Pipeline.Stage<ProteinWork,CharArrayWriter> create() {
+                    final PhosphorylationSiteRecoder recoder = worker();
+                    return new Pipeline.Stage<ProteinWork,CharArrayWriter>() {
+                        @Override
+                        public CharArrayWriter process(ProteinWork protein) throws Exception {
+                            String accession = dictionary.accession(protein.accessionId);
+                            if(recoder.precursors != null) {
+                                recoder.precursors.setProtein(protein.sequence);
+                            }
+                            CharArrayWriter entries = new CharArrayWriter();
+                            for(int i=0;i<protein.peptides.size();i++) {
+                                recoder.writePeptide(config, accession, protein.peptides.get(i), protein.known.get(i), entries);
+                            }
+                            return entries;
+                        }
+                    };
+                }
+            });
+            
+            pipeline.start(new Pipeline.Sink<CharArrayWriter>() {
+                @Override
+                public void accept(CharArrayWriter entries) throws Exception {
+                    entries.writeTo(out);
+                }
+            });
+            LOGGER.info("Recoding proteins on %d digest, %d annotate and %d enumerate threads",
+                    config.getDigestThreads(),
+                    config.getAnnotateThreads(),
+                    config.getEnumerateThreads());
+        }
+        
+        /**
+         * Submit a protein to the pipeline, waiting while it is full.
+         */
+        void add(int accessionId, CharSequence sequence) throws Exception {
+            pipeline.submit(new ProteinWork(accessionId, sequence));
+            long now = System.nanoTime();
+            if(now - reported > QUEUE_REPORT_INTERVAL) {
+                LOGGER.info("Recode queues : %s",pipeline);
+                reported = now;
+            }
+        }
+        
+        /**
+         * Wait for every submitted protein to be written.
+         */
+        void finish() throws Exception {
+            pipeline.finish();
+        }
+        
+        /**
+         * Stop the stages and close their annotators.
+         */
+        void close() throws Exception {
+            pipeline.close();
+            for(ModificationSiteAnnotator annotator : annotators) {
+                if(annotator != knownSites) {
+                    annotator.finish();
+                }
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return pipeline.toString();
+        }
+    }
+    
     /**
      * Creates a unique accession for each recoded peptide that will be output
      * by concatenating the protein accession with the unique combination of 
@@ -121,8 +592,11 @@ public class PhosphorylationSiteRecoder {
      * @return The recoded sequence as character array
      * @throws Exception If the underlying recode operations fail
      */
-    public char[] recodePeptide(String sequence, int[] siteNumbers, Integer[] siteIndices) throws Exception {
-        char[] aminoAcids = sequence.toCharArray();
+    public char[] recodePeptide(CharSequence sequence, int[] siteNumbers, Integer[] siteIndices) throws Exception {
+        char[] aminoAcids = new char[sequence.length()];
+        for(int i=0;i<aminoAcids.length;i++) {
+            aminoAcids[i] = sequence.charAt(i);
+        }
         for(int i=0;i<siteNumbers.length;i++) {
             aminoAcids[siteIndices[siteNumbers[i]]]=recodeAminoAcid(aminoAcids[siteIndices[siteNumbers[i]]]);
         }
@@ -139,95 +613,401 @@ public class PhosphorylationSiteRecoder {
      * @param out output stream for writing recoded FASTA entries
      * @throws Exception if the request cannot be fulfilled.
      */
-    public void recodePeptides(RecodeConfig config, String accession, ModificationSiteAnnotator knownSites, List<Peptide> peptides, BufferedWriter out)
+    public void recodePeptides(RecodeConfig config, String accession, ModificationSiteAnnotator knownSites, List<Peptide> peptides, Writer out)
     throws Exception {
-        for(Peptide peptide : peptides) {           
-            /* Skip peptides of length < minimum */
-            if(peptide.length() < config.getMinPeptideLength() || peptide.length() > config.getMaxPeptideLength()) {
-                LOGGER.trace("Skipping peptide %s with length %d because it does not satisfy the configured min/max lengths [%d/%d]",
-                        peptide.sequence(),
-                        peptide.sequence().length(),
-                        config.getMinPeptideLength(),
-                        config.getMaxPeptideLength());
+        recodePeptides(config, dictionary.id(accession), knownSites, peptides, out);
+    }
+    
+    /**
+     * Recode the modifications sites on a list of peptides, writing the results
+     * to the argument output stream.
+     * @param config the parameters specifying how to recode the pepetides
+     * @param accessionId identifier of the protein accession in the 
+     * {@link AccessionDictionary} of the recoder
+     * @param knownSites set of known modification sites
+     * @param peptides list of peptides to recode
+     * @param out output stream for writing recoded FASTA entries
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public void recodePeptides(RecodeConfig config, int accessionId, ModificationSiteAnnotator knownSites, List<Peptide> peptides, Writer out)
+    throws Exception {
+        String accession = dictionary.accession(accessionId);
+        for(Peptide peptide : peptides) {
+            ModificationSites known = annotatePeptide(config, accessionId, knownSites, peptide);
+            if(known == null) {
                 continue;
             }
+            writePeptide(config, accession, peptide, known, out);
             
-            /* Skip peptides that have non-standard amno acids in their sequence
-             * that conflict with our recode namespalce of B/U/Z */
-            if(peptide.sequence().contains("B") ||
-               peptide.sequence().contains("U") || 
-               peptide.sequence().contains("Z")) {
-                LOGGER.warn("Skipping peptide %s that contains conflicting non-standard amino acids\n",
-                        peptide.sequence());
-                continue;
+            /* If peptide starts at protein N-terminus, check for Methionine */
+            if(cleavesMethionine(config, peptide)) {
+                LOGGER.trace("Cleaving N-term methionine of %s",
+                        peptide.residues());
+                peptide = PeptideFactory.cleaveNTerm(peptide);
+                List<Peptide> recursiveList = new ArrayList<>();
+                recursiveList.add(peptide);
+                recodePeptides(config, accessionId, knownSites, recursiveList, out);
             }
-            
-            LOGGER.trace("Processing potential modification sites of peptide %s",peptide.sequence());
-            
-            /* Parse all potential S/T/Y modification sites */
-            ModificationSites potentialSites = ModificationSiteParser.parsePhosphorylationSites(peptide);
+        }
 
-            /* Filter to known S/T/Y modification sites */
-            ModificationSitesAnnotated sites = knownSites.annotate(accession, potentialSites);
-            ModificationSites known = sites.getKnown();
-            
-            /* If no sites on peptide, and the modification site database is not
-             * empty, we should skip this peptide because we are only interested
-             * in peptides that overlap sites in the reference database. If the
-             * reference database is empty, then the user is interested in all
-             * peptides, not just the ones that overlap a set of modification
-             * sites, so we continue. */
-            if(known.size() == 0 && !knownSites.isEmpty()) {
-                LOGGER.trace("No annotated sites on peptide %s",peptide.sequence());
-                continue;
+    }
+    
+    /**
+     * Check that a peptide can be recoded, and annotate its known 
+     * modification sites.
+     * @param config the parameters specifying how to recode the pepetides
+     * @param accessionId identifier of the protein accession in the 
+     * {@link AccessionDictionary} of the recoder
+     * @param knownSites set of known modification sites
+     * @param peptide peptide to annotate
+     * @return The known sites of the peptide, or null if it is skipped.
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    private ModificationSites annotatePeptide(RecodeConfig config, int accessionId, ModificationSiteAnnotator knownSites, Peptide peptide)
+    throws Exception {
+        /* Skip peptides of length < minimum */
+        if(peptide.length() < config.getMinPeptideLength() || peptide.length() > config.getMaxPeptideLength()) {
+            LOGGER.trace("Skipping peptide %s with length %d because it does not satisfy the configured min/max lengths [%d/%d]",
+                    peptide.residues(),
+                    peptide.length(),
+                    config.getMinPeptideLength(),
+                    config.getMaxPeptideLength());
+            return null;
+        }
+
+        /* Skip peptides that have non-standard amno acids in their sequence
+         * that conflict with our recode namespalce of B/U/Z */
+        if(ModificationSiteParser.nRecodes(peptide.residues()) > 0) {
+            LOGGER.warn("Skipping peptide %s that contains conflicting non-standard amino acids\n",
+                    peptide.residues());
+            return null;
+        }
+
+        LOGGER.trace("Processing potential modification sites of peptide %s",peptide.residues());
+
+        /* Parse all potential S/T/Y modification sites */
+        ModificationSites potentialSites = ModificationSiteParser.parsePhosphorylationSites(peptide);
+
+        /* Filter to known S/T/Y modification sites */
+        ModificationSitesAnnotated sites = knownSites.annotate(accessionId, potentialSites);
+        ModificationSites known = sites.getKnown();
+
+        /* If no sites on peptide, and the modification site database is not
+         * empty, we should skip this peptide because we are only interested
+         * in peptides that overlap sites in the reference database. If the
+         * reference database is empty, then the user is interested in all
+         * peptides, not just the ones that overlap a set of modification
+         * sites, so we continue. */
+        if(known.size() == 0 && !knownSites.isEmpty()) {
+            LOGGER.trace("No annotated sites on peptide %s",peptide.residues());
+            return null;
+        }
+        return known;
+    }
+    
+    /**
+     * Write the FASTA entries of an annotated peptide: the peptide itself 
+     * when only digesting, and otherwise each combination of its known sites.
+     * @param config the parameters specifying how to recode the pepetides
+     * @param accession the protein accession
+     * @param peptide peptide to write
+     * @param known the known sites of the peptide
+     * @param out output stream for writing recoded FASTA entries
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    private void writePeptide(RecodeConfig config, String accession, Peptide peptide, ModificationSites known, Writer out)
+    throws Exception {
+        /* When targeting observed precursors, compute the masses the 
+         * peptide could be observed at once for all combinations */
+        if(precursors != null) {
+            precursors.setPeptide(peptide);
+        }
+
+        /* If only digesting the protein, not recoding modification sites,
+         * output the peptide here */
+        if(config.getDigestOnly()) {
+            if(precursors != null && !precursors.accepts(0)) {
+                LOGGER.trace("No precursor matches peptide %s",peptide.residues());
+                return;
             }
-            
-            /* If only digesting the protein, not recoding modification sites,
-             * output the peptide here and continue */
-            if(config.getDigestOnly()) {
-                out.write(">"+accession+"_"+peptide.start()+"_"+peptide.end()+"\n"+peptide.sequence()+"\n");
+            out.write(">"+accession+"_"+peptide.start()+"_"+peptide.end()+"\n");
+            out.append(peptide.residues());
+            out.write("\n");
+            return;
+        }
+
+        /* Otherwise, combinatorially enumerate known sites up to the 
+         * maximum number of concurrent modifications */
+        Integer[] knownSiteIndicesAsArray = known.getIndices().toArray(new Integer[known.size()]);
+        ModificationSite[] knownSiteAminoAcidsAsArray = known.getSites().toArray(new ModificationSite[known.size()]);
+        int N = config.getMaxModifications() > known.size() ? known.size() : config.getMaxModifications();
+
+        /* The accession prefix, and the label and substitution code of 
+         * each site, are the same for every combination */
+        String peptideAccession = makeAccessionLine(accession,peptide.start(),peptide.end(),new int[0],knownSiteAminoAcidsAsArray);
+        SiteCombinations combinations = new SiteCombinations(peptideAccession, peptide.residues(), knownSiteIndicesAsArray, knownSiteAminoAcidsAsArray);
+        if(residues.length < peptide.length()) {
+            residues = new char[Math.max(peptide.length(), residues.length*2)];
+        }
+
+        /* Large numbers of combinations are split into ranges of ranks 
+         * that are recoded on the thread pool and written in order */
+        for(int k=1;k<=N;k++) {
+            if(precursors != null && !precursors.accepts(k)) {
+                LOGGER.trace("No precursor matches peptide %s with %d recoded sites",peptide.residues(),k);
                 continue;
             }
-            
-            /* Otherwise, combinatorially enumerate known sites up to the 
-             * maximum number of concurrent modifications */
-            Integer[] knownSiteIndicesAsArray = known.getIndices().toArray(new Integer[known.size()]);
-            ModificationSite[] knownSiteAminoAcidsAsArray = known.getSites().toArray(new ModificationSite[known.size()]);
-            int N = config.getMaxModifications() > known.size() ? known.size() : config.getMaxModifications();
-            for(int k=1;k<=N;k++) {
-                LOGGER.trace("Recoding %d sites %d at a time",known.size(),k);
-                Combinatorics combinatorics = new Combinatorics(known.size(),k);
-                int[] siteNumbers = combinatorics.getCurrent();
-                while(siteNumbers.length > 0) {
-                    char[] recodedPeptide = recodePeptide(peptide.sequence(),siteNumbers,knownSiteIndicesAsArray);
-                    String recodedAccession = makeAccessionLine(accession,peptide.start(),peptide.end(),siteNumbers,knownSiteAminoAcidsAsArray);
-                    
-                    /* Build a FASTA entry of >{ACCESSION}\n{SEQUENCE}\n */
-                    StringBuilder sb = new StringBuilder();
-                    sb.append(">");
-                    sb.append(recodedAccession);
-                    sb.append("\n");
-                    sb.append(recodedPeptide);
-                    sb.append("\n");
-                    out.write(sb.toString());                    
-                    LOGGER.trace(sb.toString().replace("\n", "\\n"));
-                    
-                    /* Get next set of recode sites */
-                    siteNumbers = combinatorics.getNext();
-                }
+            LOGGER.trace("Recoding %d sites %d at a time",known.size(),k);
+            long count = Combinatorics.choose(known.size(), k);
+            if(pool != null && count >= PARALLEL_COMBINATIONS) {
+                combinations.writeInParallel(k, count, out);
             }
-            
-            /* If peptide starts at protein N-terminus, check for Methionine. */
-            if(peptide.start() == 0 && peptide.sequence().charAt(0) == 'M') {
-                LOGGER.trace("Cleaving N-term methionine of %s",
-                        peptide.sequence());
-                peptide = PeptideFactory.cleaveNTerm(peptide);
+            else {
+                combinations.write(k, 0, count == -1 ? Long.MAX_VALUE : count, residues, out);
+            }
+        }
+    }
+    
+    /**
+     * Check whether a peptide is also recoded without its N-terminal 
+     * methionine. Semi-specific and non-specific digests already generate 
+     * the peptides following the Methionine, and digest only output is
+     * not extended.
+     * @param config the parameters specifying how to recode the pepetides
+     * @param peptide a peptide that was recoded
+     * @return true if the peptide without its first residue is recoded too.
+     */
+    private static boolean cleavesMethionine(RecodeConfig config, Peptide peptide) {
+        return !config.getDigestOnly() 
+                && peptide.start() == 0 
+                && peptide.residues().charAt(0) == 'M' 
+                && config.getSpecificity() == Specificity.FULL;
+    }
+    
+    /**
+     * Annotate a list of peptides, collecting those that are recoded and 
+     * their known sites in output order, including the peptides cleaved of 
+     * their N-terminal methionine.
+     */
+    private void annotatePeptides(RecodeConfig config, int accessionId, ModificationSiteAnnotator knownSites, List<Peptide> peptides, List<Peptide> accepted, List<ModificationSites> known)
+    throws Exception {
+        for(Peptide peptide : peptides) {
+            ModificationSites sites = annotatePeptide(config, accessionId, knownSites, peptide);
+            if(sites == null) {
+                continue;
+            }
+            accepted.add(peptide);
+            known.add(sites);
+            if(cleavesMethionine(config, peptide)) {
                 List<Peptide> recursiveList = new ArrayList<>();
-                recursiveList.add(peptide);
-                recodePeptides(config, accession, knownSites, recursiveList, out);
+                recursiveList.add(PeptideFactory.cleaveNTerm(peptide));
+                annotatePeptides(config, accessionId, knownSites, recursiveList, accepted, known);
             }
         }
+    }
+    
+    /**
+     * Digest a single protein sequence and recode the resulting peptides,
+     * writing the results to the argument output stream.
+     * @param config the parameters specifying how to recode the protein
+     * @param accession the protein accession
+     * @param sequence the protein amino acid sequence
+     * @param knownSites set of known modification sites
+     * @param out output stream for writing recoded FASTA entries
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public void recodeProtein(RecodeConfig config, String accession, CharSequence sequence, ModificationSiteAnnotator knownSites, Writer out)
+    throws Exception {
+        recodeProtein(config, dictionary.id(accession), sequence, knownSites, out);
+    }
+    
+    /**
+     * Digest a single protein sequence and recode the resulting peptides,
+     * writing the results to the argument output stream.
+     * @param config the parameters specifying how to recode the protein
+     * @param accessionId identifier of the protein accession in the 
+     * {@link AccessionDictionary} of the recoder
+     * @param sequence the protein amino acid sequence
+     * @param knownSites set of known modification sites
+     * @param out output stream for writing recoded FASTA entries
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public void recodeProtein(RecodeConfig config, int accessionId, CharSequence sequence, ModificationSiteAnnotator knownSites, Writer out)
+    throws Exception {
+        LOGGER.trace("Processing protein sequence with accession %s and length %d",dictionary.accession(accessionId),sequence.length());
+
+        PeptideFactory peptideFactory = digest(config, accessionId, sequence);
+        if(precursors != null) {
+            precursors.setProtein(peptideFactory.getSequence());
+        }
 
+        /* Digest the protein sequence into peptides */
+        List<Peptide> peptides = peptideFactory.GetNext(-1);
+
+        /* Iterate over the digested peptides search for phosphorylation
+         * sites to re-code */
+        while(peptides != null) {
+            recodePeptides(config, accessionId, knownSites, peptides, out);
+            peptides = peptideFactory.GetNext(-1);
+        }
+    }
+    
+    /**
+     * Start digesting a protein sequence.
+     * @param config the parameters specifying how to digest the protein
+     * @param accessionId identifier of the protein accession in the 
+     * {@link AccessionDictionary} of the recoder
+     * @param sequence the protein amino acid sequence
+     * @return The peptide factory, ready to return the peptides
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    private PeptideFactory digest(RecodeConfig config, int accessionId, CharSequence sequence) throws Exception {
+        /* The factory is reused for every protein, so only the sequence
+         * changes */
+        PeptideFactory peptideFactory = peptideFactory(config);
+        peptideFactory.setSequence(sequence);
+        
+        /* Skip cleaving when the digest was cached by an earlier run, and
+         * otherwise cache it for the next one */
+        if(digests != null) {
+            Digest digest = digests.get(accessionId, peptideFactory.getSequence());
+            peptideFactory.start(digest);
+            if(digest == null) {
+                digests.put(accessionId, peptideFactory.getDigest());
+            }
+        }
+        else {
+            peptideFactory.start();
+        }
+        return peptideFactory;
+    }
+    
+    /**
+     * Create a recoder for a worker thread. It shares the site combination 
+     * pool and digest cache, and has its own peptide factory and copy of the
+     * precursor filter.
+     * @return The worker recoder
+     */
+    private PhosphorylationSiteRecoder worker() {
+        PhosphorylationSiteRecoder recoder = new PhosphorylationSiteRecoder();
+        recoder.pool = pool;
+        recoder.threads = threads;
+        recoder.digests = digests;
+        recoder.dictionary = dictionary;
+        recoder.precursors = precursors == null ? null : new PrecursorFilter(precursors);
+        return recoder;
+    }
+    
+    /**
+     * Retrieve the peptide factory configured for the argument parameters,
+     * creating it the first time a configuration is used.
+     * @param config the parameters specifying how to digest the protein 
+     * sequences.
+     * @return The configured factory
+     * @throws Exception if the configured protease is not available.
+     */
+    private PeptideFactory peptideFactory(RecodeConfig config) throws Exception {
+        if(config == factoryConfig) {
+            return peptideFactory;
+        }
+        
+        /* PeptideFactory digests the protein sequence into peptides. The
+         * boolean strict digest argument secifies whether to use the Expasy
+         * digest rules (which include exceptions and fine-grained cut
+         * sites) or to use relaxed rules that ignore exceptions (these are
+         * what many wet-bench scientists expect)*/
+        PeptideFactory factory = new PeptideFactory(config.getStrictDigest());
+        factory.setMissedCleavages(config.getMissedCleavages());
+        factory.setMinPeptideLength(config.getMinPeptideLength());
+        factory.setMaxPeptideLength(config.getMaxPeptideLength());
+        factory.setSpecificity(config.getSpecificity());
+        if(config.getRequireModSites()) {
+            factory.setRequiredResidues(ModificationSiteParser.PHOSPHORYLATION_RESIDUES);
+        }
+        if(!factory.setProtease(config.getProtease()) && config.getSpecificity() != Specificity.NONE) {
+            throw new Exception(String.format("Unknown protease %s",config.getProtease()));
+        }
+        
+        peptideFactory = factory;
+        factoryConfig = config;
+        return factory;
+    }
+    
+    /**
+     * Open the output of a recode: a single FASTA file, or shards of it 
+     * balanced by residue count or limited in size, optionally compressed.
+     * @param config the parameters specifying the output
+     * @return Writer of the recoded FASTA entries
+     * @throws Exception if the output cannot be created.
+     */
+    private Writer openOutput(RecodeConfig config) throws Exception {
+        String path = config.getOutputPath();
+        boolean sharded = config.getShards() > 1 || config.getMaxShardResidues() > 0;
+        int processors = Runtime.getRuntime().availableProcessors();
+        outputPath = path;
+        
+        if(!sharded) {
+            if(config.getCompressOutput()) {
+                LOGGER.info("Opened output file %s for writing compressed on %d threads",path,processors);
+                return new ChannelWriter(new BgzfOutputStream(new FileOutputStream(path), processors));
+            }
+            LOGGER.info("Opened output file %s for writing",path);
+            return new ChannelWriter(path);
+        }
+        
+        /* Shards are compressed when their names end with .gz, all on one
+         * pool of deflaters */
+        if(config.getCompressOutput()) {
+            deflaters = Executors.newFixedThreadPool(processors, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bgzf-deflater");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        ShardedFastaWriter shards = new ShardedFastaWriter(path, config.getShards(), config.getMaxShardResidues(), deflaters);
+        if(config.getMaxShardResidues() > 0) {
+            LOGGER.info("Writing shards %s, starting a new shard once one reaches %d residues",shards.shardPath(0),config.getMaxShardResidues());
+        }
+        else {
+            LOGGER.info("Writing %d shards %s balanced by residue count",config.getShards(),shards.shardPath(0));
+        }
+        return shards;
+    }
+    
+    /**
+     * Close the output of a failed recode and delete what was written, so a
+     * partial database is not mistaken for a complete one.
+     * @param out Writer returned by {@link #openOutput(RecodeConfig)}
+     */
+    private void discardOutput(Writer out) {
+        if(out instanceof ShardedFastaWriter) {
+            ((ShardedFastaWriter)out).discard();
+            return;
+        }
+        try {
+            out.close();
+        }
+        catch(IOException e) {
+            LOGGER.warn("Failed to close output file %s : %s",outputPath,e.getMessage());
+        }
+        finally {
+            new File(outputPath).delete();
+        }
+    }
+    
+    /**
+     * Report the queue depths of the stages of a running pipelined recode,
+     * e.g. "digest 0/64, annotate 64/64, enumerate 2/64, sink 0/64 
+     * (0 reordering)". The stage with a full queue in front of it is the 
+     * one limiting throughput.
+     * @return The queue depths, or null if no pipelined recode is running.
+     */
+    public String getQueueDepths() {
+        StagedRecoder current = staged;
+        return current == null ? null : current.toString();
     }
     
     /**
@@ -238,16 +1018,14 @@ public class PhosphorylationSiteRecoder {
      * @throws Exception if the request cannot be fulfilled.
      */
     public boolean recode(RecodeConfig config) throws Exception {
-        /* Load the protein sequence database. If it cannot be loaded,
-         * it throws an informative exception which we propagate back
-         * up the chain */
-        Fasta sequences = new Fasta(config.getDatabase());
-        LOGGER.info("Loaded FASTA database %s",config.getDatabase());
+        /* Accession identifiers are only shared by the objects of this run,
+         * so they are released when it ends */
+        dictionary = new AccessionDictionary();
         
         /* Connect to the modificationsite database */
         ModificationSiteAnnotator knownSites;
         if(!config.getModSiteDatabase().equals("--Select One--")) {
-            knownSites = new PhosphoSiteAnnotator(config.getModSiteDatabase());
+            knownSites = new PhosphoSiteAnnotator(config.getModSiteDatabase(), dictionary);
             LOGGER.info("Loaded modification site database %s",config.getModSiteDatabase());
         }
         else {
@@ -255,39 +1033,154 @@ public class PhosphorylationSiteRecoder {
             LOGGER.info("Will digest protein only (no recode of mondification sites)\n");
         }
         
-        /* Open output stream */
-        BufferedWriter out = new BufferedWriter(new FileWriter(config.getOutputName()));
-        LOGGER.info("Opened output file %s for writing",config.getOutputName());
+        /* Open the digest cache of the database. Without it, recoding 
+         * only takes longer, so failures are not fatal */
+        digests = null;
+        if(config.getSpecificity() != Specificity.NONE) {
+            try {
+                PeptideFactory factory = peptideFactory(config);
+                digests = DigestCache.open(config.getDatabase(), config.getProtease(), factory.getProtease(), config.getStrictDigest(), dictionary);
+                LOGGER.info(digests.isLoaded() ? "Loaded digest cache %s" : "Writing digest cache %s",digests.getPath());
+            }
+            catch(Exception e) {
+                LOGGER.warn("Digesting without a cache : %s",e.getMessage());
+            }
+        }
         
-        /* Digest the sequences stored in the database */
-        for(String accession : sequences.getAccessions()) {
-            String sequence = sequences.getSequence(accession);
-            LOGGER.trace("Processing protein sequence with accession %s and length %d",accession,sequence.length());
+        /* When a list of observed precursors is given, only peptides that 
+         * could match one of them are written */
+        precursors = null;
+        if(config.getPrecursors() != null) {
+            precursors = PrecursorFilter.load(config);
+            LOGGER.info("Loaded %d precursor masses from %s",precursors.size(),config.getPrecursors());
+        }
+        
+        /* Peptides with many combinations of known sites are recoded on a
+         * pool of worker threads */
+        threads = config.getThreads();
+        if(threads > 1) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "site-recoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            LOGGER.info("Recoding large site combinations on %d threads",threads);
+        }
+        
+        Writer out = null;
+        ProteinBatches batches = null;
+        boolean recoded = false;
+        try {
+            /* Open output stream. Entries are encoded straight to bytes in a 
+             * large buffer that is written to the file channel, or compressed
+             * to BGZF blocks on a thread pool, and may be split into shards */
+            out = openOutput(config);
             
-            /* PeptideFactory digests the protein sequence into peptides. The
-             * boolean strict digest argument secifies whether to use the Expasy
-             * digest rules (which include exceptions and fine-grained cut
-             * sites) or to use relaxed rules that ignore exceptions (these are
-             * what many wet-bench scientists expect)*/
-            PeptideFactory peptideFactory = new PeptideFactory(config.getStrictDigest());
-            peptideFactory.setMissedCleavages(config.getMissedCleavages());
-            peptideFactory.setProtease(config.getProtease());
-            peptideFactory.setSequence(sequence);
-            peptideFactory.start();
+            /* Proteins are recoded on a pipeline of stages when configured, 
+             * or in batches on a pool of workers when more than one is 
+             * configured */
+            if(config.getPipeline()) {
+                staged = new StagedRecoder(config, knownSites, out);
+            }
+            else if(config.getWorkers() > 1) {
+                batches = new ProteinBatches(config, knownSites, out);
+                LOGGER.info("Recoding proteins on %d threads",config.getWorkers());
+            }
+            
+            /* In streaming mode, proteins are read, digested and recoded one at a
+             * time so only a single sequence (or a few batches) is held in 
+             * memory */
+            if(config.getStreamDatabase()) {
+                try(FastaReader reader = new FastaReader(config.getDatabase(),true)) {
+                    LOGGER.info("Streaming FASTA database %s",config.getDatabase());
+                    FastaRecord record;
+                    while((record=reader.read()) != null) {
+                        if(staged != null) {
+                            staged.add(dictionary.id(record.getAccession()), record.getSequence());
+                        }
+                        else if(batches != null) {
+                            batches.add(dictionary.id(record.getAccession()), record.getSequence());
+                        }
+                        else {
+                            recodeProtein(config, record.getAccession(), record.getSequence(), knownSites, out);
+                        }
+                    }
+                }
+            }
             
-            /* Digest the protein sequence into peptides */
-            List<Peptide> peptides = peptideFactory.GetNext(-1);
+            /* Otherwise open the protein sequence database. Sequences are read on
+             * demand from a memory-mapped file using the index written at import
+             * time. If it cannot be opened, it throws an informative exception 
+             * which we propagate back up the chain */
+            else {
+                try(Fasta sequences = Fasta.open(config.getDatabase(), true, dictionary)) {
+                    LOGGER.info("Opened FASTA database %s",config.getDatabase());
+                
+                    /* Digest the sequences stored in the database */
+                    for(int accessionId : sequences.getAccessionIds()) {
+                        if(staged != null) {
+                            staged.add(accessionId, sequences.getResidues(accessionId));
+                        }
+                        else if(batches != null) {
+                            batches.add(accessionId, sequences.getResidues(accessionId));
+                        }
+                        else {
+                            recodeProtein(config, accessionId, sequences.getResidues(accessionId), knownSites, out);
+                        }
+                    }
+                }
+            }
+            if(staged != null) {
+                staged.finish();
+            }
+            if(batches != null) {
+                batches.finish();
+            }
+            out.close();
+            recoded = true;
             
-            /* Iterate over the digested peptides search for phosphorylation
-             * sites to re-code */
-            while(peptides != null) {
-                recodePeptides(config, accession, knownSites, peptides, out);
-                peptides = peptideFactory.GetNext(-1);
+            if(digests != null) {
+                digests.commit();
+            }
+        }
+        finally {
+            try {
+                if(staged != null) {
+                    staged.close();
+                }
+                if(batches != null) {
+                    batches.close();
+                }
+            }
+            finally {
+                /* Discard a partly written output and cache */
+                if(out != null && !recoded) {
+                    discardOutput(out);
+                }
+                staged = null;
+                if(pool != null) {
+                    pool.shutdownNow();
+                    pool = null;
+                }
+                if(deflaters != null) {
+                    deflaters.shutdownNow();
+                    deflaters = null;
+                }
+                precursors = null;
+                try {
+                    if(digests != null) {
+                        digests.close();
+                    }
+                }
+                finally {
+                    digests = null;
+                    knownSites.finish();
+                }
             }
         }
-        out.close();
-        
-        knownSites.finish();
         
         return true;
     }
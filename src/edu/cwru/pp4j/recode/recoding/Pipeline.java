@@ -0,0 +1,382 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.recoding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A chain of processing stages connected by bounded queues. Items are 
+ * submitted by the calling thread, pass through every stage in turn, and 
+ * reach a single sink thread in the order they were submitted. Each stage 
+ * runs on its own number of threads, and each thread has its own 
+ * {@link Stage} instance, so stages may keep per-thread state such as a 
+ * database connection.<br><br>
+ * 
+ * A full queue blocks the stage that feeds it, so a slow stage holds back 
+ * the stages before it instead of letting work pile up, and the depth of 
+ * each queue ({@link #depth(int)}, {@link #toString()}) shows which stage 
+ * is the bottleneck: the queue in front of it stays full and the queues 
+ * after it stay empty. Items that finish a parallel stage out of order wait
+ * at the sink until their predecessors arrive, and the number of items in 
+ * flight is bounded so that this wait cannot grow without limit.<br><br>
+ * 
+ * If any stage or the sink throws, the pipeline stops and the exception is
+ * rethrown by {@link #submit(Object)} or {@link #finish()}.
+ * 
+ * @author Sean Maxwell
+ */
+public class Pipeline {
+    /**
+     * Marks the end of the items.
+     */
+    private static final Object END = new Object();
+    
+    /**
+     * Processes one item at a time on a single thread of a stage.
+     * 
+     * @param <I> Type of the items taken from the previous stage
+     * @param <O> Type of the items passed to the next stage
+     */
+    public static abstract class Stage<I,O> {
+        /**
+         * Process an item.
+         * @param item Item from the previous stage
+         * @return Item for the next stage
+         * @throws Exception if the item cannot be processed.
+         */
+        public abstract O process(I item) throws Exception;
+        
+        /**
+         * Release any resources of the stage once every item is processed,
+         * or once the pipeline has failed.
+         * @throws Exception if the request cannot be fulfilled.
+         */
+        public void close() throws Exception {
+            
+        }
+    }
+    
+    /**
+     * Creates the Stage instance of each thread of a stage.
+     * 
+     * @param <I> Type of the items taken from the previous stage
+     * @param <O> Type of the items passed to the next stage
+     */
+    public interface StageFactory<I,O> {
+        Stage<I,O> create() throws Exception;
+    }
+    
+    /**
+     * Consumes the items of the last stage, in submission order, on a single 
+     * thread.
+     * 
+     * @param <I> Type of the items of the last stage
+     */
+    public interface Sink<I> {
+        void accept(I item) throws Exception;
+    }
+    
+    /**
+     * An item and its submission number.
+     */
+    private static final class Item {
+        final long sequence;
+        final Object value;
+        
+        Item(long sequence, Object value) {
+            this.sequence = sequence;
+            this.value = value;
+        }
+    }
+    
+    private final int capacity;
+    private final List<String> names = new ArrayList<>();
+    private final List<Integer> threads = new ArrayList<>();
+    private final List<StageFactory<?,?>> factories = new ArrayList<>();
+    private final List<BlockingQueue<Item>> queues = new ArrayList<>();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private Semaphore inFlight;
+    private ExecutorService executor;
+    private Thread sinkThread;
+    private long submitted = 0;
+    private volatile int waiting = 0;
+    
+    /**
+     * Constructor creates an empty pipeline.
+     * @param capacity Capacity of the queue in front of each stage and of
+     * the sink
+     */
+    public Pipeline(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+    
+    /**
+     * Append a stage to the pipeline. Stages must be added before 
+     * {@link #start(Sink)}.
+     * @param name Name of the stage, used to report queue depths
+     * @param n Number of threads of the stage
+     * @param factory Creates the Stage instance of each thread
+     * @return this object
+     */
+    public Pipeline addStage(String name, int n, StageFactory<?,?> factory) {
+        names.add(name);
+        threads.add(Math.max(1, n));
+        factories.add(factory);
+        queues.add(new ArrayBlockingQueue<Item>(capacity));
+        return this;
+    }
+    
+    /**
+     * Record the first failure and stop every thread. Errors are wrapped so
+     * that they are rethrown to the submitting thread like any failure.
+     */
+    private void fail(Throwable t) {
+        Exception e = t instanceof Exception ? (Exception)t : new ExecutionException(t);
+        if(failure.compareAndSet(null, e)) {
+            if(executor != null) {
+                executor.shutdownNow();
+            }
+            if(sinkThread != null) {
+                sinkThread.interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Rethrow the failure of a stage, if there is one.
+     */
+    private void check() throws Exception {
+        Exception e = failure.get();
+        if(e != null) {
+            throw e;
+        }
+    }
+    
+    /**
+     * Start the threads of every stage and of the sink.
+     * @param sink Consumer of the items of the last stage
+     * @throws Exception if a stage cannot be created.
+     */
+    public void start(final Sink<?> sink) throws Exception {
+        final BlockingQueue<Item> last = new ArrayBlockingQueue<>(capacity);
+        queues.add(last);
+        int total = 0;
+        for(int n : threads) {
+            total += n;
+        }
+        inFlight = new Semaphore(capacity*queues.size()+total);
+        executor = Executors.newFixedThreadPool(total, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pipeline-stage");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        
+        for(int s=0;s<factories.size();s++) {
+            final BlockingQueue<Item> in = queues.get(s);
+            final BlockingQueue<Item> out = queues.get(s+1);
+            final AtomicInteger running = new AtomicInteger(threads.get(s));
+            for(int t=0;t<threads.get(s);t++) {
+                @SuppressWarnings("unchecked")
+                final Stage<Object,Object> stage = (Stage<Object,Object>)factories.get(s).create();
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Item item;
+                            while((item=in.take()).value != END) {
+                                out.put(new Item(item.sequence, stage.process(item.value)));
+                            }
+                            
+                            /* Let the other threads of the stage see the end,
+                             * and pass it on after the last one */
+                            in.put(item);
+                            if(running.decrementAndGet() == 0) {
+                                in.remove(item);
+                                out.put(item);
+                            }
+                        }
+                        catch(InterruptedException e) {
+                            /* Stopped after a failure elsewhere */
+                        }
+                        catch(Throwable t) {
+                            fail(t);
+                        }
+                        finally {
+                            try {
+                                stage.close();
+                            }
+                            catch(Throwable t) {
+                                fail(t);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        
+        /* Consume items in submission order */
+        sinkThread = new Thread(new Runnable() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                Map<Long,Object> early = new HashMap<>();
+                long next = 0;
+                try {
+                    Item item;
+                    while((item=last.take()).value != END) {
+                        early.put(item.sequence, item.value);
+                        waiting = early.size();
+                        while(early.containsKey(next)) {
+                            ((Sink<Object>)sink).accept(early.remove(next));
+                            inFlight.release();
+                            next++;
+                        }
+                    }
+                    waiting = early.size();
+                }
+                catch(InterruptedException e) {
+                    /* Stopped after a failure elsewhere */
+                }
+                catch(Throwable t) {
+                    fail(t);
+                }
+            }
+        }, "pipeline-sink");
+        sinkThread.setDaemon(true);
+        sinkThread.start();
+    }
+    
+    /**
+     * Submit an item to the first stage, waiting while the pipeline is full.
+     * @param item Item to process
+     * @throws Exception if a stage has failed.
+     */
+    public void submit(Object item) throws Exception {
+        while(!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+            check();
+        }
+        check();
+        Item wrapped = new Item(submitted++, item);
+        BlockingQueue<Item> first = queues.get(0);
+        while(!first.offer(wrapped, 100, TimeUnit.MILLISECONDS)) {
+            check();
+        }
+    }
+    
+    /**
+     * Wait for every submitted item to reach the sink, and for the threads 
+     * to close their stages and stop.
+     * @throws Exception if a stage has failed.
+     */
+    public void finish() throws Exception {
+        BlockingQueue<Item> first = queues.get(0);
+        Item end = new Item(submitted, END);
+        while(!first.offer(end, 100, TimeUnit.MILLISECONDS)) {
+            check();
+        }
+        while(sinkThread.isAlive()) {
+            sinkThread.join(100);
+            check();
+        }
+        
+        /* Wait for the stages to close, which may fail too */
+        executor.shutdown();
+        while(!executor.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+            check();
+        }
+        check();
+    }
+    
+    /**
+     * Stop the threads, abandoning any items that have not reached the sink.
+     */
+    public void close() {
+        if(executor != null) {
+            executor.shutdownNow();
+        }
+        if(sinkThread != null) {
+            sinkThread.interrupt();
+        }
+    }
+    
+    /**
+     * @return The number of stages.
+     */
+    public int stages() {
+        return names.size();
+    }
+    
+    /**
+     * @param stage Stage number
+     * @return The name of the stage.
+     */
+    public String name(int stage) {
+        return names.get(stage);
+    }
+    
+    /**
+     * Report the number of items waiting for a stage.
+     * @param stage Stage number, or {@link #stages()} for the sink
+     * @return Number of items in the queue in front of the stage
+     */
+    public int depth(int stage) {
+        return queues.get(stage).size();
+    }
+    
+    /**
+     * @return The capacity of the queue in front of each stage.
+     */
+    public int capacity() {
+        return capacity;
+    }
+    
+    /**
+     * Summarize the queue depths, e.g. "digest 12/64, annotate 64/64, 
+     * enumerate 0/64, sink 0/64 (3 reordering)".
+     * @return Queue depths of every stage and the sink
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(int s=0;s<names.size();s++) {
+            sb.append(String.format("%s %d/%d, ",names.get(s),depth(s),capacity));
+        }
+        int sink = queues.size() > names.size() ? depth(names.size()) : 0;
+        sb.append(String.format("sink %d/%d (%d reordering)",sink,capacity,waiting));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,203 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.recoding;
+
+import edu.cwru.pp4j.recode.modsites.ModificationSiteParser;
+import edu.cwru.pp4j.recode.proteins.Constants;
+import edu.cwru.pp4j.recode.proteins.Peptide;
+import edu.cwru.pp4j.recode.proteins.PeptideView;
+import edu.cwru.pp4j.recode.proteins.ProteinMasses;
+import edu.cwru.pp4j.recode.proteins.ResidueMasses;
+import edu.cwru.pp4j.recode.spectra.PrecursorMasses;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which recoded peptides could match the precursor of an observed 
+ * spectrum, so that peptides no spectrum can match are not written. Every
+ * combination of k recoded sites of a peptide has the same mass, the 
+ * peptide mass plus k phosphorylations, so a peptide is checked once per k
+ * rather than once per combination.<br><br>
+ * 
+ * A peptide may also be observed with variable modifications other than
+ * phosphorylation (e.g. oxidized M), so every mass reachable with up to 
+ * {@link RecodeConfig#getMaxVariableModifications()} of them is tried as 
+ * well. Only variable modifications at any position are considered. The
+ * filter holds the masses of the current protein and peptide, so an 
+ * instance must only be used by one thread; other threads use copies.
+ * 
+ * @author Sean Maxwell
+ */
+public class PrecursorFilter {
+    private final PrecursorMasses precursors;
+    private final ResidueMasses table;
+    private final ProteinMasses protein;
+    private final double ppm;
+    private final int minIsotope;
+    private final int maxIsotope;
+    private final int maxVariable;
+    private final ResidueMasses.Modification[] modifications;
+    private CharSequence sequence;
+    private double mass;
+    private double[] offsets;
+    private int[] counts;
+    private int n;
+    
+    /**
+     * Constructor creates a filter for a set of precursors.
+     * @param precursors Observed precursor masses
+     * @param table Residue masses, including fixed modifications
+     * @param config Tolerance, isotope error and variable modification 
+     * parameters
+     */
+    public PrecursorFilter(PrecursorMasses precursors, ResidueMasses table, RecodeConfig config) {
+        this.precursors = precursors;
+        this.table = table;
+        this.protein = new ProteinMasses(table);
+        this.ppm = config.getPrecursorTolerance();
+        this.minIsotope = config.getMinIsotopeError();
+        this.maxIsotope = config.getMaxIsotopeError();
+        this.maxVariable = config.getMaxVariableModifications();
+        
+        /* Phosphorylation is represented by recoding, not as a variable
+         * modification */
+        List<ResidueMasses.Modification> variable = new ArrayList<>();
+        for(ResidueMasses.Modification modification : table.getVariableModifications()) {
+            boolean phospho = Math.abs(modification.getMass()-Constants.MASS_PHOSPHORYLATION) < 0.01;
+            for(char c : modification.getResidues().toCharArray()) {
+                phospho &= ModificationSiteParser.PHOSPHORYLATION_RESIDUES.indexOf(c) >= 0;
+            }
+            if(!phospho && modification.getPosition().equalsIgnoreCase("Any")) {
+                variable.add(modification);
+            }
+        }
+        modifications = variable.toArray(new ResidueMasses.Modification[variable.size()]);
+        offsets = new double[16];
+        counts = new int[16];
+        n = 0;
+    }
+    
+    /**
+     * Constructor creates a filter with the same precursors and parameters
+     * as another, for use on another thread.
+     * @param other Filter to copy
+     */
+    public PrecursorFilter(PrecursorFilter other) {
+        this.precursors = other.precursors;
+        this.table = other.table;
+        this.protein = new ProteinMasses(other.table);
+        this.ppm = other.ppm;
+        this.minIsotope = other.minIsotope;
+        this.maxIsotope = other.maxIsotope;
+        this.maxVariable = other.maxVariable;
+        this.modifications = other.modifications;
+        offsets = new double[16];
+        counts = new int[16];
+        n = 0;
+    }
+    
+    /**
+     * Create the filter configured by the argument parameters.
+     * @param config Recode parameters naming a precursor file
+     * @return The filter
+     * @throws Exception if the precursor or modification files cannot be read.
+     */
+    public static PrecursorFilter load(RecodeConfig config) throws Exception {
+        PrecursorMasses precursors = PrecursorMasses.load(config.getPrecursors(), config.getMinCharge(), config.getMaxCharge());
+        ResidueMasses table = config.getModifications() != null ? ResidueMasses.load(config.getModifications()) : ResidueMasses.getStandard();
+        return new PrecursorFilter(precursors, table, config);
+    }
+    
+    /**
+     * @return The number of precursor masses of the filter.
+     */
+    public int size() {
+        return precursors.size();
+    }
+    
+    /**
+     * Compute the masses of the peptides of a protein.
+     * @param sequence Amino acid sequence of the protein
+     */
+    public void setProtein(CharSequence sequence) {
+        this.sequence = sequence;
+        protein.setSequence(sequence);
+    }
+    
+    /**
+     * Compute the mass of a peptide, and the masses it could have with 
+     * variable modifications. Views of the current protein take their mass 
+     * from its prefix sums.
+     * @param peptide The peptide that will be checked
+     */
+    public void setPeptide(Peptide peptide) {
+        CharSequence residues = peptide.residues();
+        if(peptide instanceof PeptideView && ((PeptideView)peptide).protein() == sequence) {
+            mass = protein.mass(peptide);
+        }
+        else {
+            mass = table.mass(residues);
+        }
+        
+        offsets[0] = 0;
+        counts[0] = 0;
+        n = 1;
+        for(ResidueMasses.Modification modification : modifications) {
+            int c = 0;
+            for(int i=0;i<residues.length();i++) {
+                if(modification.getResidues().indexOf(residues.charAt(i)) >= 0) {
+                    c++;
+                }
+            }
+            
+            /* Add 1..c of the modification to every offset that has room */
+            int m = n;
+            for(int i=0;i<m;i++) {
+                for(int j=1;j<=c && counts[i]+j<=maxVariable;j++) {
+                    if(n == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, n*2);
+                        counts = Arrays.copyOf(counts, n*2);
+                    }
+                    offsets[n] = offsets[i]+j*modification.getMass();
+                    counts[n] = counts[i]+j;
+                    n++;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Test if the current peptide with k recoded sites could match an 
+     * observed precursor.
+     * @param k Number of recoded sites
+     * @return true if a precursor matches.
+     */
+    public boolean accepts(int k) {
+        double recoded = mass+k*Constants.MASS_PHOSPHORYLATION;
+        for(int i=0;i<n;i++) {
+            if(precursors.matches(recoded+offsets[i], ppm, minIsotope, maxIsotope)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
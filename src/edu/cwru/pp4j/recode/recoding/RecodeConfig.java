@@ -20,6 +20,8 @@
  */
 package edu.cwru.pp4j.recode.recoding;
 
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+import edu.cwru.pp4j.recode.proteins.Specificity;
 import java.util.HashMap;
 import java.io.FileWriter;
 import java.io.FileReader;
@@ -41,6 +43,25 @@ public class RecodeConfig {
         integers = new HashMap<>();
         integers.put(RecodeParams.STRICTDIGEST, 0);
         integers.put(RecodeParams.DIGESTONLY,0);
+        integers.put(RecodeParams.STREAMDATABASE,0);
+        integers.put(RecodeParams.REQUIREMODSITES,0);
+        integers.put(RecodeParams.THREADS,1);
+        integers.put(RecodeParams.PRECURSORTOLERANCE,20);
+        integers.put(RecodeParams.MINISOTOPEERROR,0);
+        integers.put(RecodeParams.MAXISOTOPEERROR,1);
+        integers.put(RecodeParams.MINCHARGE,2);
+        integers.put(RecodeParams.MAXCHARGE,3);
+        integers.put(RecodeParams.MAXVARIABLEMODIFICATIONS,2);
+        integers.put(RecodeParams.WORKERS,1);
+        integers.put(RecodeParams.PIPELINE,0);
+        integers.put(RecodeParams.DIGESTTHREADS,1);
+        integers.put(RecodeParams.ANNOTATETHREADS,1);
+        integers.put(RecodeParams.ENUMERATETHREADS,1);
+        integers.put(RecodeParams.QUEUECAPACITY,64);
+        integers.put(RecodeParams.COMPRESSOUTPUT,0);
+        integers.put(RecodeParams.SHARDS,1);
+        integers.put(RecodeParams.MAXSHARDRESIDUES,0);
+        strings.put(RecodeParams.SPECIFICITY,Specificity.FULL.toString());
     }
     
     public RecodeConfig setMissedCleavages(int i) {
@@ -139,6 +160,196 @@ public class RecodeConfig {
         return integers.get(RecodeParams.DIGESTONLY)==1;
     }
     
+    public RecodeConfig setStreamDatabase(boolean b) {
+        int value = b ? 1 : 0;
+        integers.put(RecodeParams.STREAMDATABASE,value);
+        return this;
+    }
+    
+    public boolean getStreamDatabase() {
+        return integers.get(RecodeParams.STREAMDATABASE)==1;
+    }
+    
+    public RecodeConfig setSpecificity(Specificity s) {
+        strings.put(RecodeParams.SPECIFICITY, s.toString());
+        return this;
+    }
+    
+    public Specificity getSpecificity() {
+        return Specificity.valueOf(strings.get(RecodeParams.SPECIFICITY));
+    }
+    
+    public RecodeConfig setRequireModSites(boolean b) {
+        int value = b ? 1 : 0;
+        integers.put(RecodeParams.REQUIREMODSITES,value);
+        return this;
+    }
+    
+    public boolean getRequireModSites() {
+        return integers.get(RecodeParams.REQUIREMODSITES)==1;
+    }
+    
+    public RecodeConfig setThreads(int i) {
+        integers.put(RecodeParams.THREADS, i);
+        return this;
+    }
+    
+    public int getThreads() {
+        return integers.get(RecodeParams.THREADS);
+    }
+    
+    public RecodeConfig setPrecursors(String s) {
+        strings.put(RecodeParams.PRECURSORS, s);
+        return this;
+    }
+    
+    public String getPrecursors() {
+        return strings.get(RecodeParams.PRECURSORS);
+    }
+    
+    public RecodeConfig setPrecursorTolerance(int ppm) {
+        integers.put(RecodeParams.PRECURSORTOLERANCE, ppm);
+        return this;
+    }
+    
+    public int getPrecursorTolerance() {
+        return integers.get(RecodeParams.PRECURSORTOLERANCE);
+    }
+    
+    public RecodeConfig setIsotopeErrorRange(int min, int max) {
+        integers.put(RecodeParams.MINISOTOPEERROR, min);
+        integers.put(RecodeParams.MAXISOTOPEERROR, max);
+        return this;
+    }
+    
+    public int getMinIsotopeError() {
+        return integers.get(RecodeParams.MINISOTOPEERROR);
+    }
+    
+    public int getMaxIsotopeError() {
+        return integers.get(RecodeParams.MAXISOTOPEERROR);
+    }
+    
+    public RecodeConfig setChargeRange(int min, int max) {
+        integers.put(RecodeParams.MINCHARGE, min);
+        integers.put(RecodeParams.MAXCHARGE, max);
+        return this;
+    }
+    
+    public int getMinCharge() {
+        return integers.get(RecodeParams.MINCHARGE);
+    }
+    
+    public int getMaxCharge() {
+        return integers.get(RecodeParams.MAXCHARGE);
+    }
+    
+    public RecodeConfig setModifications(String s) {
+        strings.put(RecodeParams.MODIFICATIONS, s);
+        return this;
+    }
+    
+    public String getModifications() {
+        return strings.get(RecodeParams.MODIFICATIONS);
+    }
+    
+    public RecodeConfig setMaxVariableModifications(int i) {
+        integers.put(RecodeParams.MAXVARIABLEMODIFICATIONS, i);
+        return this;
+    }
+    
+    public int getMaxVariableModifications() {
+        return integers.get(RecodeParams.MAXVARIABLEMODIFICATIONS);
+    }
+    
+    public RecodeConfig setWorkers(int i) {
+        integers.put(RecodeParams.WORKERS, i);
+        return this;
+    }
+    
+    public int getWorkers() {
+        return integers.get(RecodeParams.WORKERS);
+    }
+    
+    public RecodeConfig setPipeline(boolean b) {
+        int value = b ? 1 : 0;
+        integers.put(RecodeParams.PIPELINE,value);
+        return this;
+    }
+    
+    public boolean getPipeline() {
+        return integers.get(RecodeParams.PIPELINE)==1;
+    }
+    
+    public RecodeConfig setStageThreads(int digest, int annotate, int enumerate) {
+        integers.put(RecodeParams.DIGESTTHREADS, digest);
+        integers.put(RecodeParams.ANNOTATETHREADS, annotate);
+        integers.put(RecodeParams.ENUMERATETHREADS, enumerate);
+        return this;
+    }
+    
+    public int getDigestThreads() {
+        return integers.get(RecodeParams.DIGESTTHREADS);
+    }
+    
+    public int getAnnotateThreads() {
+        return integers.get(RecodeParams.ANNOTATETHREADS);
+    }
+    
+    public int getEnumerateThreads() {
+        return integers.get(RecodeParams.ENUMERATETHREADS);
+    }
+    
+    public RecodeConfig setQueueCapacity(int i) {
+        integers.put(RecodeParams.QUEUECAPACITY, i);
+        return this;
+    }
+    
+    public int getQueueCapacity() {
+        return integers.get(RecodeParams.QUEUECAPACITY);
+    }
+    
+    public RecodeConfig setCompressOutput(boolean b) {
+        int value = b ? 1 : 0;
+        integers.put(RecodeParams.COMPRESSOUTPUT,value);
+        return this;
+    }
+    
+    public boolean getCompressOutput() {
+        return integers.get(RecodeParams.COMPRESSOUTPUT)==1;
+    }
+    
+    /**
+     * @return The path the recoded database is written to: the output name,
+     * with ".gz" appended when the output is compressed. Sharded outputs are
+     * named after it.
+     */
+    public String getOutputPath() {
+        String path = getOutputName();
+        if(getCompressOutput() && !path.endsWith(CompressedFiles.EXTENSION)) {
+            path += CompressedFiles.EXTENSION;
+        }
+        return path;
+    }
+    
+    public RecodeConfig setShards(int i) {
+        integers.put(RecodeParams.SHARDS, i);
+        return this;
+    }
+    
+    public int getShards() {
+        return integers.get(RecodeParams.SHARDS);
+    }
+    
+    public RecodeConfig setMaxShardResidues(int i) {
+        integers.put(RecodeParams.MAXSHARDRESIDUES, i);
+        return this;
+    }
+    
+    public int getMaxShardResidues() {
+        return integers.get(RecodeParams.MAXSHARDRESIDUES);
+    }
+    
     public static void save(RecodeConfig rcc, String path) throws Exception {
         try(FileWriter fw = new FileWriter(path)) {
         
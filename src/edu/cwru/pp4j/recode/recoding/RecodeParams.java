@@ -35,5 +35,26 @@ public enum RecodeParams {
     OUTPUTNAME,
     MINPEPTIDELENGTH,
     MAXPEPTIDELENGTH,
-    DIGESTONLY
+    DIGESTONLY,
+    STREAMDATABASE,
+    SPECIFICITY,
+    REQUIREMODSITES,
+    THREADS,
+    PRECURSORS,
+    PRECURSORTOLERANCE,
+    MINISOTOPEERROR,
+    MAXISOTOPEERROR,
+    MINCHARGE,
+    MAXCHARGE,
+    MODIFICATIONS,
+    MAXVARIABLEMODIFICATIONS,
+    WORKERS,
+    PIPELINE,
+    DIGESTTHREADS,
+    ANNOTATETHREADS,
+    ENUMERATETHREADS,
+    QUEUECAPACITY,
+    COMPRESSOUTPUT,
+    SHARDS,
+    MAXSHARDRESIDUES
 }
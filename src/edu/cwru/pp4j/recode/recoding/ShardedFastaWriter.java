@@ -0,0 +1,314 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.recoding;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+
+import edu.cwru.pp4j.recode.io.BgzfOutputStream;
+import edu.cwru.pp4j.recode.io.ChannelWriter;
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+
+/**
+ * Splits a FASTA stream into several files (shards) that can be indexed and
+ * searched in parallel. Entries are never split, and each entry goes to one
+ * shard, chosen when its ">" header starts:
+ * <ul>
+ * <li>With a fixed number of shards, each entry goes to the shard with the 
+ * fewest residues so far, so the shards are balanced by residue count 
+ * (which is what suffix array size and search time depend on) rather than 
+ * by entry count.</li>
+ * <li>With a maximum shard size, shards are filled one after the other, and 
+ * a new shard is started once the current one holds the maximum number of 
+ * residues. A shard exceeds the maximum by at most its last entry.</li>
+ * </ul>
+ * Shards are named after the output file with a shard number before the 
+ * extension, e.g. recoded.001.fasta, and are BGZF compressed when the output
+ * file name ends with ".gz". When the writer is closed, a manifest listing 
+ * the file name, number of entries and number of residues of each shard is 
+ * written next to them, e.g. recoded.shards.<br><br>
+ * 
+ * Like other Writers, instances must not be shared between threads.
+ * 
+ * @author Sean Maxwell
+ */
+public class ShardedFastaWriter extends Writer {
+    /**
+     * File name extension of the manifest.
+     */
+    public static final String MANIFEST_EXTENSION = ".shards";
+    
+    /**
+     * Size of the output buffer of each shard, in bytes.
+     */
+    private static final int SHARD_BUFFER_SIZE = 1 << 20;
+    
+    private final String base;
+    private final String extension;
+    private final boolean compressed;
+    private final ExecutorService deflaters;
+    private final long maxResidues;
+    private final List<Writer> writers = new ArrayList<>();
+    private final List<String> paths = new ArrayList<>();
+    private long[] residues = new long[16];
+    private long[] entries = new long[16];
+    private int current = -1;
+    private boolean lineStart = true;
+    private boolean header = false;
+    private boolean closed = false;
+    
+    /**
+     * Constructor creates the shards of an output file.
+     * @param path Path of the output file. The shards and manifest are 
+     * named after it.
+     * @param shards Number of shards balanced by residue count, if 
+     * maxResidues is not positive
+     * @param maxResidues Number of residues at which a shard is full and the
+     * next entry starts a new one, or 0 to write a fixed number of shards
+     * @param deflaters Thread pool to compress the shards on, when path ends
+     * with ".gz"
+     * @throws IOException if the shards cannot be created.
+     */
+    public ShardedFastaWriter(String path, int shards, long maxResidues, ExecutorService deflaters) throws IOException {
+        String name = CompressedFiles.stripExtension(path);
+        int dot = name.lastIndexOf('.');
+        if(dot <= name.lastIndexOf(File.separatorChar)) {
+            dot = name.length();
+        }
+        base = name.substring(0, dot);
+        extension = name.substring(dot);
+        compressed = name.length() != path.length();
+        this.deflaters = deflaters;
+        this.maxResidues = maxResidues;
+        
+        /* With a fixed number of shards they are all open from the start,
+         * otherwise they are opened as the previous one fills */
+        if(maxResidues <= 0) {
+            if(shards < 1) {
+                throw new IllegalArgumentException("Invalid number of shards "+shards);
+            }
+            try {
+                for(int i=0;i<shards;i++) {
+                    openShard();
+                }
+            }
+            catch(IOException e) {
+                for(Writer writer : writers) {
+                    writer.close();
+                }
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Compute the path of a shard.
+     * @param shard Shard number, from 0
+     * @return Path of the shard
+     */
+    public String shardPath(int shard) {
+        return String.format("%s.%03d%s%s", base, shard+1, extension, compressed ? CompressedFiles.EXTENSION : "");
+    }
+    
+    /**
+     * @return The path of the manifest.
+     */
+    public String manifestPath() {
+        return base + MANIFEST_EXTENSION;
+    }
+    
+    /**
+     * Create the next shard.
+     */
+    private void openShard() throws IOException {
+        int shard = writers.size();
+        String path = shardPath(shard);
+        Writer writer;
+        if(compressed) {
+            writer = new ChannelWriter(new BgzfOutputStream(new FileOutputStream(path), deflaters, 4, Deflater.DEFAULT_COMPRESSION), SHARD_BUFFER_SIZE);
+        }
+        else {
+            writer = new ChannelWriter(path, SHARD_BUFFER_SIZE);
+        }
+        writers.add(writer);
+        paths.add(path);
+        if(shard == residues.length) {
+            residues = Arrays.copyOf(residues, shard*2);
+            entries = Arrays.copyOf(entries, shard*2);
+        }
+    }
+    
+    /**
+     * Choose the shard of the entry that starts with the next character.
+     */
+    private void startEntry() throws IOException {
+        if(maxResidues > 0) {
+            if(current == -1 || residues[current] >= maxResidues) {
+                if(current != -1) {
+                    writers.get(current).close();
+                }
+                openShard();
+                current = writers.size()-1;
+            }
+        }
+        else {
+            current = 0;
+            for(int i=1;i<writers.size();i++) {
+                if(residues[i] < residues[current]) {
+                    current = i;
+                }
+            }
+        }
+        entries[current]++;
+    }
+    
+    /**
+     * Route a range of characters to the shards, switching shards at the 
+     * start of each entry and counting the residues of the sequence lines.
+     */
+    private void route(CharSequence csq, int start, int end) throws IOException {
+        if(closed) {
+            throw new IOException("Writer closed");
+        }
+        int run = start;
+        for(int i=start;i<end;i++) {
+            char c = csq.charAt(i);
+            if((lineStart && c == '>') || current == -1) {
+                if(i > run) {
+                    writers.get(current).append(csq, run, i);
+                }
+                run = i;
+                startEntry();
+                header = c == '>';
+            }
+            else if(c == '\n') {
+                header = false;
+            }
+            else if(!header) {
+                residues[current]++;
+            }
+            lineStart = c == '\n';
+        }
+        if(end > run) {
+            writers.get(current).append(csq, run, end);
+        }
+    }
+    
+    @Override
+    public void write(int c) throws IOException {
+        route(String.valueOf((char)c), 0, 1);
+    }
+    
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        route(CharBuffer.wrap(cbuf), off, off+len);
+    }
+    
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        route(str, off, off+len);
+    }
+    
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        return csq == null ? append("null", 0, 4) : append(csq, 0, csq.length());
+    }
+    
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        route(csq == null ? "null" : csq, start, end);
+        return this;
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        if(current != -1) {
+            writers.get(current).flush();
+        }
+    }
+    
+    /**
+     * @return The number of shards written so far.
+     */
+    public int shards() {
+        return writers.size();
+    }
+    
+    /**
+     * Close the shards and delete them, and any manifest, without writing a
+     * manifest, e.g. when the recode writing them fails.
+     */
+    public void discard() {
+        closed = true;
+        for(Writer writer : writers) {
+            try {
+                writer.close();
+            }
+            catch(IOException e) {
+                /* The shard is deleted regardless */
+            }
+        }
+        for(String shard : paths) {
+            new File(shard).delete();
+        }
+        new File(manifestPath()).delete();
+    }
+    
+    /**
+     * Close the shards and write the manifest.
+     * @throws IOException if the request cannot be fulfilled.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for(Writer writer : writers) {
+            try {
+                writer.close();
+            }
+            catch(IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if(failure != null) {
+            throw failure;
+        }
+        
+        try(FileWriter manifest = new FileWriter(manifestPath())) {
+            manifest.write("#shard\tentries\tresidues\n");
+            for(int i=0;i<paths.size();i++) {
+                manifest.write(String.format("%s\t%d\t%d\n", new File(paths.get(i)).getName(), entries[i], residues[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.spectra;
+
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+import edu.cwru.pp4j.recode.proteins.Constants;
+import java.io.BufferedReader;
+import java.util.Arrays;
+
+/**
+ * A sorted array of the neutral precursor masses of a set of spectra, which
+ * answers whether any precursor falls within the tolerance of a peptide mass
+ * with a binary search. Masses are stored as primitives, so an index of 
+ * millions of spectra occupies a few MB and is never modified after it is 
+ * created.<br><br>
+ * 
+ * {@link #load(String, int, int)} reads either an MGF file, taking the 
+ * PEPMASS and CHARGE of every spectrum from its {@link SpectrumIndex}, or a precursor list with one 
+ * precursor per line as either
+ * <pre>
+ * mass
+ * m/z  charge
+ * </pre>
+ * where a bare mass is the neutral (uncharged) mass and the fields are 
+ * separated by white space or commas. A precursor of unknown charge is 
+ * added once for every charge of a range, as MS-GF+ searches it. Blank 
+ * lines and lines starting with # are ignored, and files may be gzip 
+ * compressed.
+ * 
+ * @author Sean Maxwell
+ */
+public class PrecursorMasses {
+    private final double[] masses;
+    
+    /**
+     * Constructor creates an index of neutral masses. The argument array is 
+     * sorted in place and kept.
+     * @param masses Neutral precursor masses
+     */
+    public PrecursorMasses(double[] masses) {
+        Arrays.sort(masses);
+        this.masses = masses;
+    }
+    
+    /**
+     * Convert an m/z value to a neutral mass.
+     * @param mz Precursor m/z
+     * @param charge Precursor charge
+     * @return The neutral mass
+     */
+    public static double neutralMass(double mz, int charge) {
+        return (mz-Constants.MASS_PROTON)*charge;
+    }
+    
+    /**
+     * Load the precursors of an MGF file or a precursor list.
+     * 
+     * @param path Path to the file. Files named *.mgf or *.mgf.gz are read as
+     * MGF.
+     * @param minCharge Smallest charge assumed for precursors of unknown 
+     * charge
+     * @param maxCharge Largest charge assumed for precursors of unknown charge
+     * 
+     * @return The index
+     * 
+     * @throws Exception if the file cannot be read or is malformed.
+     */
+    public static PrecursorMasses load(String path, int minCharge, int maxCharge) throws Exception {
+        Builder builder = new Builder(minCharge, maxCharge);
+        boolean mgf = CompressedFiles.stripExtension(path).toLowerCase().endsWith(".mgf");
+        
+        /* Uncompressed MGF files are read through their spectrum index, 
+         * which skips the peak lists */
+        if(mgf && !CompressedFiles.isCompressed(path)) {
+            return SpectrumIndex.open(path, Runtime.getRuntime().availableProcessors()).precursorMasses(minCharge, maxCharge);
+        }
+        try(BufferedReader br = CompressedFiles.newReader(path)) {
+            String line;
+            int n = 0;
+            double mz = 0;
+            String charges = null;
+            while((line=br.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    if(mgf) {
+                        if(line.startsWith("BEGIN IONS")) {
+                            mz = 0;
+                            charges = null;
+                        }
+                        else if(line.startsWith("PEPMASS=")) {
+                            mz = Double.parseDouble(line.substring(8).trim().split("\\s+")[0]);
+                        }
+                        else if(line.startsWith("CHARGE=")) {
+                            charges = line.substring(7);
+                        }
+                        else if(line.startsWith("END IONS")) {
+                            builder.add(mz, charges);
+                        }
+                    }
+                    else {
+                        String[] tokens = line.split("[\\s,]+");
+                        if(tokens.length == 1) {
+                            builder.add(Double.parseDouble(tokens[0]));
+                        }
+                        else {
+                            builder.add(Double.parseDouble(tokens[0]), tokens[1]);
+                        }
+                    }
+                }
+                catch(NumberFormatException e) {
+                    throw new Exception(String.format("Malformed precursor on line %d of %s",n,path));
+                }
+            }
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Convert charges written as in MGF (e.g. 2+, "2+ and 3+" or "2+,3+") to 
+     * a mask with bit z set for each listed charge z. Charges of 0, and 
+     * charges too large for the mask, are ignored.
+     * 
+     * @param charges Value of a CHARGE line, or null
+     * 
+     * @return The mask, or 0 if no charge is known
+     */
+    static int chargeMask(String charges) {
+        int mask = 0;
+        if(charges != null) {
+            for(String token : charges.split("[^0-9]+")) {
+                if(!token.isEmpty() && token.length() < 3) {
+                    int z = Integer.parseInt(token);
+                    if(z > 0 && z < Integer.SIZE) {
+                        mask |= 1<<z;
+                    }
+                }
+            }
+        }
+        return mask;
+    }
+    
+    /**
+     * Collects neutral masses in a growing primitive array.
+     */
+    static final class Builder {
+        private final int minCharge;
+        private final int maxCharge;
+        private double[] masses = new double[1024];
+        private int n = 0;
+        
+        Builder(int minCharge, int maxCharge) {
+            this.minCharge = minCharge;
+            this.maxCharge = maxCharge;
+        }
+        
+        void add(double mass) {
+            if(n == masses.length) {
+                masses = Arrays.copyOf(masses, n*2);
+            }
+            masses[n++] = mass;
+        }
+        
+        /**
+         * Add a precursor m/z with a mask of its charges, as made by 
+         * {@link #chargeMask(String)}. A mask of 0 means the charge is 
+         * unknown.
+         */
+        void add(double mz, int charges) {
+            if(mz <= 0) {
+                return;
+            }
+            if(charges != 0) {
+                for(int z=1;z<Integer.SIZE;z++) {
+                    if((charges & (1<<z)) != 0) {
+                        add(neutralMass(mz, z));
+                    }
+                }
+            }
+            else {
+                for(int z=minCharge;z<=maxCharge;z++) {
+                    add(neutralMass(mz, z));
+                }
+            }
+        }
+        
+        /**
+         * Add a precursor m/z with charges written as in MGF (e.g. 2+, 
+         * "2+ and 3+" or "2+,3+"). No charges, or a charge of 0, means the 
+         * charge is unknown.
+         */
+        void add(double mz, String charges) {
+            add(mz, chargeMask(charges));
+        }
+        
+        PrecursorMasses build() {
+            return new PrecursorMasses(Arrays.copyOf(masses, n));
+        }
+    }
+    
+    /**
+     * @return The number of precursor masses in the index.
+     */
+    public int size() {
+        return masses.length;
+    }
+    
+    /**
+     * Test if any precursor mass lies within a range.
+     * @param low Smallest mass of the range
+     * @param high Largest mass of the range
+     * @return true if a precursor lies within the range.
+     */
+    public boolean contains(double low, double high) {
+        int i = Arrays.binarySearch(masses, low);
+        if(i < 0) {
+            i = -i-1;
+        }
+        return i < masses.length && masses[i] <= high;
+    }
+    
+    /**
+     * Test if a peptide mass could be the mass of any precursor. A precursor 
+     * matches if it is within the tolerance of the peptide mass after 
+     * correcting for picking an isotope peak other than the monoisotopic 
+     * one, as MS-GF+ does.
+     * @param mass Neutral peptide mass
+     * @param ppm Tolerance in parts per million
+     * @param minIsotope Smallest isotope error (e.g. -1)
+     * @param maxIsotope Largest isotope error (e.g. 2)
+     * @return true if a precursor matches, and false if not or if the mass
+     * is NaN.
+     */
+    public boolean matches(double mass, double ppm, int minIsotope, int maxIsotope) {
+        double tolerance = mass*ppm*1e-6;
+        for(int i=minIsotope;i<=maxIsotope;i++) {
+            double expected = mass+i*Constants.MASS_C13_SHIFT;
+            if(contains(expected-tolerance, expected+tolerance)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
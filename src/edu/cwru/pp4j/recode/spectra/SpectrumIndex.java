@@ -0,0 +1,570 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.spectra;
+
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+import edu.cwru.pp4j.recode.io.MappedFile;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A sidecar index of the spectra of an MGF file that records, for every 
+ * spectrum, its scan number, the byte offset of its BEGIN IONS line, and 
+ * its precursor m/z, charge and retention time. The file is memory-mapped 
+ * and scanned as raw bytes, and only the header lines of each spectrum are 
+ * parsed; peak lines are skipped as soon as their first byte is seen. A 
+ * file is split into chunks at BEGIN IONS lines that are scanned in 
+ * parallel, so indexing runs at disk speed even for multi-GB files.<br><br>
+ * 
+ * The index is stored next to the MGF file (e.g. run1.mgf.sidx) as big 
+ * endian binary. A header records the size and modification time of the MGF 
+ * file so that stale indexes are detected and ignored, followed by one 
+ * column per field so that a single field can be read, or mapped, without 
+ * the others:
+ * <pre>
+ * int    magic        0x53494458 ("SIDX")
+ * int    version      2
+ * long   file size
+ * long   last modified
+ * int    n            number of spectra
+ * int    scan[n]      scan number, or -1 if the spectrum has none
+ * long   offset[n]    offset of the BEGIN IONS line
+ * double mz[n]        precursor m/z, or 0 if the spectrum has none
+ * int    charge[n]    precursor charges, bit z set for each listed charge 
+ *                     z, or 0 if unknown
+ * double rt[n]        retention time in seconds, or NaN if the spectrum 
+ *                     has none
+ * </pre>
+ * The scan number is read from SCANS, or else from a "scan=" in the TITLE.
+ * The spectrum number MS-GF+ reports (SpecIndex) is the entry number. 
+ * Global parameters before the first spectrum are ignored, so a spectrum 
+ * without its own CHARGE has an unknown charge.
+ * 
+ * @author Sean Maxwell
+ */
+public class SpectrumIndex {
+    /**
+     * File name extension appended to the MGF path to name the index.
+     */
+    public static final String EXTENSION = ".sidx";
+    
+    private static final int MAGIC = 0x53494458;
+    private static final int VERSION = 2;
+    private static final int BLOCK = 1<<20;
+    
+    private int[] scans;
+    private long[] offsets;
+    private double[] mzs;
+    private int[] charges;
+    private double[] rts;
+    private int n;
+    
+    private SpectrumIndex(int capacity) {
+        scans = new int[capacity];
+        offsets = new long[capacity];
+        mzs = new double[capacity];
+        charges = new int[capacity];
+        rts = new double[capacity];
+        n = 0;
+    }
+    
+    /**
+     * Append an entry to the index, growing the internal arrays as needed.
+     */
+    private void add(int scan, long offset, double mz, int charge, double rt) {
+        if(n == scans.length) {
+            int capacity = Math.max(16, n*2);
+            scans = Arrays.copyOf(scans,capacity);
+            offsets = Arrays.copyOf(offsets,capacity);
+            mzs = Arrays.copyOf(mzs,capacity);
+            charges = Arrays.copyOf(charges,capacity);
+            rts = Arrays.copyOf(rts,capacity);
+        }
+        scans[n] = scan;
+        offsets[n] = offset;
+        mzs[n] = mz;
+        charges[n] = charge;
+        rts[n] = rt;
+        n++;
+    }
+    
+    /**
+     * Compute the path of the index that accompanies an MGF file.
+     * 
+     * @param mgfPath Path to MGF file
+     * 
+     * @return Path to index file
+     */
+    public static String indexPath(String mgfPath) {
+        return mgfPath+EXTENSION;
+    }
+    
+    /**
+     * Scanner for a range of the file that collects the entries of the 
+     * spectra that begin in it.
+     */
+    private static class Scanner {
+        private final SpectrumIndex part = new SpectrumIndex(1024);
+        private byte[] line = new byte[256];
+        private int length;
+        private boolean open;
+        private boolean scansSeen;
+        private int scan;
+        private long offset;
+        private double mz;
+        private int charge;
+        private double rt;
+        
+        void scan(MappedFile file, long from, long to) throws Exception {
+            byte[] buffer = new byte[(int)Math.min(BLOCK, Math.max(to-from,1))];
+            boolean lineStart = true;
+            boolean skip = false;
+            long lineOffset = from;
+            long position = from;
+            
+            while(position < to) {
+                int read = (int)Math.min(buffer.length, to-position);
+                file.get(position, buffer, 0, read);
+                for(int i=0;i<read;i++,position++) {
+                    byte b = buffer[i];
+                    if(lineStart) {
+                        lineStart = false;
+                        lineOffset = position;
+                        length = 0;
+                        
+                        /* Peak lines begin with a number, and header lines
+                         * with a letter */
+                        skip = !((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z'));
+                    }
+                    if(b == '\n') {
+                        if(!skip) {
+                            line(lineOffset);
+                        }
+                        lineStart = true;
+                    }
+                    else if(!skip) {
+                        if(length == line.length) {
+                            line = Arrays.copyOf(line, length*2);
+                        }
+                        line[length++] = b;
+                    }
+                }
+            }
+            
+            /* A header line at the end of the file with no trailing newline */
+            if(!lineStart && !skip) {
+                line(lineOffset);
+            }
+        }
+        
+        private boolean startsWith(String prefix) {
+            if(length < prefix.length()) {
+                return false;
+            }
+            for(int i=0;i<prefix.length();i++) {
+                if(line[i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private String value(String prefix) {
+            int end = length;
+            while(end > prefix.length() && line[end-1] <= ' ') {
+                end--;
+            }
+            return new String(line, prefix.length(), end-prefix.length(), StandardCharsets.US_ASCII).trim();
+        }
+        
+        /**
+         * Parse the leading digits of a value, or return -1 if there are 
+         * none.
+         */
+        private static int leadingInt(String s, int from) {
+            int value = -1;
+            for(int i=from;i<s.length() && Character.isDigit(s.charAt(i));i++) {
+                value = Math.max(value, 0)*10 + (s.charAt(i)-'0');
+            }
+            return value;
+        }
+        
+        private void line(long lineOffset) throws Exception {
+            try {
+                if(startsWith("BEGIN IONS")) {
+                    open = true;
+                    scansSeen = false;
+                    scan = -1;
+                    offset = lineOffset;
+                    mz = 0;
+                    charge = 0;
+                    rt = Double.NaN;
+                }
+                else if(!open) {
+                    /* Global parameters before the first spectrum */
+                }
+                else if(startsWith("PEPMASS=")) {
+                    mz = Double.parseDouble(value("PEPMASS=").split("\\s+")[0]);
+                }
+                else if(startsWith("CHARGE=")) {
+                    charge = PrecursorMasses.chargeMask(value("CHARGE="));
+                }
+                else if(startsWith("RTINSECONDS=")) {
+                    rt = Double.parseDouble(value("RTINSECONDS=").split("(?<=.)-")[0]);
+                }
+                else if(startsWith("SCANS=")) {
+                    scan = leadingInt(value("SCANS="), 0);
+                    scansSeen = true;
+                }
+                else if(startsWith("TITLE=") && !scansSeen) {
+                    String title = value("TITLE=");
+                    int i = title.indexOf("scan=");
+                    if(i >= 0) {
+                        scan = leadingInt(title, i+5);
+                    }
+                }
+                else if(startsWith("END IONS")) {
+                    part.add(scan, offset, mz, charge, rt);
+                    open = false;
+                }
+            }
+            catch(NumberFormatException e) {
+                throw new Exception(String.format("Malformed spectrum header at byte %d : %s",lineOffset,value("")));
+            }
+        }
+    }
+    
+    /**
+     * Find BEGIN IONS lines that split the file into roughly equal chunks.
+     * 
+     * @param file Mapped MGF file
+     * @param chunks Desired number of chunks
+     * 
+     * @return Chunk boundaries, the first being 0 and the last the file size.
+     */
+    private static long[] split(MappedFile file, int chunks) {
+        byte[] begin = "BEGIN IONS".getBytes(StandardCharsets.US_ASCII);
+        List<Long> boundaries = new ArrayList<>();
+        long size = file.size();
+        boundaries.add(0L);
+        for(int k=1;k<chunks;k++) {
+            long position = Math.max(k*(size/chunks), boundaries.get(boundaries.size()-1)+1);
+            
+            /* Advance to the next BEGIN IONS at the start of a line */
+            while(position < size) {
+                if(file.get(position-1) == '\n' && file.get(position) == 'B' && position+begin.length <= size) {
+                    int i = 1;
+                    while(i < begin.length && file.get(position+i) == begin[i]) {
+                        i++;
+                    }
+                    if(i == begin.length) {
+                        break;
+                    }
+                }
+                position++;
+            }
+            if(position >= size) {
+                break;
+            }
+            boundaries.add(position);
+        }
+        boundaries.add(size);
+        
+        long[] r = new long[boundaries.size()];
+        for(int i=0;i<r.length;i++) {
+            r[i] = boundaries.get(i);
+        }
+        return r;
+    }
+    
+    /**
+     * Scan an MGF file and build an index of its spectra. Offsets into a 
+     * compressed file are meaningless, so a gzip compressed file must be 
+     * decompressed before it can be indexed.
+     * 
+     * @param mgfPath Path to MGF file
+     * @param threads Number of threads to scan the file with
+     * 
+     * @return The index
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public static SpectrumIndex build(String mgfPath, int threads) throws Exception {
+        if(CompressedFiles.isCompressed(mgfPath)) {
+            throw new Exception(String.format("Cannot index compressed spectrum file %s",mgfPath));
+        }
+        
+        SpectrumIndex index = new SpectrumIndex(1024);
+        try(final MappedFile file = new MappedFile(mgfPath)) {
+            final long[] boundaries = split(file, Math.max(1,threads)*4);
+            final List<Scanner> scanners = new ArrayList<>();
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for(int i=0;i<boundaries.length-1;i++) {
+                final Scanner scanner = new Scanner();
+                final int chunk = i;
+                scanners.add(scanner);
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        try {
+                            scanner.scan(file, boundaries[chunk], boundaries[chunk+1]);
+                        }
+                        catch(Exception e) {
+                            throw new IllegalStateException(e.getMessage(),e);
+                        }
+                    }
+                });
+            }
+            
+            /* A single chunk is scanned on the calling thread */
+            if(tasks.size() == 1 || threads <= 1) {
+                for(int i=0;i<scanners.size();i++) {
+                    scanners.get(i).scan(file, boundaries[i], boundaries[i+1]);
+                }
+            }
+            else {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    pool.submit(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            ForkJoinTask.invokeAll(tasks);
+                        }
+                    }).get();
+                }
+                catch(ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    while(cause instanceof IllegalStateException && cause.getCause() != null) {
+                        cause = cause.getCause();
+                    }
+                    throw new Exception(cause.getMessage(),cause);
+                }
+                finally {
+                    pool.shutdown();
+                }
+            }
+            
+            /* Merge the chunks in file order */
+            for(Scanner scanner : scanners) {
+                SpectrumIndex part = scanner.part;
+                for(int i=0;i<part.n;i++) {
+                    index.add(part.scans[i],part.offsets[i],part.mzs[i],part.charges[i],part.rts[i]);
+                }
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Write the index next to the MGF file it describes.
+     * 
+     * @param mgfPath Path to the MGF file that was indexed
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public void save(String mgfPath) throws Exception {
+        File mgf = new File(mgfPath);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexPath(mgfPath)), BLOCK))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mgf.length());
+            out.writeLong(mgf.lastModified());
+            out.writeInt(n);
+            for(int i=0;i<n;i++) {
+                out.writeInt(scans[i]);
+            }
+            for(int i=0;i<n;i++) {
+                out.writeLong(offsets[i]);
+            }
+            for(int i=0;i<n;i++) {
+                out.writeDouble(mzs[i]);
+            }
+            for(int i=0;i<n;i++) {
+                out.writeInt(charges[i]);
+            }
+            for(int i=0;i<n;i++) {
+                out.writeDouble(rts[i]);
+            }
+        }
+    }
+    
+    /**
+     * Load the index that accompanies an MGF file.
+     * 
+     * @param mgfPath Path to the MGF file
+     * 
+     * @return The index, or null if no index exists or the MGF file has 
+     * changed since the index was built.
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public static SpectrumIndex load(String mgfPath) throws Exception {
+        File mgf = new File(mgfPath);
+        File file = new File(indexPath(mgfPath));
+        if(!file.exists()) {
+            return null;
+        }
+        
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BLOCK))) {
+            /* Reject indexes built for a different version of the file */
+            if(file.length() < 28 ||
+               in.readInt() != MAGIC ||
+               in.readInt() != VERSION ||
+               in.readLong() != mgf.length() ||
+               in.readLong() != mgf.lastModified()) {
+                return null;
+            }
+            
+            int count = in.readInt();
+            SpectrumIndex index = new SpectrumIndex(count);
+            for(int i=0;i<count;i++) {
+                index.scans[i] = in.readInt();
+            }
+            for(int i=0;i<count;i++) {
+                index.offsets[i] = in.readLong();
+            }
+            for(int i=0;i<count;i++) {
+                index.mzs[i] = in.readDouble();
+            }
+            for(int i=0;i<count;i++) {
+                index.charges[i] = in.readInt();
+            }
+            for(int i=0;i<count;i++) {
+                index.rts[i] = in.readDouble();
+            }
+            index.n = count;
+            return index;
+        }
+    }
+    
+    /**
+     * Load the index that accompanies an MGF file, building and saving it 
+     * first if it is missing or stale.
+     * 
+     * @param mgfPath Path to the MGF file
+     * @param threads Number of threads to scan the file with
+     * 
+     * @return The index
+     * 
+     * @throws Exception if the request cannot be fulfilled.
+     */
+    public static SpectrumIndex open(String mgfPath, int threads) throws Exception {
+        SpectrumIndex index = load(mgfPath);
+        if(index == null) {
+            index = build(mgfPath, threads);
+            index.save(mgfPath);
+        }
+        return index;
+    }
+    
+    /**
+     * Collect the neutral precursor masses of the indexed spectra.
+     * 
+     * @param minCharge Smallest charge assumed for spectra of unknown charge
+     * @param maxCharge Largest charge assumed for spectra of unknown charge
+     * 
+     * @return The precursor masses
+     */
+    public PrecursorMasses precursorMasses(int minCharge, int maxCharge) {
+        PrecursorMasses.Builder builder = new PrecursorMasses.Builder(minCharge, maxCharge);
+        for(int i=0;i<n;i++) {
+            builder.add(mzs[i], charges[i]);
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Retrieve the scan number of an entry.
+     * @param i Entry number
+     * @return Scan number, or -1 if the spectrum has none
+     */
+    public int scan(int i) {
+        return scans[i];
+    }
+    
+    /**
+     * Retrieve the byte offset of an entry.
+     * @param i Entry number
+     * @return Offset of the BEGIN IONS line of the spectrum
+     */
+    public long offset(int i) {
+        return offsets[i];
+    }
+    
+    /**
+     * Retrieve the precursor m/z of an entry.
+     * @param i Entry number
+     * @return Precursor m/z, or 0 if the spectrum has none
+     */
+    public double mz(int i) {
+        return mzs[i];
+    }
+    
+    /**
+     * Retrieve the precursor charge of an entry.
+     * @param i Entry number
+     * @return Precursor charge, or 0 if it is unknown or ambiguous
+     */
+    public int charge(int i) {
+        int mask = charges[i];
+        return Integer.bitCount(mask) == 1 ? Integer.numberOfTrailingZeros(mask) : 0;
+    }
+    
+    /**
+     * Retrieve every precursor charge listed for an entry.
+     * @param i Entry number
+     * @return Mask with bit z set for each listed charge z, or 0 if the 
+     * charge is unknown
+     */
+    public int charges(int i) {
+        return charges[i];
+    }
+    
+    /**
+     * Retrieve the retention time of an entry.
+     * @param i Entry number
+     * @return Retention time in seconds, or NaN if the spectrum has none
+     */
+    public double rt(int i) {
+        return rts[i];
+    }
+    
+    /**
+     * Report how many spectra are indexed.
+     * @return Number of spectra
+     */
+    public int size() {
+        return n;
+    }
+}
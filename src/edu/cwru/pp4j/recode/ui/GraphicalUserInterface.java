@@ -39,11 +39,14 @@ import javax.swing.ListModel;
 import edu.cwru.pp4j.recode.converters.Mzid2Tdv;
 import edu.cwru.pp4j.recode.recoding.RecodeConfig;
 import edu.cwru.pp4j.recode.recoding.PhosphorylationSiteRecoder;
-import edu.cwru.pp4j.recode.proteins.Fasta;
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+import edu.cwru.pp4j.recode.proteins.DigestCache;
+import edu.cwru.pp4j.recode.proteins.FastaIndex;
 import edu.cwru.pp4j.recode.modsites.ModificationSiteDatabaseImporter;
 import edu.cwru.pp4j.recode.phosmsgf.PhosMsgfConfig;
 import edu.cwru.pp4j.recode.phosmsgf.PhosMsgfCommand;
 import edu.cwru.pp4j.recode.phosmsgf.PhosMsgfParamEnum;
+import edu.cwru.pp4j.recode.spectra.SpectrumIndex;
 
 import edu.ucsd.msjava.msdbsearch.BuildSA;
 
@@ -74,6 +77,18 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
         }
     }
     
+    private class RecodedDatabaseFileFilter implements FilenameFilter {
+        @Override
+        public boolean accept(File dir, String name) {
+            /* A plain copy inflated for searching is listed as the 
+             * compressed database it came from */
+            if(name.endsWith(".fasta") && new File(dir, name+CompressedFiles.EXTENSION).exists()) {
+                return false;
+            }
+            return (CompressedFiles.stripExtension(name).endsWith(".fasta") && !name.contains("revCat"));
+        }
+    }
+    
     private class ModificationSiteDatabaseFileFilter implements FilenameFilter {
         @Override
         public boolean accept(File dir, String name) {
@@ -85,7 +100,8 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
 
         @Override
         public boolean accept(File f) {
-            return f.isDirectory() || f.getName().endsWith(".fasta") || f.getName().endsWith(".txt");
+            String name = CompressedFiles.stripExtension(f.getName());
+            return f.isDirectory() || name.endsWith(".fasta") || name.endsWith(".txt");
         }
 
         @Override
@@ -99,7 +115,7 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
 
         @Override
         public boolean accept(File f) {
-            return f.isDirectory() || f.getName().endsWith(".txt");
+            return f.isDirectory() || CompressedFiles.stripExtension(f.getName()).endsWith(".txt");
         }
 
         @Override
@@ -139,10 +155,35 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
             importProteinDatabaseButton.setEnabled(false);
             
             try {
-                Fasta db = new Fasta(path);
                 Path source = Paths.get(path);
-                Path destination = Paths.get("./data/protDb/"+source.getFileName().toString());
-                Files.copy(source,destination);  
+                
+                /* A compressed database is inflated into the database 
+                 * directory and indexed there, as the index refers to byte
+                 * offsets of the uncompressed file */
+                if(CompressedFiles.isCompressed(path)) {
+                    Path destination = Paths.get("./data/protDb/"+CompressedFiles.stripExtension(source.getFileName().toString()));
+                    if(Files.exists(destination)) {
+                        throw new Exception(destination.getFileName()+" already exists");
+                    }
+                    try {
+                        CompressedFiles.decompress(path, destination.toString());
+                        FastaIndex.build(destination.toString(), true, Runtime.getRuntime().availableProcessors()).save(destination.toString());
+                    }
+                    catch(Exception e) {
+                        Files.deleteIfExists(destination);
+                        throw e;
+                    }
+                }
+                
+                /* Validate and index the database before copying it. The 
+                 * copy has identical byte offsets, so the index is saved next
+                 * to the copy for memory-mapped access during recoding */
+                else {
+                    FastaIndex index = FastaIndex.build(path, true, Runtime.getRuntime().availableProcessors());
+                    Path destination = Paths.get("./data/protDb/"+source.getFileName().toString());
+                    Files.copy(source,destination);  
+                    index.save(destination.toString());
+                }
                 loadProteinDatabases();
                 result = "Import Complete";
             }
@@ -184,7 +225,7 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
                 
             try {
                 Path source = Paths.get(path);
-                Path destination = Paths.get("./data/modDb/"+removeExtension(source.getFileName().toString()));
+                Path destination = Paths.get("./data/modDb/"+removeExtension(CompressedFiles.stripExtension(source.getFileName().toString())));
                 ModificationSiteDatabaseImporter.importDatabase(source.toString(),destination.toString());
                 loadModificationSiteDatabases();
                 result = "Import Complete";
@@ -260,8 +301,21 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
         
         @Override
         protected String doInBackground() throws Exception {            
-            /* Check existence of suffix-array processed database */
+            /* MS-GF+ reads plain FASTA, so a compressed recoded database is 
+             * inflated next to it once and the copy is searched */
             File dbFile = new File(msgfConfig.getConfigValue(PhosMsgfParamEnum.SEQUENCEDATABASE));
+            if(CompressedFiles.isCompressed(dbFile.getPath())) {
+                File plainFile = new File(CompressedFiles.stripExtension(dbFile.getPath()));
+                if(!plainFile.exists()) {
+                    statusLabel.setText("Decompressing database...");
+                    System.out.printf("Decompressing %s\n",dbFile.getPath());
+                    CompressedFiles.decompress(dbFile.getPath(), plainFile.getPath());
+                }
+                dbFile = plainFile;
+                msgfConfig.setSequenceDatabase(dbFile.getPath());
+            }
+            
+            /* Check existence of suffix-array processed database */
             File saFile = new File(removeExtension(dbFile.getPath())+".canno");
             if(!saFile.exists()) {
                 statusLabel.setText("Indexing database for faster searching...");
@@ -275,6 +329,19 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
             try {
                 int i = 1;
                 int n = msgfConfig.getSpectra().size();
+                
+                /* Index the precursors of MGF spectrum files for the tools
+                 * that target them */
+                for(String s : msgfConfig.getSpectra()) {
+                    if(s.toLowerCase().endsWith(".mgf")) {
+                        statusLabel.setText(String.format("Indexing spectrum %d of %d...",i,n));
+                        SpectrumIndex index = SpectrumIndex.open(s, THREADS);
+                        threadOutput.write(String.format("Indexed %d spectra of %s\n",index.size(),s).getBytes());
+                    }
+                    i++;
+                }
+                
+                i = 1;
                 for(String s : msgfConfig.getSpectra()) {
                     statusLabel.setText(String.format("Searching spectrum %d of %d...",i,n));
                     msgfConfig.setSpectrum(s);
@@ -463,7 +530,7 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
         searchRecodedDatabaseCombo.addItem("--Select One--");
         
         File recDbDir = new File("./data/recDb/");
-        String[] files = recDbDir.list(new ProteinSequenceDatabaseFileFilter());
+        String[] files = recDbDir.list(new RecodedDatabaseFileFilter());
         DefaultListModel listModel = new DefaultListModel();
         for(String file : files) {
             listModel.addElement(file);
@@ -1327,6 +1394,7 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
              * but the list is exhaustive, so the directory should be clean
              * afterwords. */
             String baseName = removeExtension(selection.toString());
+            deleteFile(selection.toString()+FastaIndex.EXTENSION,"./data/protDb/",true);
             deleteFile(baseName+".canno","./data/protDb/",true);
             deleteFile(baseName+".cnlcp","./data/protDb/",true);
             deleteFile(baseName+".csarr","./data/protDb/",true);
@@ -1336,6 +1404,14 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
             deleteFile(baseName+".revCat.cnlcp","./data/protDb/",true);
             deleteFile(baseName+".revCat.csarr","./data/protDb/",true);
             deleteFile(baseName+".revCat.cseq","./data/protDb/",true);
+            
+            /* Digest caches are named after the database and the protease */
+            String[] caches = new File("./data/protDb/").list();
+            for(int i=0;caches != null && i<caches.length;i++) {
+                if(caches[i].startsWith(selection.toString()+".") && caches[i].endsWith(DigestCache.EXTENSION)) {
+                    deleteFile(caches[i],"./data/protDb/",true);
+                }
+            }
             loadProteinDatabases();
         }
     }//GEN-LAST:event_deleteProteinDatabaseButtonActionPerformed
@@ -1386,10 +1462,15 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
                 setMinPeptideLength(minPepLength).
                 setMaxPeptideLength(maxPepLength).
                 setStrictDigest(strictProtease).
-                setDigestOnly(digestOnly);
+                setDigestOnly(digestOnly).
+                setThreads(THREADS).
+                setWorkers(THREADS);
             
-            /* Save the parameters associated with this recoded database */
-            RecodeConfig.save(recodeConfig, "./data/recDb/"+outputName+".config");
+            /* Save the parameters associated with this recoded database, 
+             * named after the file it is written to (name.fasta, or 
+             * name.fasta.gz when compressed) */
+            String databasePath = recodeConfig.getOutputPath();
+            RecodeConfig.save(recodeConfig, removeExtension(CompressedFiles.stripExtension(databasePath))+".config");
             
             (new BgRecoder(null,recodeConfig)).execute();
         }
@@ -1413,8 +1494,13 @@ public class GraphicalUserInterface extends javax.swing.JFrame {
             /* If we deleted the plain text FASTA, then try to delete any index
              * files that may have also been generated. These may all fail,
              * but the list is exhaustive, so the directory should be clean
-             * afterwords. */
-            String baseName = removeExtension(selection.toString());
+             * afterwords. A compressed database is searched through a plain
+             * copy, which is deleted with it. */
+            String name = CompressedFiles.stripExtension(selection.toString());
+            if(!name.equals(selection.toString())) {
+                deleteFile(name,"./data/recDb/",true);
+            }
+            String baseName = removeExtension(name);
             deleteFile(baseName+".canno","./data/recDb/",true);
             deleteFile(baseName+".cnlcp","./data/recDb/",true);
             deleteFile(baseName+".csarr","./data/recDb/",true);
@@ -0,0 +1,206 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class BgzfOutputStreamTest {
+    
+    public BgzfOutputStreamTest() {
+        
+    }
+    
+    /**
+     * Compress data in writes of varying length.
+     */
+    private static byte[] compress(byte[] data, int threads) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(BgzfOutputStream out = new BgzfOutputStream(bytes, threads)) {
+            write(out, data);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static void write(BgzfOutputStream out, byte[] data) throws IOException {
+        int p = 0, n = 1;
+        while(p < data.length) {
+            int length = Math.min(n, data.length-p);
+            out.write(data, p, length);
+            p += length;
+            n = n*3+1;
+        }
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        try(InputStream stream = in) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[10000];
+            int n;
+            while((n=stream.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+    }
+    
+    /**
+     * Check that compressed data reads back both as BGZF and as plain 
+     * multi-member gzip.
+     */
+    private static void assertRoundTrip(byte[] data, byte[] compressed) throws IOException {
+        assertArrayEquals(data, readAll(new BgzfInputStream(new ByteArrayInputStream(compressed), 2)));
+        assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+    
+    /**
+     * Split compressed data into its blocks, returning the size of each.
+     */
+    private static int[] blockSizes(byte[] compressed) {
+        List<Integer> sizes = new ArrayList<>();
+        int p = 0;
+        while(p < compressed.length) {
+            assertEquals(0x1f, compressed[p]&0xff);
+            assertEquals(0x8b, compressed[p+1]&0xff);
+            int size = ((compressed[p+16]&0xff) | (compressed[p+17]&0xff) << 8)+1;
+            sizes.add(size);
+            p += size;
+        }
+        assertEquals(compressed.length, p);
+        int[] result = new int[sizes.size()];
+        for(int i=0;i<result.length;i++) {
+            result[i] = sizes.get(i);
+        }
+        return result;
+    }
+    
+    private static byte[] text(int length) {
+        byte[] data = new byte[length];
+        String residues = "ACDEFGHIKLMNPQRSTVWY";
+        Random random = new Random(7);
+        for(int i=0;i<length;i++) {
+            data[i] = (byte)(i%61 == 60 ? '\n' : residues.charAt(random.nextInt(residues.length())));
+        }
+        return data;
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        System.out.println("empty stream");
+        byte[] compressed = compress(new byte[0], 2);
+        assertArrayEquals(new int[]{28}, blockSizes(compressed));
+        assertRoundTrip(new byte[0], compressed);
+    }
+
+    @Test
+    public void testExactBlock() throws Exception {
+        System.out.println("exactly one block of data");
+        byte[] data = text(BgzfOutputStream.BLOCK_DATA_SIZE);
+        byte[] compressed = compress(data, 2);
+        
+        /* One data block and the end of file block */
+        assertEquals(2, blockSizes(compressed).length);
+        assertRoundTrip(data, compressed);
+        
+        data = text(BgzfOutputStream.BLOCK_DATA_SIZE+1);
+        compressed = compress(data, 2);
+        assertEquals(3, blockSizes(compressed).length);
+        assertRoundTrip(data, compressed);
+    }
+
+    @Test
+    public void testIncompressible() throws Exception {
+        System.out.println("incompressible data is stored");
+        byte[] data = new byte[3*BgzfOutputStream.BLOCK_DATA_SIZE+17];
+        new Random(11).nextBytes(data);
+        byte[] compressed = compress(data, 4);
+        int[] sizes = blockSizes(compressed);
+        assertEquals(5, sizes.length);
+        for(int size : sizes) {
+            assertTrue(size <= 65536);
+        }
+        assertTrue(compressed.length > data.length);
+        assertRoundTrip(data, compressed);
+    }
+
+    @Test
+    public void testSinglethreaded() throws Exception {
+        System.out.println("single threaded");
+        byte[] data = text(5*BgzfOutputStream.BLOCK_DATA_SIZE/2);
+        byte[] compressed = compress(data, 1);
+        assertEquals(4, blockSizes(compressed).length);
+        assertRoundTrip(data, compressed);
+    }
+
+    @Test
+    public void testSharedPool() throws Exception {
+        System.out.println("streams sharing a pool of deflaters");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            byte[] first = text(4*BgzfOutputStream.BLOCK_DATA_SIZE+100);
+            byte[] second = new byte[2*BgzfOutputStream.BLOCK_DATA_SIZE];
+            new Random(13).nextBytes(second);
+            
+            /* Interleave the writes of both streams */
+            ByteArrayOutputStream a = new ByteArrayOutputStream();
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            BgzfOutputStream outA = new BgzfOutputStream(a, pool, 4, Deflater.DEFAULT_COMPRESSION);
+            BgzfOutputStream outB = new BgzfOutputStream(b, pool, 4, Deflater.BEST_SPEED);
+            int chunk = 1000;
+            for(int p=0;p<Math.max(first.length, second.length);p+=chunk) {
+                if(p < first.length) {
+                    outA.write(first, p, Math.min(chunk, first.length-p));
+                }
+                if(p < second.length) {
+                    outB.write(second, p, Math.min(chunk, second.length-p));
+                }
+            }
+            outA.close();
+            
+            /* The pool belongs to the caller and outlives the streams */
+            assertFalse(pool.isShutdown());
+            outB.close();
+            assertFalse(pool.isShutdown());
+            
+            assertRoundTrip(first, a.toByteArray());
+            assertRoundTrip(second, b.toByteArray());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class CombinatoricsTest {
+    
+    public CombinatoricsTest() {
+        
+    }
+    
+    /**
+     * Enumerate combinations with the original recursive pointer algorithm,
+     * which is the reference order.
+     */
+    private static List<int[]> recursive(int n, int k) {
+        List<int[]> result = new ArrayList<>();
+        if(k == 0 || k > n) {
+            return result;
+        }
+        int[] pointers = new int[k];
+        int[] stops = new int[k];
+        for(int i=0;i<k;i++) {
+            pointers[i] = i;
+            stops[i] = n-(k-i);
+        }
+        do {
+            result.add(pointers.clone());
+        } while(bubble(pointers, stops, k-1));
+        return result;
+    }
+    
+    private static boolean bubble(int[] pointers, int[] stops, int p) {
+        if(pointers[p] == stops[p]) {
+            if(p == 0 || !bubble(pointers, stops, p-1)) {
+                return false;
+            }
+            pointers[p] = pointers[p-1]+1;
+            return true;
+        }
+        pointers[p]++;
+        return true;
+    }
+    
+    /**
+     * Enumerate combinations as recoding does: the initial combination, 
+     * then one per call to next().
+     */
+    private static List<int[]> enumerate(int n, int k) {
+        List<int[]> result = new ArrayList<>();
+        Combinatorics c = new Combinatorics(n, k);
+        if(k == 0 || k > n) {
+            assertFalse(c.next());
+            return result;
+        }
+        do {
+            int[] current = c.getCurrent().clone();
+            if(c.hasMask()) {
+                long mask = 0;
+                for(int i : current) {
+                    mask |= 1L << i;
+                }
+                assertEquals("mask of "+Arrays.toString(current), mask, c.getMask());
+            }
+            result.add(current);
+        } while(c.next());
+        return result;
+    }
+    
+    private static void assertSameOrder(int n, int k) {
+        List<int[]> expResult = recursive(n, k);
+        List<int[]> result = enumerate(n, k);
+        assertEquals("count of "+n+" choose "+k, expResult.size(), result.size());
+        for(int i=0;i<result.size();i++) {
+            assertArrayEquals(n+" choose "+k+" combination "+i, expResult.get(i), result.get(i));
+        }
+    }
+
+    @Test
+    public void testNext_matchesRecursiveOrder() {
+        System.out.println("next - bitmask order matches recursive order");
+        for(int n=0;n<=12;n++) {
+            for(int k=0;k<=n+1;k++) {
+                assertSameOrder(n, k);
+            }
+        }
+        
+        /* The largest sets enumerated as bitmasks */
+        assertSameOrder(63, 1);
+        assertSameOrder(63, 2);
+        assertSameOrder(63, 62);
+    }
+    
+    @Test
+    public void testNext_withoutMask() {
+        System.out.println("next - more symbols than fit in a bitmask");
+        Combinatorics c = new Combinatorics(Combinatorics.MAX_MASK_SYMBOLS+1, 1);
+        assertFalse(c.hasMask());
+        assertSameOrder(Combinatorics.MAX_MASK_SYMBOLS+1, 1);
+        assertSameOrder(Combinatorics.MAX_MASK_SYMBOLS+3, 2);
+        assertSameOrder(Combinatorics.MAX_MASK_SYMBOLS+2, Combinatorics.MAX_MASK_SYMBOLS+1);
+    }
+    
+    @Test
+    public void testGetNext_endsWithEmptyArray() {
+        System.out.println("getNext - (5,3)");
+        Combinatorics c = new Combinatorics(5, 3);
+        assertArrayEquals(new int[]{0,1,2}, c.getCurrent());
+        assertArrayEquals(new int[]{0,1,3}, c.getNext());
+        int n = 2;
+        while(c.getNext().length != 0) {
+            n++;
+        }
+        assertEquals(10, n);
+    }
+    
+    @Test
+    public void testChoose_smallValues() {
+        System.out.println("choose - small values");
+        assertEquals(1, Combinatorics.choose(0, 0));
+        assertEquals(1, Combinatorics.choose(5, 0));
+        assertEquals(5, Combinatorics.choose(5, 1));
+        assertEquals(10, Combinatorics.choose(5, 3));
+        assertEquals(1, Combinatorics.choose(5, 5));
+        assertEquals(0, Combinatorics.choose(5, 6));
+        assertEquals(0, Combinatorics.choose(5, -1));
+        assertEquals(BigInteger.ZERO, Combinatorics.chooseExact(5, 6));
+        assertEquals(BigInteger.ZERO, Combinatorics.chooseExact(5, -1));
+    }
+    
+    @Test
+    public void testChoose_overflowBoundary() {
+        System.out.println("choose - overflow boundary");
+        assertEquals(7219428434016265740L, Combinatorics.choose(66, 33));
+        assertEquals(new BigInteger("7219428434016265740"), Combinatorics.chooseExact(66, 33));
+        assertEquals(-1L, Combinatorics.choose(67, 33));
+        assertEquals(new BigInteger("14226520737620288370"), Combinatorics.chooseExact(67, 33));
+        assertEquals(-1L, Combinatorics.choose(100, 50));
+        
+        Combinatorics c = new Combinatorics(67, 33);
+        assertEquals(-1L, c.nChooseK(67, 33));
+        assertFalse("OK".equals(c.getLastError()));
+    }
+    
+    @Test
+    public void testChoose_matchesExact() {
+        System.out.println("choose - agrees with chooseExact or reports -1");
+        BigInteger max = BigInteger.valueOf(Long.MAX_VALUE);
+        for(int n=0;n<=130;n++) {
+            for(int k=0;k<=n;k++) {
+                BigInteger exact = Combinatorics.chooseExact(n, k);
+                long expResult = exact.compareTo(max) > 0 ? -1L : exact.longValue();
+                assertEquals(n+" choose "+k, expResult, Combinatorics.choose(n, k));
+            }
+        }
+    }
+    
+    @Test
+    public void testChooseExact_pascal() {
+        System.out.println("chooseExact - Pascal's rule");
+        for(int n=1;n<=80;n++) {
+            for(int k=1;k<n;k++) {
+                assertEquals(Combinatorics.chooseExact(n-1, k-1).add(Combinatorics.chooseExact(n-1, k)), Combinatorics.chooseExact(n, k));
+            }
+        }
+    }
+    
+    private static void assertRoundTrip(int n, int k) {
+        List<int[]> expResult = recursive(n, k);
+        Combinatorics c = new Combinatorics(n, k);
+        assertEquals(n+" choose "+k+" count", expResult.size(), c.count());
+        for(int i=0;i<expResult.size();i++) {
+            c.goTo(i);
+            assertArrayEquals(n+" choose "+k+" goTo "+i, expResult.get(i), c.getCurrent());
+            assertEquals(n+" choose "+k+" rank", i, c.rank());
+            
+            /* Enumeration continues in order from the combination */
+            if(i+1 < expResult.size()) {
+                assertTrue(c.next());
+                assertArrayEquals(n+" choose "+k+" after goTo "+i, expResult.get(i+1), c.getCurrent());
+            }
+            else {
+                assertFalse(c.next());
+            }
+        }
+    }
+    
+    @Test
+    public void testGoTo_rankRoundTrip() {
+        System.out.println("goTo/rank - round trip");
+        for(int n=1;n<=10;n++) {
+            for(int k=1;k<=n;k++) {
+                assertRoundTrip(n, k);
+            }
+        }
+        assertRoundTrip(Combinatorics.MAX_MASK_SYMBOLS, 2);
+        assertRoundTrip(Combinatorics.MAX_MASK_SYMBOLS+2, 2);
+    }
+    
+    @Test
+    public void testGoTo_emptyAndFullSets() {
+        System.out.println("goTo/rank - empty and full sets");
+        Combinatorics empty = new Combinatorics(5, 0);
+        assertEquals(0, empty.count());
+        empty.goTo(0);
+        assertEquals(0, empty.getCurrent().length);
+        assertEquals(0, empty.rank());
+        assertFalse(empty.next());
+        
+        Combinatorics none = new Combinatorics(3, 5);
+        assertEquals(0, none.count());
+        assertFalse(none.next());
+        
+        for(int n : new int[]{1, 7, Combinatorics.MAX_MASK_SYMBOLS, Combinatorics.MAX_MASK_SYMBOLS+1}) {
+            Combinatorics full = new Combinatorics(n, n);
+            assertEquals(1, full.count());
+            full.goTo(0);
+            assertEquals(0, full.rank());
+            int[] all = full.getCurrent();
+            assertEquals(n, all.length);
+            for(int i=0;i<n;i++) {
+                assertEquals(i, all[i]);
+            }
+            if(full.hasMask()) {
+                assertEquals(n == 64 ? -1L : (1L << n)-1, full.getMask());
+            }
+            assertFalse(full.next());
+        }
+    }
+    
+    @Test
+    public void testGoTo_largeSpace() {
+        System.out.println("goTo/rank - ranks near the end of a large space");
+        Combinatorics c = new Combinatorics(60, 30);
+        long count = c.count();
+        assertEquals(Combinatorics.chooseExact(60, 30).longValue(), count);
+        for(long rank : new long[]{0, 1, count/3, count/2, count-2, count-1}) {
+            c.goTo(rank);
+            assertEquals(rank, c.rank());
+        }
+        c.goTo(count-1);
+        int[] last = c.getCurrent();
+        for(int i=0;i<30;i++) {
+            assertEquals(30+i, last[i]);
+        }
+        assertFalse(c.next());
+    }
+}
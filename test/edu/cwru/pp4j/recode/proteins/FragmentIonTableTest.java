@@ -0,0 +1,154 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.proteins;
+
+import edu.cwru.pp4j.recode.io.MappedFile;
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class FragmentIonTableTest {
+    private static final double DELTA = 1e-4;
+    
+    File file;
+    
+    public FragmentIonTableTest() {
+        
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("fragments", ".frag");
+        try(FragmentIonTable table = new FragmentIonTable(file.getPath(), ResidueMasses.getStandard(), 2)) {
+            table.add("GBK");
+            table.add("K");
+            table.add("AUZ");
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    /**
+     * Byte offset of a column, read from the header.
+     */
+    private static long column(MappedFile in, int c) {
+        return in.getLong(32+8*c);
+    }
+    
+    /**
+     * Check one ion of the table against its expected columns.
+     */
+    private static void assertIon(MappedFile in, long i, double mz, int ordinal, byte type, int charge, byte loss) {
+        assertEquals(mz, in.getDouble(column(in,1)+8*i), DELTA);
+        assertEquals(ordinal, in.getShort(column(in,2)+2*i));
+        assertEquals(type, in.get(column(in,3)+i));
+        assertEquals(charge, in.get(column(in,4)+i));
+        assertEquals(loss, in.get(column(in,5)+i));
+    }
+
+    @Test
+    public void testHeader() throws Exception {
+        System.out.println("header and peptide starts");
+        try(MappedFile in = new MappedFile(file.getPath())) {
+            assertEquals(FragmentIonTable.MAGIC, in.getInt(0));
+            assertEquals(FragmentIonTable.VERSION, in.getInt(4));
+            assertEquals(2, in.getInt(8));
+            assertEquals(6, in.getInt(12));
+            assertEquals(3, in.getLong(16));
+            assertEquals(24, in.getLong(24));
+            
+            /* GBK has 12 ions, K none and AUZ 12 */
+            long start = column(in,0);
+            assertEquals(0, in.getLong(start));
+            assertEquals(12, in.getLong(start+8));
+            assertEquals(12, in.getLong(start+16));
+            assertEquals(24, in.getLong(start+24));
+            assertEquals(in.size(), column(in,5)+24);
+        }
+    }
+
+    @Test
+    public void testIons_phosphoSerine() throws Exception {
+        System.out.println("b/y ions of GBK");
+        byte b = FragmentIonTable.B_ION, y = FragmentIonTable.Y_ION;
+        byte none = FragmentIonTable.LOSS_NONE, loss = FragmentIonTable.LOSS_H3PO4;
+        try(MappedFile in = new MappedFile(file.getPath())) {
+            assertIon(in,  0,  58.0287, 1, b, 1, none);
+            assertIon(in,  1,  29.5180, 1, b, 2, none);
+            assertIon(in,  2, 225.0271, 2, b, 1, none);
+            assertIon(in,  3, 127.0502, 2, b, 1, loss);
+            assertIon(in,  4, 113.0172, 2, b, 2, none);
+            assertIon(in,  5,  64.0287, 2, b, 2, loss);
+            assertIon(in,  6, 147.1128, 1, y, 1, none);
+            assertIon(in,  7,  74.0600, 1, y, 2, none);
+            assertIon(in,  8, 314.1112, 2, y, 1, none);
+            assertIon(in,  9, 216.1343, 2, y, 1, loss);
+            assertIon(in, 10, 157.5592, 2, y, 2, none);
+            assertIon(in, 11, 108.5708, 2, y, 2, loss);
+        }
+    }
+
+    @Test
+    public void testIons_phosphoThreonineAndTyrosine() throws Exception {
+        System.out.println("b/y ions of AUZ");
+        byte b = FragmentIonTable.B_ION, y = FragmentIonTable.Y_ION;
+        byte none = FragmentIonTable.LOSS_NONE, loss = FragmentIonTable.LOSS_H3PO4;
+        try(MappedFile in = new MappedFile(file.getPath())) {
+            assertIon(in, 12,  72.0444, 1, b, 1, none);
+            assertIon(in, 13,  36.5258, 1, b, 2, none);
+            assertIon(in, 14, 253.0584, 2, b, 1, none);
+            assertIon(in, 15, 155.0815, 2, b, 1, loss);
+            assertIon(in, 16, 127.0328, 2, b, 2, none);
+            assertIon(in, 17,  78.0444, 2, b, 2, loss);
+            
+            /* Phosphorylated Y does not lose H3PO4 */
+            assertIon(in, 18, 262.0475, 1, y, 1, none);
+            assertIon(in, 19, 131.5274, 1, y, 2, none);
+            assertIon(in, 20, 443.0615, 2, y, 1, none);
+            assertIon(in, 21, 345.0846, 2, y, 1, loss);
+            assertIon(in, 22, 222.0344, 2, y, 2, none);
+            assertIon(in, 23, 173.0459, 2, y, 2, loss);
+        }
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        System.out.println("discard deletes the table and columns");
+        FragmentIonTable table = new FragmentIonTable(file.getPath(), ResidueMasses.getStandard(), 2);
+        table.add("GBK");
+        table.discard();
+        table.close();
+        assertFalse(file.exists());
+        for(int c=0;c<6;c++) {
+            assertFalse(new File(file.getPath()+"."+c+".tmp").exists());
+        }
+    }
+}
@@ -20,8 +20,11 @@
  */
 package edu.cwru.pp4j.recode.proteins;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -438,4 +441,162 @@ public class PeptideFactoryTest {
         
         assertEquals(expResult,result); 
     }
+    
+    @Test
+    public void testHowMany_missedCleavages() {
+        System.out.println("howMany - Trypsin with missed cleavages");
+        PeptideFactory pb = new PeptideFactory(false);
+        pb.setProtease("Trypsin");
+        pb.setSequence("AKTRLPKGGR");
+        pb.setMissedCleavages(2);
+        
+        /* Fragments AK, TR, LPK and GGR */
+        assertEquals(9, pb.howMany(-1));
+        assertEquals(3, pb.howMany(1));
+        assertEquals(0, pb.howMany(3));
+        
+        pb.start();
+        List<String> result = new ArrayList<>();
+        List<Peptide> peptide = pb.GetNext(2);
+        while(peptide != null) {
+            for(int i=0;i<peptide.size();i++) {
+                result.add(peptide.get(i).sequence());
+            }
+            peptide = pb.GetNext(2);
+        }
+        
+        List<String> expResult = new ArrayList<>();
+        expResult.add("AKTRLPK");
+        expResult.add("TRLPKGGR");
+        assertEquals(expResult,result);
+    }
+    
+    private static List<String> sequences(List<Peptide> peptides) {
+        List<String> result = new ArrayList<>();
+        for(Peptide p : peptides) {
+            result.add(p.sequence());
+        }
+        return result;
+    }
+    
+    @Test
+    public void testStream_matchesGetNext() {
+        System.out.println("stream - Pepsin with missed cleavages");
+        PeptideFactory pb = new PeptideFactory(true);
+        pb.setProtease("Pepsin, pH=1.3");
+        pb.setSequence("MAGLFAALPWFLSKTRLFAAGWYLAPFKKL");
+        pb.setMissedCleavages(2);
+        
+        for(int missed=-1;missed<=3;missed++) {
+            pb.start();
+            List<String> expResult = new ArrayList<>();
+            List<Peptide> peptide = pb.GetNext(missed);
+            while(peptide != null) {
+                for(int i=0;i<peptide.size();i++) {
+                    expResult.add(peptide.get(i).sequence());
+                }
+                peptide = pb.GetNext(missed);
+            }
+            
+            assertEquals(expResult.size(), pb.stream(missed).spliterator().getExactSizeIfKnown());
+            assertEquals(expResult, sequences(pb.stream(missed).collect(Collectors.<Peptide>toList())));
+            assertEquals(expResult, sequences(pb.stream(missed).parallel().collect(Collectors.<Peptide>toList())));
+            
+            /* Both halves of a split know their size */
+            Spliterator<Peptide> rest = pb.stream(missed).spliterator();
+            Spliterator<Peptide> prefix = rest.trySplit();
+            if(prefix != null) {
+                assertEquals(expResult.size(), prefix.getExactSizeIfKnown()+rest.getExactSizeIfKnown());
+            }
+        }
+    }
+    
+    @Test
+    public void testLengthBounds_matchFilteredGetNext() {
+        System.out.println("GetNext - Non-specific with length bounds");
+        PeptideFactory pb = new PeptideFactory(false);
+        pb.setProtease("Non-specific");
+        pb.setSequence("MAGLFAALPWFLSKTRLFAAGWYLAPFKKL");
+        pb.setMissedCleavages(12);
+        
+        for(int missed=-1;missed<=13;missed++) {
+            pb.setMinPeptideLength(0);
+            pb.setMaxPeptideLength(Integer.MAX_VALUE);
+            pb.start();
+            List<String> expResult = new ArrayList<>();
+            List<Peptide> peptide = pb.GetNext(missed);
+            while(peptide != null) {
+                for(int i=0;i<peptide.size();i++) {
+                    if(peptide.get(i).length() >= 4 && peptide.get(i).length() <= 9) {
+                        expResult.add(peptide.get(i).sequence());
+                    }
+                }
+                peptide = pb.GetNext(missed);
+            }
+            
+            pb.setMinPeptideLength(4);
+            pb.setMaxPeptideLength(9);
+            assertEquals(expResult.size(), pb.howMany(missed));
+            pb.start();
+            List<String> result = new ArrayList<>();
+            peptide = pb.GetNext(missed);
+            while(peptide != null) {
+                result.addAll(sequences(peptide));
+                peptide = pb.GetNext(missed);
+            }
+            assertEquals(expResult, result);
+            assertEquals(expResult.size(), pb.stream(missed).spliterator().getExactSizeIfKnown());
+            assertEquals(expResult, sequences(pb.stream(missed).parallel().collect(Collectors.<Peptide>toList())));
+        }
+    }
+    
+    @Test
+    public void testSpecificity_semiAndNonSpecific() {
+        System.out.println("GetNext - semi-specific and non-specific Trypsin");
+        PeptideFactory pb = new PeptideFactory(false);
+        pb.setProtease("Trypsin");
+        pb.setSequence("AKTRLPKGGR");
+        pb.setMissedCleavages(0);
+        pb.setMinPeptideLength(2);
+        pb.setMaxPeptideLength(3);
+        
+        /* Fragments AK, TR, LPK and GGR with one specific terminus */
+        pb.setSpecificity(Specificity.SEMI);
+        List<String> expResult = Arrays.asList("AK","TR","LP","PK","LPK","GG","GR","GGR");
+        assertEquals(expResult.size(), pb.howMany(-1));
+        pb.start();
+        List<String> result = new ArrayList<>();
+        List<Peptide> peptide = pb.GetNext(-1);
+        while(peptide != null) {
+            result.addAll(sequences(peptide));
+            peptide = pb.GetNext(-1);
+        }
+        assertEquals(expResult, result);
+        assertEquals(expResult, sequences(pb.stream().parallel().collect(Collectors.<Peptide>toList())));
+        
+        pb.setRequiredResidues("T");
+        assertEquals(Arrays.asList("TR"), sequences(pb.stream().collect(Collectors.<Peptide>toList())));
+        
+        /* Every subsequence containing a T */
+        pb.setSpecificity(Specificity.NONE);
+        expResult = new ArrayList<>();
+        for(int end=1;end<=pb.getSequence().length();end++) {
+            for(int length=2;length<=3 && length<=end;length++) {
+                String s = pb.getSequence().subSequence(end-length, end).toString();
+                if(s.contains("T")) {
+                    expResult.add(s);
+                }
+            }
+        }
+        assertEquals(expResult.size(), pb.howMany(-1));
+        pb.start();
+        result = new ArrayList<>();
+        peptide = pb.GetNext(-1);
+        while(peptide != null) {
+            result.addAll(sequences(peptide));
+            peptide = pb.GetNext(-1);
+        }
+        assertEquals(expResult, result);
+        assertEquals(Arrays.asList("AKT","KTR","TRL"), sequences(pb.stream(2).collect(Collectors.<Peptide>toList())));
+    }
 }
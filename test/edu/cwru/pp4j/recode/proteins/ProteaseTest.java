@@ -20,6 +20,10 @@
  */
 package edu.cwru.pp4j.recode.proteins;
 
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -119,4 +123,55 @@ public class ProteaseTest {
         assertEquals(expResult, result);
     }
     
+    @Test
+    public void testCompiledPatternsMatchRegex() {
+        System.out.println("compiled cleavage patterns agree with regex");
+        String[] patterns = {"[RK]", ".", "(WKP)|(MRP)|[KR][^P]", "([FY][^P])|(W[^MP])", 
+                             "[^HKR][^P][^R][FL][^P]", "([CD]KD)|(CK[HY])|(CRK)|(RR[HR])", "DRI"};
+        String residues = "ACDEFGHIKLMNPQRSTVWYX#";
+        Random random = new Random(42);
+        
+        for(String pattern : patterns) {
+            CleavagePattern compiled = CleavagePattern.compile(pattern);
+            assertNotNull(pattern, compiled);
+            Pattern regex = Pattern.compile(pattern);
+            for(int n=0;n<2000;n++) {
+                StringBuilder sb = new StringBuilder();
+                for(int i=0;i<12;i++) {
+                    sb.append(residues.charAt(random.nextInt(residues.length())));
+                }
+                String seq = sb.toString();
+                
+                /* Cut site search */
+                int from = random.nextInt(seq.length());
+                Matcher m = regex.matcher(seq);
+                assertEquals(seq, m.find(from) ? m.start() : -1, compiled.find(seq, from));
+                
+                /* Padded window around a site */
+                int left = random.nextInt(4), right = random.nextInt(4), site = random.nextInt(seq.length());
+                StringBuilder window = new StringBuilder();
+                for(int i=site-left;i<=site+right;i++) {
+                    window.append(i < 0 || i >= seq.length() ? '#' : seq.charAt(i));
+                }
+                assertEquals(window.toString(), regex.matcher(window).find() ? 1 : 0, compiled.matchesWindow(seq, site-left, site+right));
+            }
+        }
+        assertNull(CleavagePattern.compile("K+"));
+        assertEquals(CleavagePattern.UNDECIDED, CleavagePattern.compile("[RK]").find("AA\u0100K", 0));
+    }
+    
+    @Test
+    public void testRegistry_sharedProteasesAreNotModified() {
+        System.out.println("ProteaseRegistry shared between factories");
+        ProteaseRegistry registry = ProteaseRegistry.getInstance(true);
+        assertSame(registry, ProteaseRegistry.getInstance(true));
+        assertFalse(registry.get("Trypsin").addMatcher("DRI",1,1,0));
+        
+        /* Extending a protease of one factory leaves the registry intact */
+        PeptideFactory extended = new PeptideFactory(true);
+        assertTrue(extended.addCleavageSiteMatcher("Trypsin", "DRI", 1, 1, 0));
+        assertEquals(2, extended.getProteaseRegistry().get("Trypsin").matcherCount());
+        assertEquals(1, registry.get("Trypsin").matcherCount());
+        assertEquals(1, new PeptideFactory(true).getProteaseRegistry().get("Trypsin").matcherCount());
+    }
 }
@@ -0,0 +1,127 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.recoding;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class PipelineTest {
+    
+    public PipelineTest() {
+        
+    }
+    
+    /**
+     * Stage that adds one to an item, throwing an Error at a given item, and
+     * counts how many of its instances are closed.
+     */
+    private static Pipeline.StageFactory<Integer,Integer> increment(final int failAt, final AtomicInteger closed) {
+        return new Pipeline.StageFactory<Integer,Integer>() {
+            @Override
+            public Pipeline.Stage<Integer,Integer> create() {
+                return new Pipeline.Stage<Integer,Integer>() {
+                    @Override
+                    public Integer process(Integer item) {
+                        if(item == failAt) {
+                            throw new OutOfMemoryError("Test failure");
+                        }
+                        return item+1;
+                    }
+                    
+                    @Override
+                    public void close() {
+                        closed.incrementAndGet();
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        System.out.println("items reach the sink in submission order");
+        AtomicInteger closed = new AtomicInteger();
+        final List<Integer> results = new ArrayList<>();
+        Pipeline pipeline = new Pipeline(4)
+            .addStage("first", 3, increment(-1, closed))
+            .addStage("second", 2, increment(-1, closed));
+        pipeline.start(new Pipeline.Sink<Integer>() {
+            @Override
+            public void accept(Integer item) {
+                results.add(item);
+            }
+        });
+        for(int i=0;i<1000;i++) {
+            pipeline.submit(i);
+        }
+        pipeline.finish();
+        pipeline.close();
+        
+        assertEquals(1000, results.size());
+        for(int i=0;i<1000;i++) {
+            assertEquals(i+2, (long)results.get(i));
+        }
+        assertEquals(5, closed.get());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        System.out.println("an Error in a stage fails the pipeline");
+        AtomicInteger closed = new AtomicInteger();
+        Pipeline pipeline = new Pipeline(4)
+            .addStage("first", 2, increment(100, closed))
+            .addStage("second", 2, increment(-1, closed));
+        pipeline.start(new Pipeline.Sink<Integer>() {
+            @Override
+            public void accept(Integer item) {
+                
+            }
+        });
+        try {
+            for(int i=0;i<1000;i++) {
+                pipeline.submit(i);
+            }
+            pipeline.finish();
+            fail("The failure was not reported");
+        }
+        catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+        finally {
+            pipeline.close();
+        }
+        
+        /* Every stage thread closes its stage, even after the failure */
+        for(int i=0;i<100 && closed.get() < 4;i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, closed.get());
+    }
+}
@@ -0,0 +1,263 @@
+/* Copyright 2018 Case Western Reserve University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights 
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell 
+ * copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package edu.cwru.pp4j.recode.recoding;
+
+import edu.cwru.pp4j.recode.io.CompressedFiles;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class ShardedFastaWriterTest {
+    private static final int ENTRIES = 500;
+    
+    File dir;
+    String fasta;
+    int longest;
+    
+    public ShardedFastaWriterTest() {
+        
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("shards").toFile();
+        
+        /* Entries of varying length, some with sequences over several lines */
+        Random random = new Random(3);
+        StringBuilder builder = new StringBuilder();
+        longest = 0;
+        for(int i=0;i<ENTRIES;i++) {
+            int length = 5+random.nextInt(i%10 == 0 ? 400 : 40);
+            longest = Math.max(longest, length);
+            builder.append(">sp|P").append(i).append("|PEP_").append(i).append('\n');
+            for(int j=0;j<length;j++) {
+                builder.append("ACDEFGHIKLMNPQRSTVWY".charAt(random.nextInt(20)));
+                if(j%60 == 59 || j == length-1) {
+                    builder.append('\n');
+                }
+            }
+        }
+        fasta = builder.toString();
+    }
+    
+    @After
+    public void tearDown() {
+        for(File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+    
+    /**
+     * Write the test entries in pieces of random length, so that headers, 
+     * lines and entries are split across calls of every kind.
+     */
+    private void write(ShardedFastaWriter out) throws IOException {
+        Random random = new Random(5);
+        int p = 0;
+        while(p < fasta.length()) {
+            int length = Math.min(1+random.nextInt(50), fasta.length()-p);
+            switch(random.nextInt(4)) {
+                case 0:
+                    out.write(fasta, p, length);
+                    break;
+                case 1:
+                    out.write(fasta.toCharArray(), p, length);
+                    break;
+                case 2:
+                    out.append(fasta, p, p+length);
+                    break;
+                default:
+                    length = 1;
+                    out.write(fasta.charAt(p));
+            }
+            p += length;
+        }
+    }
+    
+    private static String read(String path) throws IOException {
+        try(BufferedReader in = CompressedFiles.newReader(path)) {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int n;
+            while((n=in.read(buffer)) > 0) {
+                text.append(buffer, 0, n);
+            }
+            return text.toString();
+        }
+    }
+    
+    /**
+     * Split FASTA text into its entries.
+     */
+    private static List<String> entries(String text) {
+        List<String> entries = new ArrayList<>();
+        int start = 0;
+        while(start < text.length()) {
+            assertEquals('>', text.charAt(start));
+            int end = text.indexOf("\n>", start);
+            end = end == -1 ? text.length() : end+1;
+            entries.add(text.substring(start, end));
+            start = end;
+        }
+        return entries;
+    }
+    
+    private static long residues(List<String> entries) {
+        long residues = 0;
+        for(String entry : entries) {
+            String sequence = entry.substring(entry.indexOf('\n')+1);
+            residues += sequence.replace("\n", "").length();
+        }
+        return residues;
+    }
+    
+    /**
+     * Check that every entry was written to exactly one shard, and that the 
+     * manifest describes the shards. Returns the residues of each shard.
+     */
+    private long[] assertShards(ShardedFastaWriter out) throws IOException {
+        Map<String,Integer> expected = new HashMap<>();
+        for(String entry : entries(fasta)) {
+            expected.merge(entry, 1, Integer::sum);
+        }
+        
+        long[] residues = new long[out.shards()];
+        List<String> lines = new ArrayList<>();
+        try(BufferedReader manifest = new BufferedReader(new FileReader(out.manifestPath()))) {
+            String line;
+            while((line=manifest.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        assertEquals(out.shards()+1, lines.size());
+        assertEquals("#shard\tentries\tresidues", lines.get(0));
+        
+        for(int i=0;i<out.shards();i++) {
+            List<String> shard = entries(read(out.shardPath(i)));
+            for(String entry : shard) {
+                Integer count = expected.remove(entry);
+                assertNotNull("Unexpected or repeated entry "+entry, count);
+                assertEquals(1, (long)count);
+            }
+            residues[i] = residues(shard);
+            String[] fields = lines.get(i+1).split("\t");
+            assertEquals(new File(out.shardPath(i)).getName(), fields[0]);
+            assertEquals(shard.size(), Long.parseLong(fields[1]));
+            assertEquals(residues[i], Long.parseLong(fields[2]));
+        }
+        assertTrue("Missing entries "+expected.keySet(), expected.isEmpty());
+        return residues;
+    }
+
+    @Test
+    public void testShardCount() throws Exception {
+        System.out.println("fixed number of shards balanced by residues");
+        ShardedFastaWriter out = new ShardedFastaWriter(new File(dir, "recoded.fasta").getPath(), 4, 0, null);
+        write(out);
+        out.close();
+        
+        assertEquals(4, out.shards());
+        assertEquals(new File(dir, "recoded.001.fasta").getPath(), out.shardPath(0));
+        assertEquals(new File(dir, "recoded.shards").getPath(), out.manifestPath());
+        
+        /* Each entry goes to the lightest shard, so no shard is heavier than
+         * another by more than one entry */
+        long[] residues = assertShards(out);
+        long min = Long.MAX_VALUE, max = 0, total = 0;
+        for(long r : residues) {
+            min = Math.min(min, r);
+            max = Math.max(max, r);
+            total += r;
+        }
+        assertEquals(residues(entries(fasta)), total);
+        assertTrue(max-min <= longest);
+    }
+
+    @Test
+    public void testMaxResidues() throws Exception {
+        System.out.println("shards of at most a number of residues");
+        long limit = 2000;
+        ShardedFastaWriter out = new ShardedFastaWriter(new File(dir, "recoded.fasta").getPath(), 1, limit, null);
+        write(out);
+        out.close();
+        
+        long[] residues = assertShards(out);
+        for(int i=0;i<residues.length;i++) {
+            assertTrue(residues[i] < limit+longest);
+            if(i < residues.length-1) {
+                assertTrue(residues[i] >= limit);
+            }
+        }
+        
+        /* Shards are filled in order, so they concatenate to the input */
+        StringBuilder joined = new StringBuilder();
+        for(int i=0;i<out.shards();i++) {
+            joined.append(read(out.shardPath(i)));
+        }
+        assertEquals(fasta, joined.toString());
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        System.out.println("compressed shards");
+        ExecutorService deflaters = Executors.newFixedThreadPool(2);
+        try {
+            ShardedFastaWriter out = new ShardedFastaWriter(new File(dir, "recoded.fasta.gz").getPath(), 3, 0, deflaters);
+            write(out);
+            out.close();
+            
+            assertEquals(new File(dir, "recoded.002.fasta.gz").getPath(), out.shardPath(1));
+            assertTrue(CompressedFiles.isCompressed(out.shardPath(1)));
+            assertShards(out);
+        }
+        finally {
+            deflaters.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        System.out.println("discard deletes the shards");
+        ShardedFastaWriter out = new ShardedFastaWriter(new File(dir, "recoded.fasta").getPath(), 3, 0, null);
+        write(out);
+        out.discard();
+        assertEquals(0, dir.listFiles().length);
+    }
+}